@@ -0,0 +1,129 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+/**
+ * Features which the billing service supports, answered by isBillingSupported().<br />
+ * The result is saved with version code of google play, so it is probed again only after google play is updated.
+ * It is saved only when inapp is supported, because google play also answers BILLING_UNAVAILABLE when no account
+ * is signed in or the country of the account is not supported. Such result is probed again on next connection.
+ * Unsupported subscriptions with supported inapp are saved, because the account is usable then.
+ */
+public final class BillingCapabilities {
+
+    /** Version code when google play is not found */
+    public static final int UNKNOWN_VERSION_CODE = -1;
+
+    private static final String PLAY_STORE_PACKAGE = "com.android.vending";
+    private static final String PREFERENCES_NAME = "billing_capabilities";
+    private static final String KEY_VERSION_CODE = "play_store_version_code";
+    private static final String KEY_INAPP = "inapp";
+    private static final String KEY_SUBSCRIPTIONS = "subs";
+
+    private final boolean mInAppSupported;
+    private final boolean mSubscriptionsSupported;
+    private final int mPlayStoreVersionCode;
+
+    BillingCapabilities(boolean inAppSupported, boolean subscriptionsSupported, int playStoreVersionCode) {
+        mInAppSupported = inAppSupported;
+        mSubscriptionsSupported = subscriptionsSupported;
+        mPlayStoreVersionCode = playStoreVersionCode;
+    }
+
+    /**
+     * @return true: inapp products are supported with API_VERSION_FOR_INAPP
+     */
+    public boolean isInAppSupported() {
+        return mInAppSupported;
+    }
+
+    /**
+     * @return true: subscriptions are supported with API_VERSION_FOR_SUBS
+     */
+    public boolean isSubscriptionsSupported() {
+        return mSubscriptionsSupported;
+    }
+
+    /**
+     * @param type TYPE_INAPP or TYPE_SUBSCRIPTIONS
+     * @return true: the product type is supported
+     */
+    public boolean isSupported(String type) {
+        return BillingController.TYPE_SUBSCRIPTIONS.equals(type) ? mSubscriptionsSupported : mInAppSupported;
+    }
+
+    /**
+     * @return version code of google play which answered this. UNKNOWN_VERSION_CODE if it is not known.
+     */
+    public int getPlayStoreVersionCode() {
+        return mPlayStoreVersionCode;
+    }
+
+    @Override
+    public String toString() {
+        return "BillingCapabilities{inapp=" + mInAppSupported + ", subs=" + mSubscriptionsSupported
+                + ", playStoreVersionCode=" + mPlayStoreVersionCode + "}";
+    }
+
+    /**
+     * @return version code of installed google play. UNKNOWN_VERSION_CODE if it is not installed.
+     */
+    static int getPlayStoreVersionCode(Context context) {
+        PackageManager manager = context.getPackageManager();
+        if (manager == null) return UNKNOWN_VERSION_CODE;
+        try {
+            PackageInfo info = manager.getPackageInfo(PLAY_STORE_PACKAGE, 0);
+            return info == null ? UNKNOWN_VERSION_CODE : info.versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            return UNKNOWN_VERSION_CODE;
+        }
+    }
+
+    /**
+     * Load saved capabilities.
+     * @return saved one. NULL if nothing is saved, or it is saved with another version of google play.
+     */
+    static BillingCapabilities load(Context context, int playStoreVersionCode) {
+        if (playStoreVersionCode == UNKNOWN_VERSION_CODE) return null;
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if (preferences == null
+                || preferences.getInt(KEY_VERSION_CODE, UNKNOWN_VERSION_CODE) != playStoreVersionCode) {
+            return null;
+        }
+        if (!preferences.getBoolean(KEY_INAPP, false)) return null;
+        return new BillingCapabilities(true, preferences.getBoolean(KEY_SUBSCRIPTIONS, false), playStoreVersionCode);
+    }
+
+    /**
+     * Save for next launch. Only the result which supports inapp is saved.
+     * Nothing is saved if version of google play is not known.
+     * Call it only when subs is answered by OK or BILLING_UNAVAILABLE, not by temporary errors.
+     */
+    void save(Context context) {
+        if (mPlayStoreVersionCode == UNKNOWN_VERSION_CODE || !mInAppSupported) return;
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if (preferences == null) return;
+        preferences.edit()
+                .putInt(KEY_VERSION_CODE, mPlayStoreVersionCode)
+                .putBoolean(KEY_INAPP, mInAppSupported)
+                .putBoolean(KEY_SUBSCRIPTIONS, mSubscriptionsSupported)
+                .apply();
+    }
+}
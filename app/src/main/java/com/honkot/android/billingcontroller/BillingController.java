@@ -16,24 +16,48 @@ package com.honkot.android.billingcontroller;
 
 import android.app.Activity;
 import android.app.PendingIntent;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
-import android.content.ServiceConnection;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.Bundle;
-import android.os.IBinder;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.util.Log;
 
 import com.android.vending.billing.IInAppBillingService;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Currency;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Controller of IInAppBillingService.<br />
@@ -57,6 +81,11 @@ public class BillingController {
     public static final String INAPP_PURCHASE_DATA = "INAPP_PURCHASE_DATA";
     /** String containing the signature of the purchase data that was signed with the private key of the developer. */
     public static final String INAPP_DATA_SIGNATURE = "INAPP_DATA_SIGNATURE";
+    /** List of signatures of INAPP_PURCHASE_DATA_LIST in the same order. */
+    public static final String INAPP_DATA_SIGNATURE_LIST = "INAPP_DATA_SIGNATURE_LIST";
+    /** String containing a continuation token to retrieve the next set of owned items.<br />
+     *  It is set only when the number of owned items is too many to return at once. */
+    public static final String INAPP_CONTINUATION_TOKEN = "INAPP_CONTINUATION_TOKEN";
 
     /**
      * From Android Developer webpage.
@@ -84,282 +113,2192 @@ public class BillingController {
     public static final Integer BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED  = 8;
 
     /** Product type of in-app */
-    private static final String TYPE_INAPP = "inapp";
+    public static final String TYPE_INAPP = "inapp";
     /** Product type of subscriptions */
-    private static final String TYPE_SUBSCRIPTIONS = "subs";
+    public static final String TYPE_SUBSCRIPTIONS = "subs";
+
+    /** NULL when the service is given to the constructor */
+    private final SharedBillingConnection mShared;
+    private final SharedBillingConnection.Listener mSharedListener = new SharedBillingConnection.Listener() {
+        @Override
+        public void onConnected(IInAppBillingService service) {
+            BillingController.this.onConnected(service);
+        }
+
+        @Override
+        public void onDisconnected() {
+            BillingController.this.onDisconnected();
+        }
+
+        @Override
+        public void onBindFailed() {
+            BillingController.this.onBindFailed();
+        }
+    };
+
+    private static final String TAG = "BuillingController";
+    public static final int API_VERSION_FOR_INAPP = 3;
+    public static final int API_VERSION_FOR_SUBS = 5;
+    public static final int ACTIVITY_RESULT_CODE = 999;
+
+    /** Max count of product IDs which can be put into ITEM_ID_LIST of one getSkuDetails() call */
+    public static final int SKU_DETAILS_CHUNK_SIZE = 20;
+    /** Time to hold BUY_INTENT fetched by prefetchBuyIntent() */
+    public static final long BUY_INTENT_VALIDITY_MILLIS = 60 * 1000;
+    /** Max count of binder calls which one method runs at the same time */
+    private static final int PARALLEL_CALL_THREADS = 4;
+    /** Max count of retries of consumePurchase() in consumeAll() */
+    public static final int CONSUME_MAX_RETRIES = 3;
+    /** First delay of retry of consumePurchase() in consumeAll() */
+    private static final long CONSUME_RETRY_DELAY_MILLIS = 200;
+
+    private volatile ExecutorService mParallelExecutor = null;
+    private volatile BillingRequestQueue mRequestQueue = null;
+    private final Handler mMainHandler;
+    private volatile boolean mDeliverOnMainThread = true;
+    private volatile SkuDetailsCache mSkuDetailsCache = new SkuDetailsCache();
+    private final OwnershipStore mOwnershipStore;
+    private final PurchaseJournal mJournal;
+    private final EnumMap<BillingMetrics.Operation, CircuitBreaker> mBreakers = newBreakers();
+    private volatile ArrayList<PurchaseResult> mLastInAppPurchases = null;
+    private volatile ArrayList<PurchaseResult> mLastSubsPurchases = null;
+    private volatile OwnershipStore.OnOwnershipMismatchListener mMismatchListener = null;
+    private volatile BillingMetrics.Listener mMetricsListener = null;
+    private volatile BillingTrace mTrace = null;
+    private volatile PurchaseVerifier mVerifier = null;
+    private final PurchaseChanges.Tracker mPurchaseTracker = new PurchaseChanges.Tracker();
+    private final Object mEntitlementLock = new Object();
+    private volatile EntitlementIndex mEntitlements = EntitlementIndex.EMPTY;
+    private final CopyOnWriteArrayList<PurchaseChanges.OnPurchasesChangedListener> mChangeListeners =
+            new CopyOnWriteArrayList<>();
+
+    /** First delay of reconnection after the service is disconnected */
+    public static final long RECONNECT_BASE_DELAY_MILLIS = 1000;
+    /** Max delay of reconnection */
+    public static final long RECONNECT_MAX_DELAY_MILLIS = 60 * 1000;
+    /** Max time which sync methods wait for reconnection */
+    public static final long CONNECTION_WAIT_MILLIS = 10 * 1000;
+    /** Interval of periodic sync around renewal of subscriptions, or while it cannot sync */
+    public static final long SYNC_MIN_INTERVAL_MILLIS = 5 * 60 * 1000;
+    /** Interval of periodic sync when no subscription is renewed soon */
+    public static final long SYNC_MAX_INTERVAL_MILLIS = 6 * 60 * 60 * 1000;
+    /** Time before and after renewal of subscription which periodic sync uses SYNC_MIN_INTERVAL_MILLIS */
+    public static final long SYNC_RENEWAL_WINDOW_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * State of connection to the billing service.
+     */
+    public enum ConnectionState {
+        /** Not bound, or released */
+        DISCONNECTED,
+        /** Binding or checking supported API versions, including reconnection */
+        CONNECTING,
+        /** Ready to use */
+        CONNECTED,
+        /** Billing service or API version is not supported on this device */
+        UNSUPPORTED
+    }
+
+    /**
+     * Snapshot of the connection. It is never modified, and replaced atomically as a whole.
+     * Context is NULL after release().
+     */
+    private static final class Connection {
+        final Context context;
+        final OnServiceResponseListener listener;
+        final IInAppBillingService service;
+        final ConnectionState state;
+
+        Connection(Context context, OnServiceResponseListener listener,
+                   IInAppBillingService service, ConnectionState state) {
+            this.context = context;
+            this.listener = listener;
+            this.service = service;
+            this.state = state;
+        }
+
+        boolean isReleased() {
+            return context == null;
+        }
+    }
+
+    private static final Connection RELEASED = new Connection(null, null, null, ConnectionState.DISCONNECTED);
+
+    private final AtomicReference<Connection> mConnection = new AtomicReference<>(RELEASED);
+    private volatile BillingCapabilities mCapabilities = null;
+    private final BuyIntentCache mBuyIntents = new BuyIntentCache(BUY_INTENT_VALIDITY_MILLIS);
+    /** Lock only for holding tasks while connecting and waiting for connection */
+    private final Object mStateLock = new Object();
+    private final ArrayList<BillingRequestQueue.Task<?>> mPendingTasks = new ArrayList<>();
+    private volatile Thread mBillingThread = null;
+    private volatile boolean mPeriodicSync = false;
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            syncEntitlements();
+        }
+    };
+
+    /**
+     * Listener for watching service state.
+     */
+    public interface OnServiceResponseListener {
+        void onServiceConnected();
+        void onServiceDisconnected();
+    }
+
+    /**
+     * Listener for watching service state with capabilities of the service.
+     * Pass it to the constructor instead of OnServiceResponseListener.
+     */
+    public interface OnCapabilitiesListener extends OnServiceResponseListener {
+        /**
+         * Called after onServiceConnected(), or onServiceDisconnected() when inapp is not supported.
+         * @param capabilities features which the service supports
+         */
+        void onCapabilitiesResolved(BillingCapabilities capabilities);
+    }
+
+    /**
+     * Listener for receiving purchase history page by page.
+     */
+    public interface OnPurchaseHistoryPageListener {
+        /**
+         * Called every time one page of purchase history is received.
+         * @param page purchases in this page
+         * @return true: continue to the next page, false: stop reading
+         */
+        boolean onPage(ArrayList<PurchaseResult> page);
+    }
+
+    /**
+     * Listener for recovering purchases which are not finished by process kill.
+     */
+    public interface OnRecoveryListener {
+        /**
+         * Grant the purchase to the user. It is called for purchases which were received but not granted.
+         * @return true: granted. false: it is tried again on next recovery.
+         */
+        boolean onGrant(PurchaseResult purchase);
+
+        /**
+         * @return true: the product is consumed after it is granted
+         */
+        boolean isConsumable(String productId);
+    }
+
+    /**
+     * Listener for receiving result of async methods.
+     * @param <T> type of result which is same as the sync method
+     */
+    public interface OnResultListener<T> {
+        /**
+         * @param result same as the return value of the sync method. NULL means error state.
+         */
+        void onResult(T result);
+    }
+
+    public BillingController(Context context, OnServiceResponseListener listener) {
+        this(context, listener, null);
+    }
+
+    /**
+     * Use given service instead of binding IInAppBillingService of google play.
+     * It is for testing with a fake service, such as performance test on JVM.
+     * @param service service to use. NULL means binding google play.
+     */
+    public BillingController(Context context, OnServiceResponseListener listener, IInAppBillingService service) {
+        // error check
+        if (context == null || listener == null) {
+            mShared = null;
+            mMainHandler = null;
+            mOwnershipStore = null;
+            mJournal = null;
+            return;
+        }
+
+        // save valuable
+        mOwnershipStore = OwnershipStore.get(context.getFilesDir());
+        // the journal is opened on billing thread by openJournal()
+        mJournal = PurchaseJournal.get(context.getFilesDir());
+        // main looper is not available when it runs on JVM such as benchmark
+        Looper mainLooper = context.getMainLooper();
+        mMainHandler = mainLooper == null ? null : new Handler(mainLooper);
+        mConnection.set(new Connection(context, listener, null, ConnectionState.DISCONNECTED));
+        loadOwnership();
+        openJournal();
+
+        if (service != null) {
+            // use given service
+            mShared = null;
+            onConnected(service);
+            return;
+        }
+
+        // attach to shared connection. it is called back at once if it is already connected.
+        mShared = SharedBillingConnection.get(context);
+        updateConnection(false, null, null, ConnectionState.CONNECTING);
+        mShared.attach(mSharedListener);
+    }
+
+    /**
+     * Read stored ownership on billing thread, not to read the file on main thread.
+     * It is read only once because the store is shared by controllers.
+     */
+    private void loadOwnership() {
+        final OwnershipStore store = mOwnershipStore;
+        if (store.isLoaded()) return;
+
+        getRequestQueue().execute(new BillingRequestQueue.Task<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                store.load();
+                return null;
+            }
+        }, BillingRequestQueue.PRIORITY_USER));
+    }
+
+    /**
+     * Read and open the journal on billing thread, so that getPurchaseResult() on main thread
+     * only appends one record. It is cheap for the second controller, because the journal is shared.
+     */
+    private void openJournal() {
+        final PurchaseJournal journal = mJournal;
+        getRequestQueue().execute(new BillingRequestQueue.Task<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                journal.open();
+                return null;
+            }
+        }, BillingRequestQueue.PRIORITY_USER));
+    }
+
+    /**
+     * Compact the journal on billing thread when finished records are piled up.
+     * The journal does not compact itself, because it is also written on main thread.
+     */
+    private void compactJournalLater() {
+        final PurchaseJournal journal = mJournal;
+        // released already
+        BillingRequestQueue queue = mRequestQueue;
+        if (journal == null || queue == null || !journal.needsCompaction()) return;
+
+        queue.execute(new BillingRequestQueue.Task<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                // it may be compacted by the task which is added before
+                if (journal.needsCompaction()) journal.compact();
+                return null;
+            }
+        }, BillingRequestQueue.PRIORITY_BACKGROUND));
+    }
+
+    /**
+     * Called when the service is connected. It is also called by tests with a fake service.
+     */
+    void onConnected(IInAppBillingService service) {
+        if (!updateConnection(false, null, service, ConnectionState.CONNECTING)) return;
+        // failures of the old connection are not kept
+        for (CircuitBreaker breaker : mBreakers.values()) {
+            breaker.reset();
+        }
+
+        // attached to the shared connection which is probed already. no binder call and no thread is needed.
+        BillingCapabilities known = mShared == null ? null : mShared.getCapabilities(service);
+        if (known != null) {
+            applyCapabilities(service, known);
+            return;
+        }
+
+        // api support check (it is binder call, so do it on billing thread)
+        getRequestQueue().execute(new BillingRequestQueue.Task<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                checkBillingSupported();
+                return null;
+            }
+        }, BillingRequestQueue.PRIORITY_USER));
+    }
+
+    /**
+     * Called when the service is disconnected. It is also called by tests with a fake service.
+     */
+    void onDisconnected() {
+        // put null into stub holder when service is disconnected
+        if (!updateConnection(false, null, null, ConnectionState.CONNECTING)) return;
+        // reconnection is done by the shared connection
+        notifyServiceState(false);
+    }
+
+    /**
+     * Called when the service cannot be bound, such as google play is not installed.
+     * It is also called by tests. The listener receives capabilities which support nothing.
+     */
+    void onBindFailed() {
+        if (!updateConnection(false, null, null, ConnectionState.UNSUPPORTED)) return;
+        BillingCapabilities capabilities =
+                new BillingCapabilities(false, false, BillingCapabilities.UNKNOWN_VERSION_CODE);
+        mCapabilities = capabilities;
+        notifyServiceState(false, capabilities);
+    }
+
+    /**
+     * Get current state of connection to the billing service.
+     */
+    public ConnectionState getConnectionState() {
+        return mConnection.get().state;
+    }
+
+    /**
+     * Publish new snapshot of the connection. Nothing is changed after release().
+     * @param onlyFrom true: change only when current service is from, for dropping result of old service
+     * @param from expected current service
+     * @param service new service
+     * @param state new state
+     * @return true: changed
+     */
+    private boolean updateConnection(boolean onlyFrom, IInAppBillingService from,
+                                     IInAppBillingService service, ConnectionState state) {
+        Connection current;
+        do {
+            current = mConnection.get();
+            if (current.isReleased()) return false;
+            if (onlyFrom && current.service != from) return false;
+        } while (!mConnection.compareAndSet(current,
+                new Connection(current.context, current.listener, service, state)));
+
+        onStateChanged();
+        return true;
+    }
+
+    private void onStateChanged() {
+        ArrayList<BillingRequestQueue.Task<?>> tasks = null;
+        synchronized (mStateLock) {
+            // latest state, because it can be changed again before this lock
+            ConnectionState state = mConnection.get().state;
+            if (state != ConnectionState.CONNECTING && !mPendingTasks.isEmpty()) {
+                tasks = new ArrayList<>(mPendingTasks);
+                mPendingTasks.clear();
+            }
+            mStateLock.notifyAll();
+        }
+
+        // replay async calls which are made while connecting
+        if (tasks != null) {
+            boolean released = mConnection.get().isReleased();
+            for (BillingRequestQueue.Task<?> task : tasks) {
+                if (released) {
+                    task.cancel(false);
+                } else {
+                    getRequestQueue().execute(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until connecting is finished. It does not wait on main thread and billing thread.
+     */
+    private void waitForConnection() {
+        if (mConnection.get().state != ConnectionState.CONNECTING) return;
+        // main looper is NULL on JVM, and then no thread is main thread
+        Handler handler = mMainHandler;
+        if (handler != null && Looper.myLooper() == handler.getLooper()) return;
+        if (Thread.currentThread() == mBillingThread) return;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECTION_WAIT_MILLIS);
+        synchronized (mStateLock) {
+            while (mConnection.get().state == ConnectionState.CONNECTING) {
+                long rest = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (rest <= 0) break;
+                try {
+                    mStateLock.wait(rest);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Check supported API versions. It should be called on billing thread.
+     */
+    private void checkBillingSupported() {
+        Connection connection = mConnection.get();
+        IInAppBillingService service = connection.service;
+        Context context = connection.context;
+        if (service == null || context == null) return;
+
+        // the shared connection is probed already by another controller, or by last launch
+        BillingCapabilities capabilities = mShared == null ? null : mShared.getCapabilities(service);
+        if (capabilities == null) {
+            int versionCode = BillingCapabilities.getPlayStoreVersionCode(context);
+            capabilities = BillingCapabilities.load(context, versionCode);
+            if (capabilities == null) {
+                capabilities = probeBillingSupported(service, context, versionCode);
+                if (capabilities == null) return;
+            }
+        }
+        if (mShared != null) mShared.setCapabilities(service, capabilities);
+        applyCapabilities(service, capabilities);
+    }
+
+    /**
+     * Publish resolved capabilities of the service.
+     */
+    private void applyCapabilities(final IInAppBillingService service, BillingCapabilities capabilities) {
+        if (!capabilities.isInAppSupported()) {
+            // unsupport API version. this class cannot work well.
+            if (updateConnection(true, service, service, ConnectionState.UNSUPPORTED)) {
+                mCapabilities = capabilities;
+                notifyServiceState(false, capabilities);
+            }
+            return;
+        }
+        if (!updateConnection(true, service, service, ConnectionState.CONNECTED)) return;
+        mCapabilities = capabilities;
+        notifyServiceState(true, capabilities);
+
+        // reconcile stored ownership with live purchases, once per binding of the shared connection
+        if (mShared != null && !mShared.beginReconcile(service)) return;
+        final boolean subs = capabilities.isSubscriptionsSupported();
+        dispatch(new BillingRequestQueue.Task<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                boolean success = getPurchaseHistory(true) != null;
+                if (subs) success &= getPurchaseHistory(false) != null;
+                return success;
+            }
+        }, BillingRequestQueue.PRIORITY_BACKGROUND) {
+            @Override
+            protected void done() {
+                if (mShared == null || isReconciled(this)) return;
+                // released or failed. the next attached controller tries again.
+                mShared.cancelReconcile(service);
+            }
+        });
+    }
+
+    private static boolean isReconciled(Future<Boolean> future) {
+        if (future.isCancelled()) return false;
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Call isBillingSupported() for inapp and subs, and save the result if it is not temporary one.
+     * @param versionCode version code of google play for saving the result
+     * @return capabilities of the service. NULL means the service is dead.
+     */
+    private BillingCapabilities probeBillingSupported(IInAppBillingService service, Context context, int versionCode) {
+        long start = System.nanoTime();
+        try {
+            // check for inapp version
+            int inapp = service.isBillingSupported(
+                    API_VERSION_FOR_INAPP,
+                    context.getPackageName(),
+                    TYPE_INAPP);
+            reportCall(BillingMetrics.Operation.IS_BILLING_SUPPORTED, start, inapp, 0, 0);
+
+            // check for subs version
+            start = System.nanoTime();
+            int subs = service.isBillingSupported(
+                    API_VERSION_FOR_SUBS,
+                    context.getPackageName(),
+                    TYPE_SUBSCRIPTIONS);
+            reportCall(BillingMetrics.Operation.IS_BILLING_SUPPORTED, start, subs, 0, 0);
+
+            BillingCapabilities capabilities = new BillingCapabilities(inapp == BILLING_RESPONSE_RESULT_OK,
+                    subs == BILLING_RESPONSE_RESULT_OK, versionCode);
+            // unsupported inapp is not saved by BillingCapabilities.save(), and errors of subs are tried again
+            if (subs == BILLING_RESPONSE_RESULT_OK || subs == BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE) {
+                capabilities.save(context);
+            }
+            return capabilities;
+
+        } catch (RemoteException e) {
+            // service is dead. try again later.
+            reportCall(BillingMetrics.Operation.IS_BILLING_SUPPORTED, start, -1, 0, 0);
+            if (updateConnection(true, service, null, ConnectionState.CONNECTING)) {
+                notifyServiceState(false);
+                if (mShared != null) mShared.reportDead(service);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Get capabilities of the billing service.
+     * @return capabilities. NULL until the service is checked first.
+     */
+    public BillingCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    /**
+     * Notify service state to the listener on main thread.
+     */
+    private void notifyServiceState(boolean connected) {
+        notifyServiceState(connected, null);
+    }
+
+    /**
+     * Notify service state to the listener on main thread.
+     * @param capabilities resolved capabilities for OnCapabilitiesListener. NULL if it is not resolved.
+     */
+    private void notifyServiceState(final boolean connected, final BillingCapabilities capabilities) {
+        Handler handler = mMainHandler;
+        if (handler == null) return;
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnServiceResponseListener listener = mConnection.get().listener;
+                if (listener == null) return;
+                if (connected) {
+                    listener.onServiceConnected();
+                } else {
+                    listener.onServiceDisconnected();
+                }
+                if (capabilities != null && listener instanceof OnCapabilitiesListener) {
+                    ((OnCapabilitiesListener) listener).onCapabilitiesResolved(capabilities);
+                }
+            }
+        });
+    }
+
+    /**
+     * Set the thread where OnResultListener of async methods is called.
+     * @param mainThread true: main thread (default), false: billing thread
+     */
+    public void setDeliverOnMainThread(boolean mainThread) {
+        mDeliverOnMainThread = mainThread;
+    }
+
+    private BillingRequestQueue getRequestQueue() {
+        BillingRequestQueue queue = mRequestQueue;
+        if (queue != null) return queue;
+
+        synchronized (this) {
+            if (mRequestQueue == null) {
+                mRequestQueue = new BillingRequestQueue(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "BillingController-Worker");
+                        thread.setDaemon(true);
+                        mBillingThread = thread;
+                        return thread;
+                    }
+                });
+            }
+            return mRequestQueue;
+        }
+    }
+
+    /**
+     * Make task which delivers its result to listener.
+     * @param task NULL for the task which is completed by merged request
+     */
+    private <T> BillingRequestQueue.Task<T> newTask(Callable<T> task, int priority, final OnResultListener<T> listener) {
+        BillingRequestQueue.Task<T> ret;
+        if (task == null) {
+            ret = new BillingRequestQueue.Task<T>(priority) {
+                @Override
+                protected void done() {
+                    onTaskDone(this, listener);
+                }
+            };
+        } else {
+            ret = new BillingRequestQueue.Task<T>(task, priority) {
+                @Override
+                protected void done() {
+                    onTaskDone(this, listener);
+                }
+            };
+        }
+        return ret;
+    }
+
+    private <T> void onTaskDone(Future<T> future, OnResultListener<T> listener) {
+        if (listener == null || future.isCancelled()) return;
+
+        T result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "ExecutionException on async call", e.getCause());
+            result = null;
+        }
+        deliver(listener, result);
+    }
+
+    /**
+     * Put task into the request queue. It is held while connecting.
+     */
+    private void dispatch(BillingRequestQueue.Task<?> task) {
+        synchronized (mStateLock) {
+            Connection connection = mConnection.get();
+            if (connection.isReleased()) {
+                task.cancel(false);
+                return;
+            }
+            if (connection.state == ConnectionState.CONNECTING) {
+                // replayed when connecting is finished
+                mPendingTasks.add(task);
+                return;
+            }
+        }
+        getRequestQueue().execute(task);
+    }
+
+    /**
+     * Run task on billing thread and deliver its result to listener.
+     */
+    private <T> Future<T> submit(Callable<T> task, int priority, OnResultListener<T> listener) {
+        BillingRequestQueue.Task<T> future = newTask(task, priority, listener);
+        dispatch(future);
+        return future;
+    }
+
+    /**
+     * Run request on billing thread with merging other waiting requests of the same key.
+     */
+    private <R, T> Future<T> submitMerged(String key, int priority, Collection<String> items,
+                                          BillingRequestQueue.Loader<R> loader,
+                                          BillingRequestQueue.Extractor<R, T> extractor,
+                                          OnResultListener<T> listener) {
+        BillingRequestQueue.Task<T> future = newTask(null, priority, listener);
+        if (mConnection.get().isReleased()) {
+            future.cancel(false);
+            return future;
+        }
+        BillingRequestQueue.Task<?> batch = getRequestQueue().merge(key, priority, items, loader, extractor, future);
+        if (batch != null) dispatch(batch);
+        return future;
+    }
+
+    /**
+     * Run sync call on billing thread at PRIORITY_USER and wait for it,
+     * so that it is serialized with queued requests and runs before waiting ones.
+     * It runs on the calling thread when it is called on billing thread, or after release().
+     * @param error result when it cannot be finished
+     */
+    private <T> T callOnBillingThread(Callable<T> call, T error) {
+        BillingRequestQueue queue = null;
+        if (Thread.currentThread() != mBillingThread) {
+            // release() shuts down the queue with this lock, so it is never made again after that
+            synchronized (this) {
+                if (!mConnection.get().isReleased()) queue = getRequestQueue();
+            }
+        }
+        if (queue == null) {
+            try {
+                return call.call();
+            } catch (Exception e) {
+                Log.e(TAG, "Exception on sync call", e);
+                return error;
+            }
+        }
+
+        BillingRequestQueue.Task<T> task = new BillingRequestQueue.Task<>(call, BillingRequestQueue.PRIORITY_USER);
+        queue.execute(task);
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.cancel(false);
+            return error;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "ExecutionException on sync call", e.getCause());
+            return error;
+        } catch (CancellationException e) {
+            // released while waiting
+            return error;
+        }
+    }
+
+    private <T> void deliver(final OnResultListener<T> listener, final T result) {
+        Handler handler = mMainHandler;
+        if (mDeliverOnMainThread && handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onResult(result);
+                }
+            });
+        } else {
+            listener.onResult(result);
+        }
+    }
+
+    /**
+     * Async version of getProductsInfo(String, boolean).
+     * It is merged with other waiting requests of the same type into one getSkuDetails() call.
+     * @param listener receiver of the result. it can be null if you use returned Future.
+     * @return Future of the result
+     */
+    public Future<ArrayList<ProductInfo>> getProductsInfoAsync(
+            String productId, boolean inapp, OnResultListener<ArrayList<ProductInfo>> listener) {
+        return submitMerged(skuRequestKey(inapp), BillingRequestQueue.PRIORITY_NORMAL,
+                Collections.singletonList(productId), newSkuLoader(inapp),
+                new BillingRequestQueue.Extractor<HashMap<String, ProductInfo>, ArrayList<ProductInfo>>() {
+                    @Override
+                    public ArrayList<ProductInfo> extract(HashMap<String, ProductInfo> merged, Set<String> items) {
+                        if (merged == null) return null;
+                        ArrayList<ProductInfo> ret = new ArrayList<>();
+                        for (String productId : items) {
+                            ProductInfo info = merged.get(productId);
+                            if (info != null) ret.add(info);
+                        }
+                        return ret;
+                    }
+                }, listener);
+    }
+
+    /**
+     * Async version of getProductsInfo(Collection, boolean).
+     * It is merged with other waiting requests of the same type into one getSkuDetails() call.
+     * @param listener receiver of the result. it can be null if you use returned Future.
+     * @return Future of the result
+     */
+    public Future<HashMap<String, ProductInfo>> getProductsInfoAsync(
+            Collection<String> productIds, boolean inapp, OnResultListener<HashMap<String, ProductInfo>> listener) {
+        return submitMerged(skuRequestKey(inapp), BillingRequestQueue.PRIORITY_NORMAL,
+                productIds == null ? Collections.<String>emptyList() : productIds, newSkuLoader(inapp),
+                new BillingRequestQueue.Extractor<HashMap<String, ProductInfo>, HashMap<String, ProductInfo>>() {
+                    @Override
+                    public HashMap<String, ProductInfo> extract(HashMap<String, ProductInfo> merged, Set<String> items) {
+                        if (merged == null) return null;
+                        HashMap<String, ProductInfo> ret = new HashMap<>();
+                        for (String productId : items) {
+                            ProductInfo info = merged.get(productId);
+                            if (info != null) ret.put(productId, info);
+                        }
+                        return ret;
+                    }
+                }, listener);
+    }
+
+    private static String skuRequestKey(boolean inapp) {
+        return "getSkuDetails:" + typeOf(inapp);
+    }
+
+    private BillingRequestQueue.Loader<HashMap<String, ProductInfo>> newSkuLoader(final boolean inapp) {
+        return new BillingRequestQueue.Loader<HashMap<String, ProductInfo>>() {
+            @Override
+            public HashMap<String, ProductInfo> load(Set<String> items) throws Exception {
+                return getProductsInfo(items, inapp);
+            }
+        };
+    }
+
+    /**
+     * Async version of getPurchaseHistory(boolean).
+     * It shares one getPurchases() call with other waiting requests of the same type.
+     * @param listener receiver of the result. it can be null if you use returned Future.
+     * @return Future of the result
+     */
+    public Future<ArrayList<PurchaseResult>> getPurchaseHistoryAsync(
+            boolean inapp, OnResultListener<ArrayList<PurchaseResult>> listener) {
+        return getPurchaseHistoryAsync(inapp, listener, BillingRequestQueue.PRIORITY_NORMAL);
+    }
+
+    private Future<ArrayList<PurchaseResult>> getPurchaseHistoryAsync(
+            final boolean inapp, OnResultListener<ArrayList<PurchaseResult>> listener, int priority) {
+        return submitMerged("getPurchases:" + typeOf(inapp), priority,
+                Collections.<String>emptyList(),
+                new BillingRequestQueue.Loader<ArrayList<PurchaseResult>>() {
+                    @Override
+                    public ArrayList<PurchaseResult> load(Set<String> items) throws Exception {
+                        return getPurchaseHistory(inapp);
+                    }
+                },
+                new BillingRequestQueue.Extractor<ArrayList<PurchaseResult>, ArrayList<PurchaseResult>>() {
+                    @Override
+                    public ArrayList<PurchaseResult> extract(ArrayList<PurchaseResult> merged, Set<String> items) {
+                        // each caller has its own list
+                        return merged == null ? null : new ArrayList<>(merged);
+                    }
+                }, listener);
+    }
+
+    /**
+     * Async version of consumePurchase().
+     * @param listener receiver of the result. it can be null if you use returned Future.
+     * @return Future of the result
+     */
+    public Future<Integer> consumePurchaseAsync(final PurchaseResult target, OnResultListener<Integer> listener) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return consumePurchase(target);
+            }
+        }, BillingRequestQueue.PRIORITY_NORMAL, listener);
+    }
+
+    /**
+     * Async version of buy().
+     * getBuyIntent() is called on billing thread before other waiting requests,
+     * then google play is started on main thread.
+     * @param productId target product id
+     * @param inapp the product is inapp or subscription
+     * @param target your activity
+     * @return Future of the request. It does not wait for the purchase result.
+     */
+    public Future<PendingIntent> buyAsync(String productId, boolean inapp, Activity target) {
+        return buyAsync(productId, inapp, null, target);
+    }
+
+    /**
+     * Async version of buy() with developerPayload.
+     * @param developerPayload string which is returned in PurchaseResult. NULL means unique one is made,
+     *                         which the app cannot verify. Use newDeveloperPayload() to keep it.
+     * @return Future of the request. It does not wait for the purchase result.
+     */
+    public Future<PendingIntent> buyAsync(final String productId, final boolean inapp,
+                                          final String developerPayload, final Activity target) {
+        // prefetched one is started without waiting for the queue
+        BuyIntentCache.HeldIntent held = mBuyIntents.take(productId, typeOf(inapp), developerPayload);
+        if (held != null && target != null) {
+            final PendingIntent pending_intent = held.intent;
+            target.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    startBuyIntent(pending_intent, target);
+                }
+            });
+            BillingRequestQueue.Task<PendingIntent> ret = newTask(null, BillingRequestQueue.PRIORITY_USER, null);
+            ret.complete(pending_intent);
+            return ret;
+        }
+
+        return submit(new Callable<PendingIntent>() {
+            @Override
+            public PendingIntent call() throws Exception {
+                final PendingIntent pending_intent = obtainBuyIntent(productId, inapp, developerPayload);
+                if (pending_intent != null && target != null) {
+                    target.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            startBuyIntent(pending_intent, target);
+                        }
+                    });
+                }
+                return pending_intent;
+            }
+        }, BillingRequestQueue.PRIORITY_USER, null);
+    }
+
+    /**
+     * Get valiable product list.
+     * @return ArrayList of ProductInfo. NULL means error state.
+     */
+    public ArrayList<ProductInfo> getProductsInfo(String productId, boolean inapp) {
+        // error check
+        waitForConnection();
+        if (isError() || productId == null) return null;
+
+        HashMap<String, ProductInfo> infos = getProductsInfo(Collections.singletonList(productId), inapp);
+        return infos == null ? null : new ArrayList<>(infos.values());
+    }
+
+    /**
+     * Get valiable product list of several products at once.
+     * Cached products are returned without calling the service.
+     * The rest are packed into ITEM_ID_LIST up to SKU_DETAILS_CHUNK_SIZE per call,
+     * and the chunks are requested concurrently.
+     * It runs on billing thread before waiting async requests, and the calling thread waits for it.
+     * @param productIds target product ids
+     * @param inapp the products are inapp or subscription
+     * @return HashMap of ProductInfo keyed by productId. NULL means error state.
+     */
+    public HashMap<String, ProductInfo> getProductsInfo(final Collection<String> productIds, final boolean inapp) {
+        waitForConnection();
+        return callOnBillingThread(new Callable<HashMap<String, ProductInfo>>() {
+            @Override
+            public HashMap<String, ProductInfo> call() throws Exception {
+                return queryProductsInfo(productIds, inapp);
+            }
+        }, null);
+    }
+
+    private HashMap<String, ProductInfo> queryProductsInfo(Collection<String> productIds, boolean inapp) {
+        long span = beginSpan();
+        HashMap<String, ProductInfo> ret = loadProductsInfo(productIds, inapp);
+        endSpan(span, BillingTrace.Operation.GET_PRODUCTS_INFO,
+                ret == null ? -1 : BILLING_RESPONSE_RESULT_OK, ret == null ? 0 : ret.size(), 0);
+        return ret;
+    }
+
+    private HashMap<String, ProductInfo> loadProductsInfo(Collection<String> productIds, boolean inapp) {
+        // error check
+        waitForConnection();
+        if (isError() || productIds == null) return null;
+
+        SkuDetailsCache cache = mSkuDetailsCache;
+        if (cache == null) {
+            return requestProductsInfo(productIds, inapp);
+        }
+
+        String type = typeOf(inapp);
+        HashMap<String, ProductInfo> ret = new HashMap<>();
+        ArrayList<String> loadIds = new ArrayList<>();
+        for (String productId : new LinkedHashSet<>(productIds)) {
+            if (productId == null) continue;
+
+            ProductInfo cached = cache.get(productId, type);
+            if (cached != null) {
+                ret.put(productId, cached);
+                continue;
+            }
+            // it is not in the result, same as the service answers
+            if (cache.isUnavailable(productId, type)) continue;
+            loadIds.add(productId);
+        }
+
+        // same products of concurrent requests are merged by the queue, because this runs on billing thread
+        if (!loadIds.isEmpty()) {
+            HashMap<String, ProductInfo> loaded = requestProductsInfo(loadIds, inapp);
+            if (loaded == null) return staleProductsInfo(cache, productIds, type);
+            putProductsInfo(cache, loadIds, loaded, type);
+            ret.putAll(loaded);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Cache loaded products, and requested ones which are not loaded as unavailable.
+     */
+    private static void putProductsInfo(SkuDetailsCache cache, Collection<String> requestedIds,
+                                        HashMap<String, ProductInfo> loaded, String type) {
+        for (ProductInfo info : loaded.values()) {
+            cache.put(info);
+        }
+        for (String productId : requestedIds) {
+            if (!loaded.containsKey(productId)) cache.putUnavailable(productId, type);
+        }
+    }
+
+    /**
+     * Answer last-good product info while getSkuDetails() fails fast.
+     * @return HashMap of ProductInfo keyed by productId. NULL if the circuit is closed, or any product is not cached.
+     */
+    private HashMap<String, ProductInfo> staleProductsInfo(SkuDetailsCache cache, Collection<String> productIds,
+                                                           String type) {
+        if (!isCircuitOpen(BillingMetrics.Operation.GET_SKU_DETAILS)) return null;
+
+        HashMap<String, ProductInfo> ret = new HashMap<>();
+        for (String productId : productIds) {
+            if (productId == null) continue;
+            ProductInfo info = cache.peekStale(productId, type);
+            if (info == null) return null;
+            ret.put(productId, info);
+        }
+        Log.w(TAG, "Answer cached products on getProductsInfo()");
+        return ret;
+    }
+
+    /**
+     * Set cache of product info. NULL disables caching.
+     */
+    public void setSkuDetailsCache(SkuDetailsCache cache) {
+        mSkuDetailsCache = cache;
+    }
+
+    /**
+     * Get cache of product info. You can check hit/miss/eviction count with it.
+     * @return NULL if caching is disabled
+     */
+    public SkuDetailsCache getSkuDetailsCache() {
+        return mSkuDetailsCache;
+    }
+
+    /**
+     * Request product info to the service without cache.
+     * @return HashMap of ProductInfo keyed by productId. NULL means error state.
+     */
+    private HashMap<String, ProductInfo> requestProductsInfo(Collection<String> productIds, boolean inapp) {
+        // split into chunks (duplicated ids are requested only once)
+        ArrayList<ArrayList<String>> chunks = new ArrayList<>();
+        ArrayList<String> chunk = null;
+        for (String productId : new LinkedHashSet<>(productIds)) {
+            if (productId == null) continue;
+            if (chunk == null || chunk.size() >= SKU_DETAILS_CHUNK_SIZE) {
+                chunk = new ArrayList<>(SKU_DETAILS_CHUNK_SIZE);
+                chunks.add(chunk);
+            }
+            chunk.add(productId);
+        }
+
+        HashMap<String, ProductInfo> ret = new HashMap<>();
+        if (chunks.size() <= 1) {
+            // no need to go to other thread
+            if (!chunks.isEmpty() && !mergeProductsInfo(ret, getSkuDetails(chunks.get(0), inapp))) {
+                return null;
+            }
+            return ret;
+        }
+
+        // send chunks concurrently
+        ExecutorService executor = getParallelExecutor();
+        if (executor == null) return null;
+        ArrayList<Future<ArrayList<ProductInfo>>> futures = new ArrayList<>(chunks.size());
+        boolean success = true;
+        try {
+            for (final ArrayList<String> request_id_list : chunks) {
+                final boolean isInapp = inapp;
+                futures.add(executor.submit(new Callable<ArrayList<ProductInfo>>() {
+                    @Override
+                    public ArrayList<ProductInfo> call() throws Exception {
+                        return getSkuDetails(request_id_list, isInapp);
+                    }
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            // released while submitting
+            Log.w(TAG, "RejectedExecutionException on getProductsInfo()");
+            success = false;
+        }
+
+        for (Future<ArrayList<ProductInfo>> future : futures) {
+            if (!success) break;
+            try {
+                success = mergeProductsInfo(ret, future.get());
+            } catch (InterruptedException e) {
+                Log.e(TAG, "InterruptedException on getProductsInfo()");
+                Thread.currentThread().interrupt();
+                success = false;
+            } catch (ExecutionException | CancellationException e) {
+                Log.e(TAG, e.getClass().getSimpleName() + " on getProductsInfo()");
+                success = false;
+            }
+        }
+
+        if (!success) {
+            for (Future<ArrayList<ProductInfo>> future : futures) {
+                future.cancel(true);
+            }
+            return null;
+        }
+        return ret;
+    }
+
+    private boolean mergeProductsInfo(HashMap<String, ProductInfo> to, List<ProductInfo> from) {
+        if (from == null) return false;
+        for (ProductInfo info : from) {
+            to.put(info.getProductId(), info);
+        }
+        return true;
+    }
+
+    /**
+     * @return executor for parallel calls. NULL after release().
+     */
+    private ExecutorService getParallelExecutor() {
+        ExecutorService executor = mParallelExecutor;
+        if (executor != null) return executor;
+
+        synchronized (this) {
+            // release() shuts down the pool with this lock, so it is never made again after that
+            if (mConnection.get().isReleased()) return null;
+            if (mParallelExecutor == null) {
+                mParallelExecutor = Executors.newFixedThreadPool(PARALLEL_CALL_THREADS, new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "BillingController-Parallel-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return mParallelExecutor;
+        }
+    }
+
+    /**
+     * Call getSkuDetails() once with given product ids.
+     * @return ArrayList of ProductInfo. NULL means error state.
+     */
+    private ArrayList<ProductInfo> getSkuDetails(ArrayList<String> request_id_list, boolean inapp) {
+        // error check
+        Connection connection = mConnection.get();
+        IInAppBillingService service = connection.service;
+        Context context = connection.context;
+        if (service == null || context == null) return null;
+
+        Bundle query = new Bundle();
+        query.putStringArrayList("ITEM_ID_LIST", request_id_list);
+
+        Bundle details;
+
+        int apiVersion = inapp ? API_VERSION_FOR_INAPP : API_VERSION_FOR_SUBS;
+        String type = typeOf(inapp);
+        CircuitBreaker breaker = mBreakers.get(BillingMetrics.Operation.GET_SKU_DETAILS);
+        if (!breaker.allowRequest()) {
+            Log.w(TAG, "Circuit is open on getProductsInfo()");
+            return null;
+        }
+        long start = System.nanoTime();
+        int responseCode = -1;
+        try {
+            details = service.getSkuDetails(
+                    apiVersion,
+                    context.getPackageName(),
+                    type,
+                    query);
+            // NULL bundle is counted as failure of the service
+            if (details != null) responseCode = details.getInt(RESPONSE_CODE);
+        } catch (RemoteException e) {
+            reportCall(BillingMetrics.Operation.GET_SKU_DETAILS, start, -1, request_id_list.size(), 0);
+            Log.e(TAG, "RemoteException on getProductsInfo() type=" + type + " items=" + request_id_list.size(), e);
+            return null;
+        } finally {
+            // always recorded, otherwise the probe of half open state is never finished
+            breaker.onResult(responseCode);
+        }
+        long callNanos = System.nanoTime() - start;
+
+        if (details == null) {
+            reportCallNanos(BillingMetrics.Operation.GET_SKU_DETAILS, callNanos, -1, 0, 0);
+            Log.e(TAG, "NULL bundle on getProductsInfo() type=" + type);
+            return null;
+        }
+        if (responseCode == BILLING_RESPONSE_RESULT_OK){
+            // get product list
+            start = System.nanoTime();
+            ArrayList<String> response_list = details.getStringArrayList("DETAILS_LIST");
+            ArrayList<ProductInfo> ret = new ArrayList<>();
+
+            for( String row : response_list ){
+                try {
+                    ret.add(new ProductInfo(row));
+                } catch (JSONException e) {
+                    Log.e(TAG, "JSONException Exception on getProductsInfo()");
+                    return null;
+                }
+            }
+            reportCallNanos(BillingMetrics.Operation.GET_SKU_DETAILS, callNanos, responseCode,
+                    response_list.size(), System.nanoTime() - start);
+            return ret;
+        } else {
+            reportCallNanos(BillingMetrics.Operation.GET_SKU_DETAILS, callNanos, responseCode, 0, 0);
+            Log.w(TAG, "This time is not RESPONSE_OK(0) -> " + responseCode);
+        }
+
+        return null;
+    }
+
+    /**
+     * get history of purchase(billing).
+     * All pages are collected by following continuation tokens.
+     * It runs on billing thread before waiting async requests, and the calling thread waits for it.
+     * @return ArrayList of PurchaseResult. NULL means error state.
+     */
+    public ArrayList<PurchaseResult> getPurchaseHistory(final boolean inapp) {
+        waitForConnection();
+        return callOnBillingThread(new Callable<ArrayList<PurchaseResult>>() {
+            @Override
+            public ArrayList<PurchaseResult> call() throws Exception {
+                return readPurchaseHistory(inapp);
+            }
+        }, null);
+    }
+
+    private ArrayList<PurchaseResult> readPurchaseHistory(boolean inapp) {
+        final ArrayList<PurchaseResult> ret = new ArrayList<>();
+        boolean success = readPurchaseHistory(inapp, new OnPurchaseHistoryPageListener() {
+            @Override
+            public boolean onPage(ArrayList<PurchaseResult> page) {
+                ret.addAll(page);
+                return true;
+            }
+        });
+        if (!success) {
+            // answer last-good purchases while getPurchases() fails fast
+            ArrayList<PurchaseResult> last = inapp ? mLastInAppPurchases : mLastSubsPurchases;
+            if (last == null || !isCircuitOpen(BillingMetrics.Operation.GET_PURCHASES)) return null;
+            Log.w(TAG, "Answer last purchases on getPurchaseHistory()");
+            return new ArrayList<>(last);
+        }
+
+        if (inapp) {
+            mLastInAppPurchases = new ArrayList<>(ret);
+        } else {
+            mLastSubsPurchases = new ArrayList<>(ret);
+        }
+        String type = typeOf(inapp);
+        reconcileOwnership(type, ret);
+        updateEntitlements(type, ret);
+        publishChanges(type, ret);
+        return ret;
+    }
+
+    /**
+     * get history of purchase(billing) page by page.
+     * The next page is requested with INAPP_CONTINUATION_TOKEN only after the listener accepted current page,
+     * so whole history is never held by this class.
+     * It runs on billing thread before waiting async requests, and the listener is called on billing thread.
+     * The calling thread waits until all pages are read.
+     * @param inapp the products are inapp or subscription
+     * @param listener receiver of each page
+     * @return true: all requested pages were read successfully, false: error state
+     */
+    public boolean getPurchaseHistory(final boolean inapp, final OnPurchaseHistoryPageListener listener) {
+        waitForConnection();
+        return callOnBillingThread(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return readPurchaseHistory(inapp, listener);
+            }
+        }, false);
+    }
+
+    private boolean readPurchaseHistory(boolean inapp, OnPurchaseHistoryPageListener listener) {
+        // error check
+        if (isError() || listener == null) return false;
+
+        long span = beginSpan();
+        int pages = 0, items = 0;
+        String continuationToken = null;
+        do {
+            PurchasePage page = getPurchases(inapp, continuationToken);
+            if (page == null) {
+                endSpan(span, BillingTrace.Operation.GET_PURCHASE_HISTORY, -1, items, pages);
+                return false;
+            }
+            pages++;
+            items += page.purchases.size();
+
+            if (!listener.onPage(page.purchases)) {
+                // stopped by listener
+                break;
+            }
+
+            continuationToken = page.continuationToken;
+        } while (continuationToken != null && !continuationToken.isEmpty());
+
+        endSpan(span, BillingTrace.Operation.GET_PURCHASE_HISTORY, BILLING_RESPONSE_RESULT_OK, items, pages);
+        return true;
+    }
+
+    /**
+     * One page of getPurchases().
+     */
+    private static final class PurchasePage {
+        final ArrayList<PurchaseResult> purchases;
+        final String continuationToken;
+
+        PurchasePage(ArrayList<PurchaseResult> purchases, String continuationToken) {
+            this.purchases = purchases;
+            this.continuationToken = continuationToken;
+        }
+    }
+
+    /**
+     * Call getPurchases() once and parse the page.
+     * @return received page. NULL means error state.
+     */
+    private PurchasePage getPurchases(boolean inapp, String continuationToken) {
+        // error check
+        Connection connection = mConnection.get();
+        IInAppBillingService service = connection.service;
+        Context context = connection.context;
+        if (service == null || context == null) return null;
+
+        Bundle owned_items;
+        int apiVersion = inapp ? API_VERSION_FOR_INAPP : API_VERSION_FOR_SUBS;
+        String type = typeOf(inapp);
+        CircuitBreaker breaker = mBreakers.get(BillingMetrics.Operation.GET_PURCHASES);
+        if (!breaker.allowRequest()) {
+            Log.w(TAG, "Circuit is open on getPurchaseHistory()");
+            return null;
+        }
+        long start = System.nanoTime();
+        int responseCode = -1;
+        try {
+            owned_items = service.getPurchases(
+                    apiVersion,
+                    context.getPackageName(),
+                    type,
+                    continuationToken);
+            // NULL bundle is counted as failure of the service
+            if (owned_items != null) responseCode = owned_items.getInt(RESPONSE_CODE);
+        } catch (RemoteException e) {
+            reportCall(BillingMetrics.Operation.GET_PURCHASES, start, -1, 0, 0);
+            Log.e(TAG, "RemoteException on getPurchaseHistory() type=" + type
+                    + " continued=" + (continuationToken != null), e);
+            return null;
+        } finally {
+            // always recorded, otherwise the probe of half open state is never finished
+            breaker.onResult(responseCode);
+        }
+        long callNanos = System.nanoTime() - start;
+
+        if (owned_items == null) {
+            reportCallNanos(BillingMetrics.Operation.GET_PURCHASES, callNanos, -1, 0, 0);
+            Log.e(TAG, "NULL bundle on getPurchaseHistory() type=" + type);
+            return null;
+        }
+        if( responseCode != BILLING_RESPONSE_RESULT_OK ) {
+            reportCallNanos(BillingMetrics.Operation.GET_PURCHASES, callNanos, responseCode, 0, 0);
+            Log.w(TAG, "This time is not RESPONSE_OK(0) -> " + responseCode);
+            return null;
+        }
+
+        start = System.nanoTime();
+        ArrayList<String> data_list = owned_items.getStringArrayList("INAPP_PURCHASE_DATA_LIST");
+        ArrayList<String> signature_list = owned_items.getStringArrayList(INAPP_DATA_SIGNATURE_LIST);
+        ArrayList<PurchaseResult> purchases = new ArrayList<>(data_list == null ? 0 : data_list.size());
+        if (data_list != null) {
+            for (int i = 0; i < data_list.size(); i++) {
+                String signature = signature_list != null && i < signature_list.size() ? signature_list.get(i) : null;
+                try {
+                    purchases.add(new PurchaseResult(data_list.get(i), signature));
+                } catch (JSONException e) {
+                    Log.e(TAG, "JSON Exception on getPurchaseHistory()");
+                    return null;
+                }
+            }
+        }
+        PurchaseVerifier verifier = mVerifier;
+        if (verifier != null) {
+            purchases = verifier.verifyAll(purchases, getParallelExecutor());
+            if (purchases == null) {
+                // not an empty page. stored ownership and entitlements must be kept.
+                Log.w(TAG, "Verification failed on getPurchaseHistory()");
+                return null;
+            }
+        }
+        reportCallNanos(BillingMetrics.Operation.GET_PURCHASES, callNanos, responseCode,
+                purchases.size(), System.nanoTime() - start);
+
+        return new PurchasePage(purchases, owned_items.getString(INAPP_CONTINUATION_TOKEN));
+    }
+
+    /**
+     * get purchase result. It should be called from onActivityResult().<br />
+     * NOTE: this method blocks on disk I/O. Received purchase is appended to the local journal
+     * and it waits for fsync of the record, usually on main thread. StrictMode reports it as disk write.
+     * It is not moved to the billing thread, because the record must exist before your app grants the purchase.
+     * The journal is read and compacted on the billing thread, so it is only one small record here.
+     * @param requestCode requestCode on onActivityResult()
+     * @param resultCode resultCode on onActivityResult()
+     * @param data data on onActivityResult()
+     * @return purchase result. NULL means error state.
+     */
+    public PurchaseResult getPurchaseResult(int requestCode, int resultCode, Intent data) {
+        long span = beginSpan();
+        PurchaseResult ret = readPurchaseResult(requestCode, data);
+        if (span != 0) {
+            int responseCode = ret != null ? BILLING_RESPONSE_RESULT_OK
+                    : (data == null ? -1 : data.getIntExtra(RESPONSE_CODE, -1));
+            endSpan(span, BillingTrace.Operation.GET_PURCHASE_RESULT, responseCode, ret == null ? 0 : 1, 0);
+        }
+        return ret;
+    }
+
+    private PurchaseResult readPurchaseResult(int requestCode, Intent data) {
+        if (requestCode == ACTIVITY_RESULT_CODE){
+            int responseCode = data.getIntExtra(RESPONSE_CODE, 0);
+            if(responseCode == BILLING_RESPONSE_RESULT_OK){
+                String purchase_data = data.getStringExtra(INAPP_PURCHASE_DATA);
+                String signature = data.getStringExtra(INAPP_DATA_SIGNATURE);
+
+                try {
+                    PurchaseResult ret = new PurchaseResult(purchase_data, signature);
+                    PurchaseVerifier verifier = mVerifier;
+                    if (verifier != null && !verifier.verify(ret)) {
+                        Log.w(TAG, "Invalid signature on getPurchaseResult()");
+                        return null;
+                    }
+                    if (mJournal != null && !mJournal.markReceived(ret)) {
+                        // the purchase is still returned, but recoverPurchases() cannot find it
+                        Log.w(TAG, "Cannot record purchase on getPurchaseResult()");
+                    }
+                    compactJournalLater();
+                    return ret;
+                } catch (JSONException e) {
+                    Log.e(TAG, "JSON Exception on getPurchaseResult()");
+                    return null;
+                } catch (NullPointerException e) {
+                    return null;
+                }
+            } else {
+                Log.w(TAG, "This time is not RESPONSE_OK(0) -> " + responseCode);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * buy product (to move google play).
+     * After call this method, you can receive the result on onActivityResult() in your activity.
+     * Then, you can call getPurchaseResult() with some args for knowing detail.
+     * Unique developerPayload is made for each purchase.
+     * @param productId target product id
+     * @param inapp the product is inapp or subscription
+     * @param target your activity
+     */
+    public void buy(String productId, boolean inapp, Activity target) {
+        buy(productId, inapp, null, target);
+    }
+
+    /**
+     * buy product with developerPayload (to move google play).
+     * If the intent is prefetched by prefetchBuyIntent() with the same arguments, google play is started at once.
+     * @param productId target product id
+     * @param inapp the product is inapp or subscription
+     * @param developerPayload string which is returned in PurchaseResult. NULL means unique one is made,
+     *                         which the app cannot verify. Use newDeveloperPayload() to keep it.
+     * @param target your activity
+     */
+    public void buy(final String productId, final boolean inapp, final String developerPayload, Activity target) {
+        BuyIntentCache.HeldIntent held = mBuyIntents.take(productId, typeOf(inapp), developerPayload);
+        PendingIntent pending_intent;
+        if (held != null) {
+            pending_intent = held.intent;
+        } else {
+            waitForConnection();
+            pending_intent = callOnBillingThread(new Callable<PendingIntent>() {
+                @Override
+                public PendingIntent call() throws Exception {
+                    return obtainBuyIntent(productId, inapp, developerPayload);
+                }
+            }, null);
+        }
+        if (pending_intent != null) {
+            startBuyIntent(pending_intent, target);
+        }
+
+        // return to onActivityResult()
+    }
+
+    /**
+     * Fetch BUY_INTENT in background and hold it for BUY_INTENT_VALIDITY_MILLIS,
+     * so that buy() with the same arguments can start google play without binder call.
+     * Call it for the product which is likely to be bought, such as the one shown on the screen.
+     * @param developerPayload string which is returned in PurchaseResult. Pass the same one to buy().
+     *                         Use newDeveloperPayload() if you do not have your own one.
+     * @return Future of the intent. The held one is returned if it is fetched already. NULL result means error state.
+     * @throws IllegalArgumentException if developerPayload is NULL, because the purchase could not be verified with it
+     */
+    public Future<PendingIntent> prefetchBuyIntent(final String productId, final boolean inapp,
+                                                   final String developerPayload) {
+        if (developerPayload == null) throw new IllegalArgumentException("developerPayload is NULL");
+
+        return submit(new Callable<PendingIntent>() {
+            @Override
+            public PendingIntent call() throws Exception {
+                String type = typeOf(inapp);
+                BuyIntentCache.HeldIntent held = mBuyIntents.peek(productId, type, developerPayload);
+                if (held != null) return held.intent;
+
+                PendingIntent pending_intent = getBuyIntent(productId, inapp, developerPayload);
+                if (pending_intent != null) {
+                    mBuyIntents.put(productId, type, developerPayload, pending_intent);
+                }
+                return pending_intent;
+            }
+        }, BillingRequestQueue.PRIORITY_BACKGROUND, null);
+    }
+
+    /**
+     * Take prefetched intent, or call getBuyIntent() if it is not held.
+     */
+    private PendingIntent obtainBuyIntent(String productId, boolean inapp, String developerPayload) {
+        BuyIntentCache.HeldIntent held = mBuyIntents.take(productId, typeOf(inapp), developerPayload);
+        if (held != null) return held.intent;
+
+        return getBuyIntent(productId, inapp, developerPayload == null ? newDeveloperPayload() : developerPayload);
+    }
+
+    /**
+     * Make unique developerPayload for buy() and prefetchBuyIntent().
+     * Keep it to compare with PurchaseResult.getDeveloperPayload() of the purchase.
+     */
+    public static String newDeveloperPayload() {
+        return UUID.randomUUID().toString();
+    }
+
+    private static String typeOf(boolean inapp) {
+        return inapp ? TYPE_INAPP : TYPE_SUBSCRIPTIONS;
+    }
+
+    /**
+     * Call getBuyIntent() once.
+     * @return BUY_INTENT. NULL means error state.
+     */
+    private PendingIntent getBuyIntent(String productId, boolean inapp, String developerPayload) {
+        // error check
+        Connection connection = mConnection.get();
+        IInAppBillingService service = connection.service;
+        Context context = connection.context;
+        if (service == null || context == null) return null;
+
+        Bundle buy_intent_bundle;
+
+        int apiVersion = inapp ? API_VERSION_FOR_INAPP : API_VERSION_FOR_SUBS;
+        String type = typeOf(inapp);
+        long span = beginSpan();
+        long start = System.nanoTime();
+        try {
+            buy_intent_bundle = service.getBuyIntent(
+                    apiVersion,
+                    context.getPackageName(),
+                    productId,
+                    type,
+                    developerPayload);
+        } catch (RemoteException e) {
+            reportCall(BillingMetrics.Operation.GET_BUY_INTENT, start, -1, 1, 0);
+            endSpan(span, BillingTrace.Operation.GET_BUY_INTENT, -1, 1, 1);
+            Log.e(TAG, "RemoteException on buy() productId=" + productId + " type=" + type, e);
+            return null;
+        }
+
+        if (buy_intent_bundle == null) {
+            reportCall(BillingMetrics.Operation.GET_BUY_INTENT, start, -1, 1, 0);
+            endSpan(span, BillingTrace.Operation.GET_BUY_INTENT, -1, 1, 1);
+            Log.e(TAG, "NULL bundle on buy() productId=" + productId + " type=" + type);
+            return null;
+        }
+        int responseCode = buy_intent_bundle.getInt(RESPONSE_CODE);
+        reportCall(BillingMetrics.Operation.GET_BUY_INTENT, start, responseCode, 1, 0);
+        endSpan(span, BillingTrace.Operation.GET_BUY_INTENT, responseCode, 1, 1);
+        if (responseCode == BILLING_RESPONSE_RESULT_OK) {
+            return buy_intent_bundle.getParcelable("BUY_INTENT");
+        }
+
+        return null;
+    }
+
+    /**
+     * Start google play by BUY_INTENT. It should be called on main thread.
+     */
+    private void startBuyIntent(PendingIntent pending_intent, Activity target) {
+        try {
+            target.startIntentSenderForResult(
+                    pending_intent.getIntentSender(),
+                    ACTIVITY_RESULT_CODE,
+                    new Intent(),
+                    Integer.valueOf(0),
+                    Integer.valueOf(0),
+                    Integer.valueOf(0));
+        } catch (IntentSender.SendIntentException e) {
+            Log.e(TAG, "SendIntentException on buy()");
+        }
+    }
+
+    /**
+     * Consume purchase. Before call this, you should get PurchaseResult instance somehow such as getPurchaseHistory().
+     * It runs on billing thread before waiting async requests, and the calling thread waits for it.
+     * @param target consume target
+     * @return -1 : error state
+     */
+    public int consumePurchase(final PurchaseResult target) {
+        waitForConnection();
+        return callOnBillingThread(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return consume(target);
+            }
+        }, -1);
+    }
+
+    /**
+     * Call consumePurchase() once on the current thread.
+     */
+    private int consume(PurchaseResult target) {
+        // error check
+        IInAppBillingService service = mConnection.get().service;
+        if (target == null || service == null) return -1;
+
+        long span = beginSpan();
+        long start = System.nanoTime();
+        try {
+            int responseCode = service.consumePurchase(
+                    API_VERSION_FOR_INAPP,
+                    target.getPackageName(),
+                    target.getPurchaseToken());
+            reportCall(BillingMetrics.Operation.CONSUME_PURCHASE, start, responseCode, 1, 0);
+            endSpan(span, BillingTrace.Operation.CONSUME_PURCHASE, responseCode, 1, 1);
+            if (mJournal != null && (responseCode == BILLING_RESPONSE_RESULT_OK
+                    || responseCode == BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED)) {
+                // ITEM_NOT_OWNED means it is consumed already
+                mJournal.markConsumed(target.getPurchaseToken());
+                compactJournalLater();
+            }
+            return responseCode;
+        } catch (RemoteException e) {
+            reportCall(BillingMetrics.Operation.CONSUME_PURCHASE, start, -1, 1, 0);
+            endSpan(span, BillingTrace.Operation.CONSUME_PURCHASE, -1, 1, 1);
+            Log.e(TAG, "RemoteException on consumePurchase() productId=" + target.getProductId(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * Record the purchase is granted to the user, such as after adding coins.
+     * Call it after the grant is saved by your app. Purchases which are received by getPurchaseResult()
+     * and not recorded by this are granted again by recoverPurchases().
+     * @param target granted purchase
+     * @param consumable true: consumePurchase() is called later. false: the purchase is finished here.
+     * @return false: it cannot be recorded, so the purchase may be granted again by recoverPurchases()
+     */
+    public boolean markGranted(PurchaseResult target, boolean consumable) {
+        if (target == null || mJournal == null) return false;
+        if (!mJournal.markGranted(target, consumable)) {
+            Log.w(TAG, "Cannot record purchase on markGranted()");
+            return false;
+        }
+        compactJournalLater();
+        return true;
+    }
+
+    /**
+     * Finish purchases which were left by process kill, such as on startup.
+     * Only unfinished purchases in the local journal are read, instead of the whole purchase history.
+     * Received ones are passed to listener.onGrant(), and granted consumable ones are consumed.
+     * @param listener receiver of purchases to grant
+     * @return count of purchases which are still unfinished. -1 : error state
+     */
+    public int recoverPurchases(OnRecoveryListener listener) {
+        // error check
+        if (listener == null || mJournal == null) return -1;
+
+        long span = beginSpan();
+        int unfinished = 0;
+        for (PurchaseJournal.Entry entry : mJournal.getUnfinished()) {
+            PurchaseResult purchase;
+            try {
+                purchase = new PurchaseResult(entry.json, entry.signature);
+            } catch (JSONException e) {
+                Log.e(TAG, "JSON Exception on recoverPurchases()");
+                mJournal.markConsumed(entry.purchaseToken);
+                continue;
+            }
+
+            // the app may call markGranted() or consumePurchase() after the list is read
+            PurchaseJournal.Entry current = mJournal.getEntry(entry.purchaseToken);
+            if (current == null) continue;
+
+            boolean consumable;
+            if (current.state == PurchaseJournal.STATE_GRANTED) {
+                // already granted. It is not passed to onGrant() again, and only consume is left.
+                consumable = current.consumable;
+            } else {
+                if (!listener.onGrant(purchase)) {
+                    unfinished++;
+                    continue;
+                }
+                consumable = listener.isConsumable(purchase.getProductId());
+                if (!mJournal.markGranted(purchase, consumable)) {
+                    // it is still RECEIVED in the journal, so it is passed to onGrant() again on next time.
+                    // consumable one is still consumed below, because consume finishes it in the journal.
+                    Log.w(TAG, "Cannot record purchase on recoverPurchases()");
+                    if (!consumable) {
+                        unfinished++;
+                        continue;
+                    }
+                }
+            }
+
+            // non-consumable one is finished by markGranted()
+            if (!consumable) continue;
+
+            // consumed one is removed from the journal by consumePurchase()
+            if (consumeOnBillingThread(purchase) != BILLING_RESPONSE_RESULT_OK) unfinished++;
+        }
+        // lazy CONSUMED records are also kept
+        mJournal.sync();
+        compactJournalLater();
+        endSpan(span, BillingTrace.Operation.RECOVER_PURCHASES, BILLING_RESPONSE_RESULT_OK, unfinished, 0);
+        return unfinished;
+    }
+
+    /**
+     * Async version of recoverPurchases().
+     * onGrant() is called on the billing thread.
+     * @param listener receiver of the result. it can be null if you use returned Future.
+     * @return Future of the result
+     */
+    public Future<Integer> recoverPurchasesAsync(final OnRecoveryListener recoveryListener,
+                                                 OnResultListener<Integer> listener) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return recoverPurchases(recoveryListener);
+            }
+        }, BillingRequestQueue.PRIORITY_NORMAL, listener);
+    }
+
+    /**
+     * Set public key for verifying signature of purchases.
+     * After set, purchases which signature is invalid are not returned from
+     * getPurchaseHistory() and getPurchaseResult().
+     * @param base64PublicKey Base64-encoded RSA public key on Google Play Developer Console. NULL disables verification.
+     * @throws IllegalArgumentException if the key is invalid
+     */
+    public void setPublicKey(String base64PublicKey) {
+        mVerifier = base64PublicKey == null ? null : new PurchaseVerifier(base64PublicKey);
+    }
+
+    /**
+     * Check calls of the operation fail fast or not.
+     * GET_SKU_DETAILS and GET_PURCHASES are stopped after CircuitBreaker.FAILURE_THRESHOLD failures in a row
+     * (SERVICE_UNAVAILABLE, ERROR and RemoteException). While it is open, getProductsInfo() and
+     * getPurchaseHistory(boolean) answer the last-good result if they have it.
+     * One call is let through as a probe after the open time.
+     * @return true: the circuit is not closed
+     */
+    public boolean isCircuitOpen(BillingMetrics.Operation operation) {
+        CircuitBreaker breaker = mBreakers.get(operation);
+        return breaker != null && breaker.getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    private static EnumMap<BillingMetrics.Operation, CircuitBreaker> newBreakers() {
+        EnumMap<BillingMetrics.Operation, CircuitBreaker> breakers = new EnumMap<>(BillingMetrics.Operation.class);
+        breakers.put(BillingMetrics.Operation.GET_SKU_DETAILS, new CircuitBreaker());
+        breakers.put(BillingMetrics.Operation.GET_PURCHASES, new CircuitBreaker());
+        return breakers;
+    }
+
+    /**
+     * Set listener which receives timing of every call to the billing service.
+     * You can use BillingMetrics.Aggregator for percentiles. NULL disables metrics.
+     */
+    public void setMetricsListener(BillingMetrics.Listener listener) {
+        mMetricsListener = listener;
+    }
+
+    /**
+     * Set trace which records a span per operation, such as getProductsInfo() and getPurchaseHistory().
+     * NULL disables tracing, and then nothing is measured.
+     */
+    public void setTrace(BillingTrace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * @return current trace. NULL if tracing is disabled.
+     */
+    public BillingTrace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * @return start of the span. 0 if tracing is disabled or it is not sampled.
+     */
+    private long beginSpan() {
+        BillingTrace trace = mTrace;
+        return trace == null ? 0 : trace.begin();
+    }
+
+    private void endSpan(long span, BillingTrace.Operation operation, int responseCode, int items, int pages) {
+        if (span == 0) return;
+        BillingTrace trace = mTrace;
+        if (trace != null) trace.end(span, operation, responseCode, items, pages);
+    }
+
+    private void reportCall(BillingMetrics.Operation operation, long startNanos,
+                            int responseCode, int payloadSize, long parseNanos) {
+        BillingMetrics.Listener listener = mMetricsListener;
+        if (listener == null) return;
+        listener.onCallMeasured(operation, System.nanoTime() - startNanos, responseCode, payloadSize, parseNanos);
+    }
+
+    private void reportCallNanos(BillingMetrics.Operation operation, long callNanos,
+                                 int responseCode, int payloadSize, long parseNanos) {
+        BillingMetrics.Listener listener = mMetricsListener;
+        if (listener == null) return;
+        listener.onCallMeasured(operation, callNanos, responseCode, payloadSize, parseNanos);
+    }
+
+    /**
+     * Consume several purchases at once.
+     * They are consumed in parallel, and transient errors
+     * (SERVICE_UNAVAILABLE, ERROR and RemoteException) are retried up to CONSUME_MAX_RETRIES times.
+     * ITEM_NOT_OWNED is treated as success because the purchase is consumed already.
+     * It runs on billing thread before waiting async requests, and the calling thread waits for it.
+     * @param targets consume targets
+     * @return HashMap of response code keyed by purchaseToken. -1 means error state. NULL if targets is NULL.
+     */
+    public HashMap<String, Integer> consumeAll(final Collection<PurchaseResult> targets) {
+        // error check
+        if (targets == null) return null;
+        waitForConnection();
+        return callOnBillingThread(new Callable<HashMap<String, Integer>>() {
+            @Override
+            public HashMap<String, Integer> call() throws Exception {
+                return consumeInParallel(targets);
+            }
+        }, null);
+    }
+
+    private HashMap<String, Integer> consumeInParallel(Collection<PurchaseResult> targets) {
+
+        // one token is consumed only once
+        LinkedHashMap<String, PurchaseResult> unique = new LinkedHashMap<>();
+        for (PurchaseResult target : targets) {
+            if (target != null && target.getPurchaseToken() != null) {
+                unique.put(target.getPurchaseToken(), target);
+            }
+        }
+
+        HashMap<String, Integer> ret = new HashMap<>();
+        if (unique.size() <= 1) {
+            // no need to go to other thread
+            for (PurchaseResult target : unique.values()) {
+                ret.put(target.getPurchaseToken(), consumeWithRetry(target));
+            }
+            return ret;
+        }
+
+        HashMap<String, Future<Integer>> futures = new HashMap<>();
+        ExecutorService executor = getParallelExecutor();
+        try {
+            if (executor != null) {
+                for (final PurchaseResult target : unique.values()) {
+                    futures.put(target.getPurchaseToken(), executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            return consumeWithRetry(target);
+                        }
+                    }));
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            // released while submitting
+            Log.w(TAG, "RejectedExecutionException on consumeAll()");
+        }
+
+        for (String token : unique.keySet()) {
+            Future<Integer> future = futures.get(token);
+            int responseCode;
+            try {
+                // not submitted one is error state
+                responseCode = future == null ? -1 : future.get();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "InterruptedException on consumeAll()");
+                Thread.currentThread().interrupt();
+                responseCode = -1;
+            } catch (ExecutionException | CancellationException e) {
+                Log.e(TAG, e.getClass().getSimpleName() + " on consumeAll()");
+                responseCode = -1;
+            }
+            ret.put(token, responseCode);
+        }
+        return ret;
+    }
+
+    /**
+     * Async version of consumeAll().
+     * @param listener receiver of the result. it can be null if you use returned Future.
+     * @return Future of the result
+     */
+    public Future<HashMap<String, Integer>> consumeAllAsync(
+            final Collection<PurchaseResult> targets, OnResultListener<HashMap<String, Integer>> listener) {
+        return submit(new Callable<HashMap<String, Integer>>() {
+            @Override
+            public HashMap<String, Integer> call() throws Exception {
+                return consumeAll(targets);
+            }
+        }, BillingRequestQueue.PRIORITY_NORMAL, listener);
+    }
+
+    /**
+     * consumeWithRetry() on billing thread, so that it is serialized with queued requests.
+     */
+    private int consumeOnBillingThread(final PurchaseResult target) {
+        return callOnBillingThread(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return consumeWithRetry(target);
+            }
+        }, -1);
+    }
+
+    /**
+     * Consume with retries on the current thread. It is also called on the parallel pool,
+     * so it must not wait for billing thread.
+     */
+    private int consumeWithRetry(PurchaseResult target) {
+        long delay = CONSUME_RETRY_DELAY_MILLIS;
+        for (int retry = 0; ; retry++) {
+            int responseCode = consume(target);
+            if (responseCode == BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED) {
+                // consumed already
+                return BILLING_RESPONSE_RESULT_OK;
+            }
 
-    private IInAppBillingService mBillingService = null;
-    private ServiceConnection mServiceConnection = null;
-    private Context mContext;
-    private OnServiceResponseListener mListener;
+            boolean transient_error = responseCode == -1
+                    || responseCode == BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE
+                    || responseCode == BILLING_RESPONSE_RESULT_ERROR;
+            if (!transient_error || retry >= CONSUME_MAX_RETRIES || isError()) {
+                return responseCode;
+            }
 
-    private final String TAG = "BuillingController";
-    public static final int API_VERSION_FOR_INAPP = 3;
-    public static final int API_VERSION_FOR_SUBS = 5;
-    public static final int ACTIVITY_RESULT_CODE = 999;
+            Log.w(TAG, "Retry consumePurchase() -> " + responseCode);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return responseCode;
+            }
+            delay *= 2;
+        }
+    }
 
     /**
-     * Listener for watching service state.
+     * Check the product is owned or not.
+     * It is answered from the last known purchases which are stored locally, so it can be called
+     * before the service is connected. The store is updated whenever getPurchaseHistory() succeeds.
+     * The store is read on billing thread when the first controller is made, and it is not read here.
+     * @param productId target product id
+     * @return true: owned. false until the store is read, see awaitOwnershipLoaded().
      */
-    public interface OnServiceResponseListener {
-        void onServiceConnected();
-        void onServiceDisconnected();
+    public boolean isOwned(String productId) {
+        OwnershipStore store = mOwnershipStore;
+        return store != null && store.isOwned(productId);
     }
 
-    public BillingController(Context context, OnServiceResponseListener listener) {
-        // error check
-        if (context == null || listener == null) return;
+    /**
+     * @return true: stored ownership is read, and isOwned() answers it
+     */
+    public boolean isOwnershipLoaded() {
+        OwnershipStore store = mOwnershipStore;
+        return store != null && store.isLoaded();
+    }
 
-        // save valuable
-        mContext = context;
-        mListener = listener;
+    /**
+     * Wait until stored ownership is read, such as before the first screen decides premium features.
+     * The store is small, so it is usually read in a few milliseconds after the first controller is made.
+     * On billing thread, it is read on the calling thread instead of waiting.
+     * @return true: isOwned() answers stored purchases. false: timeout, interrupted or error state.
+     */
+    public boolean awaitOwnershipLoaded(long timeout, TimeUnit unit) {
+        OwnershipStore store = mOwnershipStore;
+        if (store == null) return false;
+        if (Thread.currentThread() == mBillingThread) {
+            store.load();
+            return true;
+        }
+        return store.awaitLoaded(timeout, unit);
+    }
 
-        // get service connection for IInAppBillingService
-        mServiceConnection = new ServiceConnection(){
-            @Override
-            public void onServiceConnected(ComponentName paramComponentName, IBinder paramIBinder){
-                // save stub
-                Log.i(TAG, "Connected to service.");
-                mBillingService = IInAppBillingService.Stub.asInterface(paramIBinder);
+    /**
+     * Get index of owned products received by the last getPurchaseHistory(boolean) of each type.
+     * It is replaced on every refresh, so get it again when you need new one.
+     * @return current index. It is empty before the first refresh.
+     */
+    public EntitlementIndex getEntitlements() {
+        return mEntitlements;
+    }
 
-                // api support check
-                try {
-                    // check for inapp version
-                    int response = mBillingService.isBillingSupported(
-                            API_VERSION_FOR_INAPP,
-                            mContext.getPackageName(),
-                            TYPE_INAPP);
-                    if (response != BILLING_RESPONSE_RESULT_OK) {
-                        // unsupport API version. this class cannot work well.
-                        mListener.onServiceConnected();
-                        return;
-                    }
+    private void updateEntitlements(String type, ArrayList<PurchaseResult> live) {
+        synchronized (mEntitlementLock) {
+            mEntitlements = mEntitlements.rebuild(type, live, System.currentTimeMillis());
+        }
+    }
 
-                    // check for subs version
-                    response = mBillingService.isBillingSupported(
-                            API_VERSION_FOR_SUBS,
-                            mContext.getPackageName(),
-                            TYPE_SUBSCRIPTIONS);
-                    if (response != BILLING_RESPONSE_RESULT_OK) {
-                        // unsupport API version. this class cannot work well.
-                        mListener.onServiceConnected();
-                        return;
-                    }
+    /**
+     * Set listener which is called on main thread
+     * when the stored ownership is different from the live purchases.
+     */
+    public void setOnOwnershipMismatchListener(OwnershipStore.OnOwnershipMismatchListener listener) {
+        mMismatchListener = listener;
+    }
 
+    private void reconcileOwnership(String type, ArrayList<PurchaseResult> live) {
+        OwnershipStore store = mOwnershipStore;
+        if (store == null) return;
 
+        final List<String> mismatches = store.replace(type, live);
+        final OwnershipStore.OnOwnershipMismatchListener listener = mMismatchListener;
+        Handler handler = mMainHandler;
+        if (mismatches.isEmpty() || listener == null || handler == null) return;
 
-                } catch (RemoteException e) {
-                    // unsupport API version. this class cannot work well.
-                    mListener.onServiceDisconnected();
-                }
-            }
+        final HashSet<String> owned = new HashSet<>();
+        for (String productId : mismatches) {
+            if (store.isOwned(productId)) owned.add(productId);
+        }
+        handler.post(new Runnable() {
             @Override
-            public void onServiceDisconnected(ComponentName paramComponentName){
-                // put null into stub holder when service is disconnected
-                Log.e(TAG, "Service is disconnected. (Called onServiceDisconnected)");
-                mBillingService = null;
-                mListener.onServiceDisconnected();
+            public void run() {
+                for (String productId : mismatches) {
+                    boolean liveOwned = owned.contains(productId);
+                    listener.onOwnershipMismatch(productId, !liveOwned, liveOwned);
+                }
             }
-        };
-
-        // bind service
-        Intent intent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
-        intent.setPackage("com.android.vending");
-        mContext.bindService(
-                intent,
-                this.mServiceConnection,
-                Context.BIND_AUTO_CREATE
-        );
+        });
     }
 
     /**
-     * Get valiable product list.
-     * @return ArrayList of ProductInfo. NULL means error state.
+     * Start refreshing purchases of both inapp and subscriptions in background.
+     * The interval is SYNC_MIN_INTERVAL_MILLIS around renewal of subscriptions, and up to
+     * SYNC_MAX_INTERVAL_MILLIS otherwise. Nothing is requested while network is not connected.
+     * Results are received by OnPurchasesChangedListener and isOwned().
      */
-    public ArrayList<ProductInfo> getProductsInfo(String productId, boolean inapp) {
-        // error check
-        if (isError() || productId == null) return null;
-
-        ArrayList<String> request_id_list = new ArrayList<String>();
-        request_id_list.add(productId);
-        Bundle query = new Bundle();
-        query.putStringArrayList("ITEM_ID_LIST", request_id_list);
+    public void startPeriodicSync() {
+        Handler handler = mMainHandler;
+        if (handler == null || mConnection.get().isReleased()) return;
 
-        Bundle details;
+        mPeriodicSync = true;
+        scheduleSync(SYNC_MIN_INTERVAL_MILLIS);
+    }
 
-        int apiVersion = inapp ? API_VERSION_FOR_INAPP : API_VERSION_FOR_SUBS;
-        String type = inapp ? TYPE_INAPP : TYPE_SUBSCRIPTIONS;
-        try {
-            details = mBillingService.getSkuDetails(
-                    apiVersion,
-                    mContext.getPackageName(),
-                    type,
-                    query);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Remote Exception on getProductsInfo()");
-            return null;
+    /**
+     * Stop refreshing started by startPeriodicSync().
+     */
+    public void stopPeriodicSync() {
+        mPeriodicSync = false;
+        Handler handler = mMainHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mSyncRunnable);
         }
+    }
 
-        int responseCode = details.getInt(RESPONSE_CODE);
-        if (responseCode == BILLING_RESPONSE_RESULT_OK){
-            // get product list
-            ArrayList<String> response_list = details.getStringArrayList("DETAILS_LIST");
-            ArrayList<ProductInfo> ret = new ArrayList<>();
-
-            int count = 0;
-            for( String row : response_list ){
-                try {
-                    ret.add(new ProductInfo(new JSONObject(row)));
-                    count++;
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSONException Exception on getProductsInfo()");
-                    return null;
-                }
-            }
-            return ret;
-        } else {
-            Log.w(TAG, "This time is not RESPONSE_OK(0) -> " + responseCode);
-        }
+    private void scheduleSync(long delay) {
+        Handler handler = mMainHandler;
+        if (handler == null || !mPeriodicSync) return;
 
-        return null;
+        handler.removeCallbacks(mSyncRunnable);
+        handler.postDelayed(mSyncRunnable, delay);
     }
 
-    /**
-     * get history of purchase(billing)
-     * @return ArrayList of PurchaseResult. NULL means error state.
-     */
-    public ArrayList<PurchaseResult> getPurchaseHistory(boolean inapp) {
-        // error check
-        if (isError()) return null;
+    private void syncEntitlements() {
+        Context context = mConnection.get().context;
+        if (context == null || !mPeriodicSync) return;
 
-        Bundle owned_items;
-        int apiVersion = inapp ? API_VERSION_FOR_INAPP : API_VERSION_FOR_SUBS;
-        String type = inapp ? TYPE_INAPP : TYPE_SUBSCRIPTIONS;
-        try {
-            owned_items = mBillingService.getPurchases(
-                    apiVersion,
-                    mContext.getPackageName(),
-                    type,
-                    null);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Remote Exception on getPurchaseHistory()");
-            return null;
+        if (!isNetworkConnected(context)) {
+            scheduleSync(SYNC_MIN_INTERVAL_MILLIS);
+            return;
         }
 
-        int responseCode = owned_items.getInt(RESPONSE_CODE);
-        if( responseCode == BILLING_RESPONSE_RESULT_OK ) {
-            ArrayList data_list = owned_items.getStringArrayList("INAPP_PURCHASE_DATA_LIST");
-            ArrayList<PurchaseResult> ret = new ArrayList<>();
-            for (int i = 0; i < data_list.size(); ++i) {
-                String row = (String) data_list.get(i);
+        // both types in one task
+        submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                ArrayList<PurchaseResult> subs = null;
                 try {
-                    ret.add(new PurchaseResult(new JSONObject(row)));
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON Exception on getPurchaseHistory()");
-                    return null;
+                    getPurchaseHistory(true);
+                    BillingCapabilities capabilities = mCapabilities;
+                    if (capabilities != null && !capabilities.isSubscriptionsSupported()) {
+                        // nothing to renew, so it is not error state
+                        subs = new ArrayList<>();
+                    } else {
+                        subs = getPurchaseHistory(false);
+                    }
+                } finally {
+                    scheduleSync(nextSyncDelay(System.currentTimeMillis(), subs));
                 }
+                return null;
             }
-
-            return ret;
-        } else {
-            Log.w(TAG, "This time is not RESPONSE_OK(0) -> " + responseCode);
-        }
-
-        return null;
+        }, BillingRequestQueue.PRIORITY_BACKGROUND, null);
     }
 
     /**
-     * get purchase result. It should be called from onActivityResult()
-     * @param requestCode requestCode on onActivityResult()
-     * @param resultCode resultCode on onActivityResult()
-     * @param data data on onActivityResult()
-     * @return purchase result. NULL means error state.
+     * Decide delay of the next periodic sync.
+     * Subscriptions are assumed to be renewed every month from purchaseTime,
+     * because purchase data does not have the period.
+     * @param subs live subscriptions. NULL means error state.
      */
-    public PurchaseResult getPurchaseResult(int requestCode, int resultCode, Intent data) {
-        if (requestCode == ACTIVITY_RESULT_CODE){
-            int responseCode = data.getIntExtra(RESPONSE_CODE, 0);
-            if(responseCode == BILLING_RESPONSE_RESULT_OK){
-                String purchase_data = data.getStringExtra(INAPP_PURCHASE_DATA);
-
-                try {
-                    PurchaseResult ret = new PurchaseResult(new JSONObject(purchase_data));
-                    return ret;
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON Exception on getPurchaseResult()");
-                    return null;
-                } catch (NullPointerException e) {
-                    return null;
-                }
-            } else {
-                Log.w(TAG, "This time is not RESPONSE_OK(0) -> " + responseCode);
+    static long nextSyncDelay(long now, List<PurchaseResult> subs) {
+        if (subs == null) return SYNC_MIN_INTERVAL_MILLIS;
+
+        long delay = SYNC_MAX_INTERVAL_MILLIS;
+        for (PurchaseResult purchase : subs) {
+            long purchaseTime = purchase.getPurchaseTime();
+            if (purchaseTime <= 0 || purchaseTime > now) continue;
+
+            long next = estimateNextRenewal(purchaseTime, now);
+            long previous = addMonths(next, -1);
+            if (now - previous < SYNC_RENEWAL_WINDOW_MILLIS || next - now < SYNC_RENEWAL_WINDOW_MILLIS) {
+                return SYNC_MIN_INTERVAL_MILLIS;
             }
+            delay = Math.min(delay, next - SYNC_RENEWAL_WINDOW_MILLIS - now);
         }
+        return Math.max(SYNC_MIN_INTERVAL_MILLIS, delay);
+    }
 
-        return null;
+    /**
+     * Estimate the first renewal of monthly subscription after now.
+     * @return renewal time. purchaseTime itself if it is not in the past.
+     */
+    static long estimateNextRenewal(long purchaseTime, long now) {
+        if (purchaseTime <= 0 || purchaseTime > now) return purchaseTime;
+
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(now);
+        int nowMonths = calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH);
+        calendar.setTimeInMillis(purchaseTime);
+        int months = nowMonths - (calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH));
+        calendar.add(Calendar.MONTH, months);
+        if (calendar.getTimeInMillis() <= now) calendar.add(Calendar.MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long addMonths(long time, int months) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(time);
+        calendar.add(Calendar.MONTH, months);
+        return calendar.getTimeInMillis();
     }
 
     /**
-     * buy product (to move google play).
-     * After call this method, you can receive the result on onActivityResult() in your activity.
-     * Then, you can call getPurchaseResult() with some args for knowing detail.
-     * @param productId target product id
-     * @param inapp the product is inapp or subscription
-     * @param target your activity
+     * Add listener which is called with changes of purchases whenever getPurchaseHistory(boolean) succeeds.
+     * It is called on main thread, or billing thread if setDeliverOnMainThread(false).
      */
-    public void buy(String productId, boolean inapp, Activity target) {
-        Bundle buy_intent_bundle;
+    public void addOnPurchasesChangedListener(PurchaseChanges.OnPurchasesChangedListener listener) {
+        if (listener != null) mChangeListeners.addIfAbsent(listener);
+    }
 
-        int apiVersion = inapp ? API_VERSION_FOR_INAPP : API_VERSION_FOR_SUBS;
-        String type = inapp ? TYPE_INAPP : TYPE_SUBSCRIPTIONS;
-        try {
-            buy_intent_bundle = mBillingService.getBuyIntent(
-                    apiVersion,
-                    mContext.getPackageName(),
-                    productId,
-                    type,
-                    "developerPayload");
-        } catch (RemoteException e) {
-            Log.e(TAG, "Remote Exception on buy()");
-            return;
-        }
+    public void removeOnPurchasesChangedListener(PurchaseChanges.OnPurchasesChangedListener listener) {
+        mChangeListeners.remove(listener);
+    }
 
-        int responseCode = buy_intent_bundle.getInt(RESPONSE_CODE);
-        if (responseCode == BILLING_RESPONSE_RESULT_OK) {
-            PendingIntent pending_intent = buy_intent_bundle.getParcelable("BUY_INTENT");
-            try {
-                target.startIntentSenderForResult(
-                        pending_intent.getIntentSender(),
-                        ACTIVITY_RESULT_CODE,
-                        new Intent(),
-                        Integer.valueOf(0),
-                        Integer.valueOf(0),
-                        Integer.valueOf(0));
-            } catch (IntentSender.SendIntentException e) {
-                Log.e(TAG, "SendIntentException on buy()");
+    private void publishChanges(String type, ArrayList<PurchaseResult> live) {
+        final PurchaseChanges changes;
+        final ArrayList<PurchaseChanges.OnPurchasesChangedListener> listeners;
+        // keep order of changes same as order of refreshes
+        synchronized (mPurchaseTracker) {
+            changes = mPurchaseTracker.update(type, live);
+            if (changes.isEmpty() || mChangeListeners.isEmpty()) return;
+            listeners = new ArrayList<>(mChangeListeners);
+
+            Handler handler = mMainHandler;
+            if (mDeliverOnMainThread && handler != null) {
+                // posting is cheap, and keeps the order on main thread
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchChanges(listeners, changes);
+                    }
+                });
                 return;
             }
         }
-
-        // return to onActivityResult()
+        // app listeners are not called with the lock, so they can refresh purchases again
+        dispatchChanges(listeners, changes);
     }
 
-    /**
-     * Consume purchase. Before call this, you should get PurchaseResult instance somehow such as getPurchaseHistory().
-     * @param target consume target
-     * @return -1 : error state
-     */
-    public int consumePurchase(PurchaseResult target) {
-        // error check
-        if (target == null) return -1;
-
-        try {
-            return mBillingService.consumePurchase(
-                    API_VERSION_FOR_INAPP,
-                    target.getPackageName(),
-                    target.getPurchaseToken());
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException on consumePurchase()");
-            return -1;
+    private static void dispatchChanges(List<PurchaseChanges.OnPurchasesChangedListener> listeners,
+                                        PurchaseChanges changes) {
+        for (PurchaseChanges.OnPurchasesChangedListener listener : listeners) {
+            listener.onPurchasesChanged(changes);
         }
     }
 
@@ -368,172 +2307,403 @@ public class BillingController {
      * @return true: ERROR
      */
     public boolean isError() {
-        return mBillingService == null || mServiceConnection == null;
+        return mConnection.get().service == null;
     }
 
     /**
      * This class should be called finalize faze such as onDestroy().
      */
     public void release() {
-        if (mServiceConnection != null) {
-            mContext.unbindService(mServiceConnection);
+        Connection last = mConnection.getAndSet(RELEASED);
+        mPeriodicSync = false;
+        if (mMainHandler != null) {
+            mMainHandler.removeCallbacks(mSyncRunnable);
+        }
+        synchronized (mStateLock) {
+            for (BillingRequestQueue.Task<?> task : mPendingTasks) {
+                task.cancel(false);
+            }
+            mPendingTasks.clear();
+            // wake up waiting threads
+            mStateLock.notifyAll();
+        }
+        mChangeListeners.clear();
+        mBuyIntents.clear();
+        synchronized (this) {
+            if (mParallelExecutor != null) {
+                // queued tasks are cancelled, otherwise threads waiting for them never wake up
+                for (Runnable task : mParallelExecutor.shutdownNow()) {
+                    if (task instanceof Future) ((Future<?>) task).cancel(false);
+                }
+                mParallelExecutor = null;
+            }
+            if (mRequestQueue != null) {
+                mRequestQueue.shutdownNow();
+                mRequestQueue = null;
+            }
+        }
+        if (!last.isReleased() && mShared != null) {
+            // it is unbound after the last controller is released
+            mShared.detach(mSharedListener);
         }
-        mBillingService = null;
-        mContext = null;
     }
 
     /**
-     * Check network connection
+     * Check network connection.
+     * It is answered from the state which NetworkCallback keeps, so it is cheap to call often.
      * @param context Application Context
      * @return true: yes
      */
     public static boolean isNetworkConnected(Context context){
-        ConnectivityManager cm =  (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo info = cm.getActiveNetworkInfo();
-        if( info != null ){
-            return info.isConnected();
-        } else {
-            return false;
-        }
+        return NetworkMonitor.get(context).isConnected();
     }
 
     /**
      * Container of information about the product(item).
      * It is made from JSON file which received from GooglePlay.
+     * Each field is decoded from the raw JSON when it is accessed first.
      */
-    public class ProductInfo {
-        String productId, type, price, title, description;
+    public static class ProductInfo {
+        /** Price in micros when it is not received */
+        public static final long UNKNOWN_PRICE = -1;
+
+        /**
+         * Order of price_amount_micros. Products which price is unknown are put at last.
+         * Prices of different currencies are not converted.
+         */
+        public static final Comparator<ProductInfo> PRICE_ORDER = new Comparator<ProductInfo>() {
+            @Override
+            public int compare(ProductInfo lhs, ProductInfo rhs) {
+                long l = lhs.priceAmountMicros == UNKNOWN_PRICE ? Long.MAX_VALUE : lhs.priceAmountMicros;
+                long r = rhs.priceAmountMicros == UNKNOWN_PRICE ? Long.MAX_VALUE : rhs.priceAmountMicros;
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        };
 
-        ProductInfo(JSONObject object) {
+        private static final String[] KEYS = {"productId", "type", "price", "title", "description",
+                "price_amount_micros", "price_currency_code", "original_price_micros"};
+        private static final int PRODUCT_ID = 0, TYPE = 1, PRICE = 2, TITLE = 3, DESCRIPTION = 4,
+                PRICE_AMOUNT_MICROS = 5, PRICE_CURRENCY_CODE = 6, ORIGINAL_PRICE_MICROS = 7;
+
+        private final String json;
+        private final int[] index;
+        private String productId, type, price, title, description;
+        // typed price is decoded at parse time for sorting and comparing without String
+        private final long priceAmountMicros;
+        private final long originalPriceAmountMicros;
+        private final Currency currency;
+        /** Formatted price per locale. It is made at first formatting. */
+        private volatile ConcurrentHashMap<Locale, String> formattedPrices = null;
+
+        ProductInfo(String json) throws JSONException {
+            this.json = json;
+            this.index = JsonScanner.index(json, KEYS);
+            this.priceAmountMicros = decodeMicros(PRICE_AMOUNT_MICROS);
+            long original = decodeMicros(ORIGINAL_PRICE_MICROS);
+            this.originalPriceAmountMicros = original == UNKNOWN_PRICE ? priceAmountMicros : original;
+            this.currency = toCurrency(decode(PRICE_CURRENCY_CODE));
+        }
+
+        private long decodeMicros(int key) {
+            long micros = JsonScanner.decodeLong(json, index[key * 2], index[key * 2 + 1], UNKNOWN_PRICE);
+            return micros < 0 ? UNKNOWN_PRICE : micros;
+        }
+
+        private static Currency toCurrency(String currencyCode) {
+            if (currencyCode == null) return null;
             try {
-                this.productId = object.getString("productId");
-                this.type = object.getString("type");
-                this.price = object.getString("price");
-                this.title = object.getString("title");
-                this.description = object.getString("description");
-            } catch (JSONException e) {
-                return;
+                return Currency.getInstance(currencyCode);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown currency " + currencyCode);
+                return null;
             }
         }
 
+        private String decode(int key) {
+            return JsonScanner.decodeString(json, index[key * 2], index[key * 2 + 1]);
+        }
+
         /**
          * The product ID for the product.
          * @return productId
          */
-        public String getProductId() { return productId;}
+        public String getProductId() {
+            if (productId == null) productId = decode(PRODUCT_ID);
+            return productId;
+        }
 
         /**
          * Value must be “inapp” for an in-app purchase type.
          * @return type
          */
-        public String getType() { return type;}
+        public String getType() {
+            if (type == null) type = decode(TYPE);
+            return type;
+        }
 
         /**
          * Formatted price of the item, including its currency sign. The price does not include tax.
          * @return price
          */
-        public String getPrice() { return price;}
+        public String getPrice() {
+            if (price == null) price = decode(PRICE);
+            return price;
+        }
+
+        /**
+         * Price in micro-units, where 1,000,000 micro-units equal one unit of the currency.
+         * @return price_amount_micros. UNKNOWN_PRICE if it is not received.
+         */
+        public long getPriceAmountMicros() {
+            return priceAmountMicros;
+        }
+
+        /**
+         * Price before discount in micro-units.
+         * @return original_price_micros. Same as getPriceAmountMicros() if it is not received.
+         */
+        public long getOriginalPriceAmountMicros() {
+            return originalPriceAmountMicros;
+        }
+
+        /**
+         * @return ISO 4217 currency of the price. NULL if it is not received or unknown.
+         */
+        public Currency getPriceCurrency() {
+            return currency;
+        }
+
+        /**
+         * @return ISO 4217 currency code of the price such as "USD". NULL if it is not received or unknown.
+         */
+        public String getPriceCurrencyCode() {
+            return currency == null ? null : currency.getCurrencyCode();
+        }
+
+        /**
+         * Discount from the original price.
+         * @return discount in percent, rounded down. 0 if it is not discounted.
+         */
+        public int getDiscountPercent() {
+            if (priceAmountMicros == UNKNOWN_PRICE || originalPriceAmountMicros <= priceAmountMicros) return 0;
+            return (int) ((originalPriceAmountMicros - priceAmountMicros) * 100 / originalPriceAmountMicros);
+        }
+
+        /**
+         * Price of one unit when the product contains several units, such as 100 coins.
+         * @param units count of units in the product
+         * @return price per unit in micros, rounded down. UNKNOWN_PRICE if price is unknown or units is not positive.
+         */
+        public long getPricePerUnitMicros(int units) {
+            if (priceAmountMicros == UNKNOWN_PRICE || units <= 0) return UNKNOWN_PRICE;
+            return priceAmountMicros / units;
+        }
+
+        /**
+         * Price formatted for the locale. It is cached per locale, so it is cheap to call on every render.
+         * @param locale locale of number format, such as Locale.getDefault()
+         * @return formatted price. Same as getPrice() if the price or the currency is unknown.
+         */
+        public String getFormattedPrice(Locale locale) {
+            if (priceAmountMicros == UNKNOWN_PRICE || currency == null || locale == null) return getPrice();
+
+            ConcurrentHashMap<Locale, String> formatted = formattedPrices;
+            if (formatted == null) {
+                // map made by another thread at the same time is only dropped as cache
+                formatted = new ConcurrentHashMap<>(2);
+                formattedPrices = formatted;
+            }
+            String text = formatted.get(locale);
+            if (text == null) {
+                text = PriceFormatter.format(priceAmountMicros, currency, locale);
+                formatted.put(locale, text);
+            }
+            return text;
+        }
 
         /**
          * Title of the product.
          * @return title
          */
-        public String getTitle() { return title;}
+        public String getTitle() {
+            if (title == null) title = decode(TITLE);
+            return title;
+        }
 
         /**
          * Description of the product.
          * @return description
          */
-        public String getDescription() { return description;}
+        public String getDescription() {
+            if (description == null) description = decode(DESCRIPTION);
+            return description;
+        }
+
+        /**
+         * JSON which received from GooglePlay.
+         * @return original JSON
+         */
+        public String getOriginalJson() { return json;}
 
         /**
-         * dump to log
+         * dump to log as one line. Nothing is made unless VERBOSE log of TAG is enabled.
+         * @deprecated use BillingTrace for watching operations, or toString()
          */
+        @Deprecated
         public void dump() {
-            Log.v(TAG, "---Product Info---");
-            Log.v(TAG, "productId : " + productId);
-            Log.v(TAG, "type : " + type);
-            Log.v(TAG, "price : " + price);
-            Log.v(TAG, "title : " + title);
-            Log.v(TAG, "description : " + description);
+            if (Log.isLoggable(TAG, Log.VERBOSE)) Log.v(TAG, toString());
+        }
+
+        @Override
+        public String toString() {
+            return "ProductInfo{productId=" + getProductId() + ", type=" + getType()
+                    + ", priceAmountMicros=" + priceAmountMicros + ", currency=" + getPriceCurrencyCode()
+                    + ", title=" + getTitle() + "}";
         }
     }
 
     /**
      * Container of information about purchase result.
      * It is made from JSON file which received from GooglePlay.
+     * Each field is decoded from the raw JSON when it is accessed first.
      */
-    public class PurchaseResult {
-        String orderId, packageName, productId, purchaseTime, purchaseState, developerPayload, purchaseToken;
+    public static class PurchaseResult {
+        /** purchaseState of purchased order */
+        public static final int PURCHASE_STATE_PURCHASED = 0;
+        /** purchaseState of canceled order */
+        public static final int PURCHASE_STATE_CANCELED = 1;
+        /** purchaseState of refunded order */
+        public static final int PURCHASE_STATE_REFUNDED = 2;
+        /** purchaseState when it is not found in JSON */
+        public static final int PURCHASE_STATE_UNKNOWN = -1;
+
+        private static final String[] KEYS = {"orderId", "packageName", "productId", "purchaseTime",
+                "purchaseState", "developerPayload", "purchaseToken"};
+        private static final int ORDER_ID = 0, PACKAGE_NAME = 1, PRODUCT_ID = 2, PURCHASE_TIME = 3,
+                PURCHASE_STATE = 4, DEVELOPER_PAYLOAD = 5, PURCHASE_TOKEN = 6;
+        private static final long NOT_DECODED = Long.MIN_VALUE;
+        // (int) NOT_DECODED is 0 which is PURCHASE_STATE_PURCHASED, so int has own sentinel
+        private static final int STATE_NOT_DECODED = Integer.MIN_VALUE;
+
+        private final String json;
+        private final String signature;
+        private final int[] index;
+        private String orderId, packageName, productId, developerPayload, purchaseToken;
+        // volatile not to read torn long on 32-bit VM
+        private volatile long purchaseTime = NOT_DECODED;
+        private int purchaseState = STATE_NOT_DECODED;
+
+        PurchaseResult(String json, String signature) throws JSONException {
+            this.json = json;
+            this.signature = signature;
+            this.index = JsonScanner.index(json, KEYS);
+        }
 
-        PurchaseResult(JSONObject object) {
-            try {
-                this.orderId = object.getString("orderId");
-                this.packageName = object.getString("packageName");
-                this.productId = object.getString("productId");
-                this.purchaseTime = object.getString("purchaseTime");
-                this.purchaseState = object.getString("purchaseState");
-                this.developerPayload = object.getString("developerPayload");
-                this.purchaseToken = object.getString("purchaseToken");
-            } catch (JSONException e) {
-                return;
-            }
+        private String decode(int key) {
+            return JsonScanner.decodeString(json, index[key * 2], index[key * 2 + 1]);
+        }
+
+        private long decodeLong(int key, long defaultValue) {
+            return JsonScanner.decodeLong(json, index[key * 2], index[key * 2 + 1], defaultValue);
         }
 
         /**
          * A unique order identifier for the transaction. This corresponds to the Google Wallet Order ID.
          * @return orderId
          */
-        public String getOrderId() { return orderId;}
+        public String getOrderId() {
+            if (orderId == null) orderId = decode(ORDER_ID);
+            return orderId;
+        }
 
         /**
          * The application package from which the purchase originated.
          * @return packageName
          */
-        public String getPackageName() { return packageName;}
+        public String getPackageName() {
+            if (packageName == null) packageName = decode(PACKAGE_NAME);
+            return packageName;
+        }
 
         /**
          * The item's product identifier. Every item has a product ID, which you must specify in the application's product list on the Google Play publisher site.
          * @return productId
          */
-        public String getProductId() { return productId;}
+        public String getProductId() {
+            if (productId == null) productId = decode(PRODUCT_ID);
+            return productId;
+        }
 
         /**
          * The time the product was purchased, in milliseconds since the epoch (Jan 1, 1970).
-         * @return purchaseTime
+         * @return purchaseTime. 0 if it is not found.
          */
-        public String getPurchaseTime() { return purchaseTime;}
+        public long getPurchaseTime() {
+            long time = purchaseTime;
+            if (time == NOT_DECODED) {
+                time = decodeLong(PURCHASE_TIME, 0);
+                purchaseTime = time;
+            }
+            return time;
+        }
 
         /**
          * The purchase state of the order. Possible values are 0 (purchased), 1 (canceled), or 2 (refunded).
-         * @return purchaseState
+         * @return purchaseState. PURCHASE_STATE_UNKNOWN if it is not found.
          */
-        public String getPurchaseState() { return purchaseState;}
+        public int getPurchaseState() {
+            int state = purchaseState;
+            if (state == STATE_NOT_DECODED) {
+                state = (int) decodeLong(PURCHASE_STATE, PURCHASE_STATE_UNKNOWN);
+                purchaseState = state;
+            }
+            return state;
+        }
 
         /**
          * A developer-specified string that contains supplemental information about an order. You can specify a value for this field when you make a getBuyIntent request.
          * @return developerPayload
          */
-        public String getDeveloperPayload() { return developerPayload;}
+        public String getDeveloperPayload() {
+            if (developerPayload == null) developerPayload = decode(DEVELOPER_PAYLOAD);
+            return developerPayload;
+        }
 
         /**
          * A token that uniquely identifies a purchase for a given item and user pair.
          * @return purchaseToken
          */
-        public String getPurchaseToken() { return purchaseToken;}
+        public String getPurchaseToken() {
+            if (purchaseToken == null) purchaseToken = decode(PURCHASE_TOKEN);
+            return purchaseToken;
+        }
+
+        /**
+         * JSON which received from GooglePlay.
+         * @return original JSON
+         */
+        public String getOriginalJson() { return json;}
+
+        /**
+         * Signature of the original JSON which is signed by GooglePlay.
+         * @return signature. NULL if it is not received.
+         */
+        public String getSignature() { return signature;}
 
         /**
-         * dump to log
+         * dump to log as one line. Nothing is made unless VERBOSE log of TAG is enabled.
+         * purchaseToken and developerPayload are not written.
+         * @deprecated use BillingTrace for watching operations, or toString()
          */
+        @Deprecated
         public void dump() {
-            Log.v(TAG, "---BillingHistory Product info---");
-            Log.v( TAG, "orderId = " + orderId);
-            Log.v( TAG, "packageName = " + packageName);
-            Log.v( TAG, "productId = " + productId);
-            Log.v( TAG, "purchaseTime = " + purchaseTime);
-            Log.v( TAG, "purchaseState = " + purchaseState);
-            Log.v( TAG, "developerPayload = " + developerPayload);
-            Log.v( TAG, "purchaseToken = " + purchaseToken);
+            if (Log.isLoggable(TAG, Log.VERBOSE)) Log.v(TAG, toString());
+        }
+
+        @Override
+        public String toString() {
+            return "PurchaseResult{orderId=" + getOrderId() + ", productId=" + getProductId()
+                    + ", purchaseTime=" + getPurchaseTime() + ", purchaseState=" + getPurchaseState() + "}";
         }
     }
 
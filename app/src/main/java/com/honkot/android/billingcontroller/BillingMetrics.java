@@ -0,0 +1,163 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of calls to IInAppBillingService.<br />
+ * Set Listener to BillingController to receive timing of every call.
+ * Aggregator is a built-in Listener which keeps latency percentiles per operation.
+ */
+public final class BillingMetrics {
+
+    private BillingMetrics() {
+    }
+
+    /**
+     * Method of IInAppBillingService.
+     */
+    public enum Operation {
+        IS_BILLING_SUPPORTED,
+        GET_SKU_DETAILS,
+        GET_PURCHASES,
+        GET_BUY_INTENT,
+        CONSUME_PURCHASE
+    }
+
+    /**
+     * Listener for receiving metrics of each call. It is called on the thread which made the call.
+     */
+    public interface Listener {
+        /**
+         * @param operation called method
+         * @param callNanos time of the binder call
+         * @param responseCode RESPONSE_CODE of the call. -1 means RemoteException.
+         * @param payloadSize count of items in the request or the response
+         * @param parseNanos time of parsing the response. 0 if nothing is parsed.
+         */
+        void onCallMeasured(Operation operation, long callNanos, int responseCode, int payloadSize, long parseNanos);
+    }
+
+    /**
+     * Listener which keeps latency histograms per operation.<br />
+     * Latency is recorded in microseconds into log-linear buckets (16 buckets per power of two),
+     * so percentiles have about 3% error. Recording does not allocate and does not lock.
+     */
+    public static class Aggregator implements Listener {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+        /** Max recordable latency (2^36 us is about 19 hours) */
+        private static final long MAX_MICROS = (1L << 36) - 1;
+        private static final int BUCKET_COUNT = bucketIndex(MAX_MICROS) + 1;
+
+        private final AtomicLongArray[] mBuckets;
+        private final AtomicLongArray mCounts;
+        private final AtomicLongArray mErrorCounts;
+
+        public Aggregator() {
+            int operations = Operation.values().length;
+            mBuckets = new AtomicLongArray[operations];
+            for (int i = 0; i < operations; i++) {
+                mBuckets[i] = new AtomicLongArray(BUCKET_COUNT);
+            }
+            mCounts = new AtomicLongArray(operations);
+            mErrorCounts = new AtomicLongArray(operations);
+        }
+
+        @Override
+        public void onCallMeasured(Operation operation, long callNanos, int responseCode, int payloadSize, long parseNanos) {
+            int op = operation.ordinal();
+            long micros = TimeUnit.NANOSECONDS.toMicros(callNanos);
+            mBuckets[op].incrementAndGet(bucketIndex(micros));
+            mCounts.incrementAndGet(op);
+            if (responseCode != BillingController.BILLING_RESPONSE_RESULT_OK) {
+                mErrorCounts.incrementAndGet(op);
+            }
+        }
+
+        /**
+         * @return count of recorded calls
+         */
+        public long getCount(Operation operation) {
+            return mCounts.get(operation.ordinal());
+        }
+
+        /**
+         * @return count of recorded calls which response code is not OK
+         */
+        public long getErrorCount(Operation operation) {
+            return mErrorCounts.get(operation.ordinal());
+        }
+
+        /**
+         * Get latency at the percentile.
+         * @param percentile 0.0 - 100.0 such as 50, 95 and 99
+         * @return latency in microseconds. 0 if nothing is recorded.
+         */
+        public long getPercentileMicros(Operation operation, double percentile) {
+            AtomicLongArray buckets = mBuckets[operation.ordinal()];
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0) return 0;
+
+            long target = Math.max(1, (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= target) return bucketMiddle(i);
+            }
+            return bucketMiddle(BUCKET_COUNT - 1);
+        }
+
+        /**
+         * Clear all recorded values.
+         */
+        public void reset() {
+            for (AtomicLongArray buckets : mBuckets) {
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    buckets.set(i, 0);
+                }
+            }
+            for (int i = 0; i < mCounts.length(); i++) {
+                mCounts.set(i, 0);
+                mErrorCounts.set(i, 0);
+            }
+        }
+
+        private static int bucketIndex(long micros) {
+            if (micros < 0) micros = 0;
+            if (micros > MAX_MICROS) micros = MAX_MICROS;
+            if (micros < SUB_BUCKET_COUNT) return (int) micros;
+
+            int msb = 63 - Long.numberOfLeadingZeros(micros);
+            int shift = msb - (SUB_BUCKET_BITS - 1);
+            int top = (int) (micros >>> shift);
+            return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (top - SUB_BUCKET_HALF);
+        }
+
+        private static long bucketMiddle(int index) {
+            if (index < SUB_BUCKET_COUNT) return index;
+
+            int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+            long top = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+            return (top << shift) + (1L << (shift - 1));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of requests to IInAppBillingService.<br />
+ * Requests are run one by one on a single thread in order of priority.
+ * Compatible requests which are still waiting in the queue are merged into one request.
+ */
+final class BillingRequestQueue {
+
+    /** Requests which user is waiting for, such as buy */
+    static final int PRIORITY_USER = 0;
+    /** Requests from the app */
+    static final int PRIORITY_NORMAL = 1;
+    /** Refresh which nobody is waiting for */
+    static final int PRIORITY_BACKGROUND = 2;
+
+    /**
+     * Loader of merged request.
+     * @param <R> type of merged result
+     */
+    interface Loader<R> {
+        /**
+         * @param items union of items of all merged requests
+         */
+        R load(Set<String> items) throws Exception;
+    }
+
+    /**
+     * Extractor of the result for each merged request.
+     * @param <R> type of merged result
+     * @param <T> type of result of the request
+     */
+    interface Extractor<R, T> {
+        /**
+         * @param merged result of Loader
+         * @param items items of the request
+         */
+        T extract(R merged, Set<String> items);
+    }
+
+    /**
+     * Request in the queue. Higher priority comes first, and the same priority is FIFO.
+     */
+    static class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+        private static final AtomicLong sSequence = new AtomicLong();
+        private static final Callable<Object> NOOP = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return null;
+            }
+        };
+
+        volatile int mPriority;
+        private final long mSequence = sSequence.getAndIncrement();
+
+        Task(Callable<T> callable, int priority) {
+            super(callable);
+            mPriority = priority;
+        }
+
+        /**
+         * Task which is completed by complete() or fail() instead of run().
+         */
+        @SuppressWarnings("unchecked")
+        Task(int priority) {
+            this((Callable<T>) NOOP, priority);
+        }
+
+        void complete(T result) {
+            set(result);
+        }
+
+        void fail(Throwable error) {
+            setException(error);
+        }
+
+        @Override
+        public int compareTo(Task<?> another) {
+            if (mPriority != another.mPriority) return mPriority < another.mPriority ? -1 : 1;
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final HashMap<String, Batch<?>> mOpenBatches = new HashMap<>();
+
+    BillingRequestQueue(ThreadFactory factory) {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), factory);
+    }
+
+    /**
+     * Put task into the queue. The task is cancelled if the queue is already shut down.
+     */
+    void execute(Task<?> task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Put request which can be merged with other requests of the same key.
+     * @param key requests of the same key are merged while they are waiting in the queue
+     * @param priority priority of the request. The merged request takes the highest one.
+     * @param items items of the request. It can be empty for requests which are just shared.
+     * @param loader loader of merged request. It is used only when new batch is made.
+     * @param extractor extractor of the result for this request
+     * @param waiter task which receives the result of this request
+     * @return new batch which should be put into the queue, or NULL if it is merged into existing batch
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <R, T> Task<?> merge(String key, int priority, Collection<String> items,
+                                      Loader<R> loader, Extractor<R, T> extractor, Task<T> waiter) {
+        Batch<R> batch = (Batch<R>) mOpenBatches.get(key);
+        if (batch != null) {
+            batch.add(items, extractor, waiter);
+            if (priority < batch.mPriority) {
+                // move forward in the queue
+                boolean queued = mExecutor.getQueue().remove(batch);
+                batch.mPriority = priority;
+                if (queued) execute(batch);
+            }
+            return null;
+        }
+
+        batch = new Batch<>(key, priority, loader);
+        batch.add(items, extractor, waiter);
+        mOpenBatches.put(key, batch);
+        return batch;
+    }
+
+    /**
+     * Stop the thread. Tasks which are still waiting are cancelled.
+     */
+    void shutdownNow() {
+        List<Runnable> waiting = mExecutor.shutdownNow();
+        synchronized (this) {
+            mOpenBatches.clear();
+        }
+        for (Runnable runnable : waiting) {
+            ((Task<?>) runnable).cancel(false);
+        }
+    }
+
+    /**
+     * Merged request. Cancelling it cancels all merged requests.
+     */
+    private final class Batch<R> extends Task<Void> {
+        private final String mKey;
+        private final Loader<R> mLoader;
+        private final LinkedHashSet<String> mItems = new LinkedHashSet<>();
+        private final ArrayList<Waiter<R, ?>> mWaiters = new ArrayList<>();
+
+        Batch(String key, int priority, Loader<R> loader) {
+            super(priority);
+            mKey = key;
+            mLoader = loader;
+        }
+
+        <T> void add(Collection<String> items, Extractor<R, T> extractor, Task<T> task) {
+            mItems.addAll(items);
+            mWaiters.add(new Waiter<>(items, extractor, task));
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) return;
+
+            ArrayList<Waiter<R, ?>> waiters;
+            Set<String> items;
+            synchronized (BillingRequestQueue.this) {
+                // no more merge after start
+                if (mOpenBatches.get(mKey) == this) mOpenBatches.remove(mKey);
+                waiters = new ArrayList<>(mWaiters);
+                items = Collections.unmodifiableSet(new LinkedHashSet<>(mItems));
+            }
+
+            R result = null;
+            Throwable error = null;
+            try {
+                result = mLoader.load(items);
+            } catch (Throwable e) {
+                error = e;
+            }
+            for (Waiter<R, ?> waiter : waiters) {
+                waiter.complete(result, error);
+            }
+            super.run();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                ArrayList<Waiter<R, ?>> waiters;
+                synchronized (BillingRequestQueue.this) {
+                    if (mOpenBatches.get(mKey) == this) mOpenBatches.remove(mKey);
+                    waiters = new ArrayList<>(mWaiters);
+                }
+                for (Waiter<R, ?> waiter : waiters) {
+                    waiter.mTask.cancel(false);
+                }
+            }
+            return cancelled;
+        }
+    }
+
+    private static final class Waiter<R, T> {
+        private final Set<String> mItems;
+        private final Extractor<R, T> mExtractor;
+        private final Task<T> mTask;
+
+        Waiter(Collection<String> items, Extractor<R, T> extractor, Task<T> task) {
+            mItems = Collections.unmodifiableSet(new LinkedHashSet<>(items));
+            mExtractor = extractor;
+            mTask = task;
+        }
+
+        void complete(R result, Throwable error) {
+            if (error != null) {
+                mTask.fail(error);
+                return;
+            }
+            try {
+                mTask.complete(mExtractor.extract(result, mItems));
+            } catch (RuntimeException e) {
+                mTask.fail(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sampled trace of BillingController operations.<br />
+ * One span per operation is recorded into preallocated arrays which are used as a ring,
+ * so recording does not allocate and does not lock. The oldest spans are overwritten when it is full.
+ * Set it to BillingController by setTrace(). Nothing is measured while no trace is set.
+ * Spans can be written to a file by exportTo(), one JSON object per line.
+ */
+public final class BillingTrace {
+
+    /** Default count of spans which are kept */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TAG = "BillingTrace";
+
+    /**
+     * Operation of BillingController.
+     */
+    public enum Operation {
+        GET_PRODUCTS_INFO,
+        GET_PURCHASE_HISTORY,
+        GET_PURCHASE_RESULT,
+        GET_BUY_INTENT,
+        CONSUME_PURCHASE,
+        RECOVER_PURCHASES
+    }
+
+    private final int mCapacity;
+    private final long[] mStartNanos;
+    private final long[] mDurationNanos;
+    private final int[] mOperations;
+    private final int[] mResponseCodes;
+    private final int[] mItems;
+    private final int[] mPages;
+    /** Sequence + 1 of the span in each slot. 0 while the slot is written. */
+    private final AtomicLongArray mStamps;
+    private final AtomicLong mNext = new AtomicLong();
+    private volatile double mSampleRate;
+
+    // for converting System.nanoTime() to wall clock on export
+    private final long mBaseMillis = System.currentTimeMillis();
+    private final long mBaseNanos = System.nanoTime();
+
+    public BillingTrace() {
+        this(DEFAULT_CAPACITY, 1.0);
+    }
+
+    /**
+     * @param capacity count of spans which are kept
+     * @param sampleRate rate of operations which are recorded, from 0.0 to 1.0
+     */
+    public BillingTrace(int capacity, double sampleRate) {
+        if (capacity <= 0) throw new IllegalArgumentException();
+
+        mCapacity = capacity;
+        mStartNanos = new long[capacity];
+        mDurationNanos = new long[capacity];
+        mOperations = new int[capacity];
+        mResponseCodes = new int[capacity];
+        mItems = new int[capacity];
+        mPages = new int[capacity];
+        mStamps = new AtomicLongArray(capacity);
+        setSampleRate(sampleRate);
+    }
+
+    /**
+     * @param sampleRate rate of operations which are recorded, from 0.0 to 1.0
+     */
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) throw new IllegalArgumentException();
+        mSampleRate = sampleRate;
+    }
+
+    public double getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return count of spans which have been recorded, including overwritten ones
+     */
+    public long getRecordedCount() {
+        return mNext.get();
+    }
+
+    /**
+     * Start a span if it is sampled.
+     * @return start time of the span. 0 if it is not sampled.
+     */
+    long begin() {
+        double rate = mSampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) return 0;
+        long now = System.nanoTime();
+        return now == 0 ? 1 : now;
+    }
+
+    /**
+     * Finish the span which is started by begin().
+     * @param span return value of begin(). Nothing is recorded if it is 0.
+     * @param responseCode RESPONSE_CODE of the operation. -1 means error without response.
+     * @param items count of products or purchases
+     * @param pages count of calls or pages
+     */
+    void end(long span, Operation operation, int responseCode, int items, int pages) {
+        if (span == 0) return;
+        long duration = System.nanoTime() - span;
+
+        long seq = mNext.getAndIncrement();
+        int slot = (int) (seq % mCapacity);
+        mStamps.set(slot, 0);
+        mStartNanos[slot] = span;
+        mDurationNanos[slot] = duration;
+        mOperations[slot] = operation.ordinal();
+        mResponseCodes[slot] = responseCode;
+        mItems[slot] = items;
+        mPages[slot] = pages;
+        // publish the slot
+        mStamps.set(slot, seq + 1);
+    }
+
+    /**
+     * Write kept spans to the file in recorded order, one JSON object per line.
+     * @return false: cannot write
+     */
+    public boolean exportTo(File file) {
+        Operation[] operations = Operation.values();
+        long next = mNext.get();
+        long from = Math.max(0, next - mCapacity);
+
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+            StringBuilder line = new StringBuilder(128);
+            for (long seq = from; seq < next; seq++) {
+                int slot = (int) (seq % mCapacity);
+                if (mStamps.get(slot) != seq + 1) continue;
+                long start = mStartNanos[slot];
+                long duration = mDurationNanos[slot];
+                int operation = mOperations[slot];
+                int responseCode = mResponseCodes[slot];
+                int items = mItems[slot];
+                int pages = mPages[slot];
+                // skip the slot which is overwritten while reading
+                if (mStamps.get(slot) != seq + 1) continue;
+
+                line.setLength(0);
+                line.append("{\"operation\":\"").append(operations[operation].name())
+                        .append("\",\"time\":").append(mBaseMillis + TimeUnit.NANOSECONDS.toMillis(start - mBaseNanos))
+                        .append(",\"durationUs\":").append(TimeUnit.NANOSECONDS.toMicros(duration))
+                        .append(",\"responseCode\":").append(responseCode)
+                        .append(",\"items\":").append(items)
+                        .append(",\"pages\":").append(pages)
+                        .append("}\n");
+                out.append(line);
+            }
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "IOException on exportTo() " + file, e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all spans.
+     */
+    public void clear() {
+        mNext.set(0);
+        for (int i = 0; i < mCapacity; i++) {
+            mStamps.set(i, 0);
+        }
+    }
+}
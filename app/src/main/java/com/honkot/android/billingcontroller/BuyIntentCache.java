@@ -0,0 +1,109 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.app.PendingIntent;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefetched BUY_INTENT keyed by (productId, type, developerPayload).<br />
+ * developerPayload is always given by the app, so that it can verify the purchase with it.
+ * Each intent is used only once, and it is dropped after the validity window.
+ */
+final class BuyIntentCache {
+
+    /**
+     * Prefetched intent with its expiration time.
+     */
+    static final class HeldIntent {
+        final PendingIntent intent;
+        final long expiresAt;
+
+        HeldIntent(PendingIntent intent, long expiresAt) {
+            this.intent = intent;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long mValidityNanos;
+    private final Ticker mTicker;
+    private final HashMap<String, HeldIntent> mIntents = new HashMap<>();
+
+    BuyIntentCache(long validityMillis) {
+        this(validityMillis, Ticker.SYSTEM);
+    }
+
+    BuyIntentCache(long validityMillis, Ticker ticker) {
+        mValidityNanos = TimeUnit.MILLISECONDS.toNanos(validityMillis);
+        mTicker = ticker;
+    }
+
+    synchronized void put(String productId, String type, String developerPayload, PendingIntent intent) {
+        if (developerPayload == null) return;
+        mIntents.put(key(productId, type, developerPayload),
+                new HeldIntent(intent, mTicker.nanoTime() + mValidityNanos));
+    }
+
+    /**
+     * Get the held intent without taking it.
+     * @return valid intent. NULL if it is not held or expired.
+     */
+    synchronized HeldIntent peek(String productId, String type, String developerPayload) {
+        if (developerPayload == null) return null;
+        HeldIntent held = mIntents.get(key(productId, type, developerPayload));
+        return held != null && held.expiresAt - mTicker.nanoTime() > 0 ? held : null;
+    }
+
+    /**
+     * Take the held intent. It is removed, because one intent is for one purchase.
+     * @return valid intent. NULL if it is not held or expired, or developerPayload is NULL.
+     */
+    synchronized HeldIntent take(String productId, String type, String developerPayload) {
+        if (developerPayload == null) return null;
+        HeldIntent held = mIntents.remove(key(productId, type, developerPayload));
+        if (held == null || held.expiresAt - mTicker.nanoTime() <= 0) {
+            removeExpired();
+            return null;
+        }
+        return held;
+    }
+
+    synchronized void clear() {
+        mIntents.clear();
+    }
+
+    /**
+     * @return count of held intents, including expired ones which are not removed yet
+     */
+    synchronized int size() {
+        return mIntents.size();
+    }
+
+    private void removeExpired() {
+        long now = mTicker.nanoTime();
+        Iterator<HeldIntent> iterator = mIntents.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiresAt - now <= 0) iterator.remove();
+        }
+    }
+
+    private static String key(String productId, String type, String developerPayload) {
+        // payload can contain any character, so it is put at last
+        return type + '\n' + productId + '\n' + developerPayload;
+    }
+}
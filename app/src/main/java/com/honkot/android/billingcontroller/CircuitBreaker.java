@@ -0,0 +1,124 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker of one operation of the billing service.<br />
+ * It is opened after FAILURE_THRESHOLD failures in a row, and calls fail fast while it is open.
+ * After the open time, one call is let through as a probe (half open).
+ * The breaker is closed if the probe succeeds, otherwise it is opened again for twice as long.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /** Failures in a row which open the breaker */
+    static final int FAILURE_THRESHOLD = 3;
+    /** Open time after the first opening */
+    static final long MIN_OPEN_MILLIS = 5 * 1000;
+    /** Max open time after probes failed */
+    static final long MAX_OPEN_MILLIS = 5 * 60 * 1000;
+
+    private final Ticker mTicker;
+    private State mState = State.CLOSED;
+    private int mFailures = 0;
+    private long mOpenNanos = TimeUnit.MILLISECONDS.toNanos(MIN_OPEN_MILLIS);
+    private long mOpenUntil = 0;
+
+    CircuitBreaker() {
+        this(Ticker.SYSTEM);
+    }
+
+    /**
+     * @param ticker clock of the open time
+     */
+    CircuitBreaker(Ticker ticker) {
+        mTicker = ticker;
+    }
+
+    /**
+     * Check the call can be sent. In half open state, only one caller is allowed as the probe.
+     * The caller must call onResult() after the call.
+     * @return false: fail fast
+     */
+    synchronized boolean allowRequest() {
+        switch (mState) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (mOpenUntil - mTicker.nanoTime() > 0) return false;
+                mState = State.HALF_OPEN;
+                return true;
+            default:
+                // the probe is running
+                return false;
+        }
+    }
+
+    /**
+     * Record the result of the call.
+     * @param responseCode RESPONSE_CODE of the call. -1 means RemoteException.
+     */
+    synchronized void onResult(int responseCode) {
+        if (!isFailure(responseCode)) {
+            mState = State.CLOSED;
+            mFailures = 0;
+            mOpenNanos = TimeUnit.MILLISECONDS.toNanos(MIN_OPEN_MILLIS);
+            return;
+        }
+
+        if (mState == State.HALF_OPEN) {
+            // the probe failed
+            mOpenNanos = Math.min(mOpenNanos * 2, TimeUnit.MILLISECONDS.toNanos(MAX_OPEN_MILLIS));
+            open();
+        } else if (++mFailures >= FAILURE_THRESHOLD && mState == State.CLOSED) {
+            open();
+        }
+    }
+
+    /**
+     * Close the breaker, such as after the service is connected again.
+     */
+    synchronized void reset() {
+        mState = State.CLOSED;
+        mFailures = 0;
+        mOpenNanos = TimeUnit.MILLISECONDS.toNanos(MIN_OPEN_MILLIS);
+    }
+
+    synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Only errors of the service side are counted. Errors of the request such as ITEM_UNAVAILABLE
+     * mean the service is working.
+     */
+    static boolean isFailure(int responseCode) {
+        return responseCode == -1
+                || responseCode == BillingController.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE
+                || responseCode == BillingController.BILLING_RESPONSE_RESULT_ERROR;
+    }
+
+    private void open() {
+        mState = State.OPEN;
+        mOpenUntil = mTicker.nanoTime() + mOpenNanos;
+    }
+}
@@ -0,0 +1,171 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only index of owned products for fast entitlement check.<br />
+ * Each productId is given an int id which does not change while the controller is alive,
+ * so you can keep the id and check it without String comparison.
+ * The index is never modified. New index is made on every refresh, so it can be read from any thread without lock.
+ */
+public final class EntitlementIndex {
+
+    /** Id of productId which has never been received */
+    public static final int NO_ID = -1;
+    /** Expiry time of products which do not expire */
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    static final EntitlementIndex EMPTY = new EntitlementIndex(new HashMap<String, Integer>(), new String[0],
+            new long[0], new long[0], new long[0], new long[0]);
+
+    private final HashMap<String, Integer> mIds;
+    private final String[] mProductIds;
+    private final long[] mOwned;
+    private final long[] mSubscriptions;
+    private final long[] mPurchaseTimes;
+    private final long[] mExpiryTimes;
+
+    private EntitlementIndex(HashMap<String, Integer> ids, String[] productIds, long[] owned,
+                             long[] subscriptions, long[] purchaseTimes, long[] expiryTimes) {
+        mIds = ids;
+        mProductIds = productIds;
+        mOwned = owned;
+        mSubscriptions = subscriptions;
+        mPurchaseTimes = purchaseTimes;
+        mExpiryTimes = expiryTimes;
+    }
+
+    /**
+     * @return int id of the product. NO_ID if it has never been received.
+     */
+    public int getId(String productId) {
+        Integer id = mIds.get(productId);
+        return id == null ? NO_ID : id;
+    }
+
+    /**
+     * @return productId of the id. NULL if the id is unknown.
+     */
+    public String getProductId(int id) {
+        return id >= 0 && id < mProductIds.length ? mProductIds[id] : null;
+    }
+
+    /**
+     * @return count of ids
+     */
+    public int size() {
+        return mProductIds.length;
+    }
+
+    /**
+     * @return true: owned
+     */
+    public boolean isOwned(int id) {
+        return id >= 0 && id < mProductIds.length && (mOwned[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * @return true: owned
+     */
+    public boolean isOwned(String productId) {
+        return isOwned(getId(productId));
+    }
+
+    /**
+     * @return true: the product is owned as subscription
+     */
+    public boolean isSubscription(int id) {
+        return isOwned(id) && (mSubscriptions[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * @return purchaseTime of the owned product. 0 if it is not owned.
+     */
+    public long getPurchaseTime(int id) {
+        return isOwned(id) ? mPurchaseTimes[id] : 0;
+    }
+
+    /**
+     * Subscriptions are assumed to be renewed every month from purchaseTime, because purchase data does not have the period.
+     * @return next renewal time of the owned subscription, NO_EXPIRY for inapp. 0 if it is not owned.
+     */
+    public long getExpiryTime(int id) {
+        return isOwned(id) ? mExpiryTimes[id] : 0;
+    }
+
+    /**
+     * Make new index which entries of the type are replaced with live purchases.
+     * @param type TYPE_INAPP or TYPE_SUBSCRIPTIONS
+     * @param live all purchases of the type
+     * @param now current time for estimating next renewal
+     */
+    EntitlementIndex rebuild(String type, List<BillingController.PurchaseResult> live, long now) {
+        boolean subs = BillingController.TYPE_SUBSCRIPTIONS.equals(type);
+
+        // ids are kept, and new productIds are appended
+        HashMap<String, Integer> ids = new HashMap<>(mIds);
+        int count = mProductIds.length;
+        for (BillingController.PurchaseResult purchase : live) {
+            String productId = purchase.getProductId();
+            if (productId != null && !ids.containsKey(productId)) ids.put(productId, count++);
+        }
+        String[] productIds = new String[count];
+        System.arraycopy(mProductIds, 0, productIds, 0, mProductIds.length);
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+            productIds[entry.getValue()] = entry.getKey();
+        }
+
+        int words = (count + 63) >>> 6;
+        long[] owned = new long[words];
+        long[] subscriptions = new long[words];
+        long[] purchaseTimes = new long[count];
+        long[] expiryTimes = new long[count];
+
+        // keep entries of the other type
+        for (int id = 0; id < mProductIds.length; id++) {
+            if (!isOwned(id) || isSubscription(id) == subs) continue;
+            owned[id >>> 6] |= 1L << id;
+            if (!subs) subscriptions[id >>> 6] |= 1L << id;
+            purchaseTimes[id] = mPurchaseTimes[id];
+            expiryTimes[id] = mExpiryTimes[id];
+        }
+
+        for (BillingController.PurchaseResult purchase : live) {
+            if (purchase.getPurchaseState() != BillingController.PurchaseResult.PURCHASE_STATE_PURCHASED) continue;
+            String productId = purchase.getProductId();
+            if (productId == null) continue;
+
+            int id = ids.get(productId);
+            long purchaseTime = purchase.getPurchaseTime();
+            if ((owned[id >>> 6] & (1L << id)) != 0 && purchaseTimes[id] >= purchaseTime) continue;
+
+            // the latest purchase of the product
+            owned[id >>> 6] |= 1L << id;
+            if (subs) {
+                subscriptions[id >>> 6] |= 1L << id;
+            } else {
+                subscriptions[id >>> 6] &= ~(1L << id);
+            }
+            purchaseTimes[id] = purchaseTime;
+            expiryTimes[id] = subs ? BillingController.estimateNextRenewal(purchaseTime, now) : NO_EXPIRY;
+        }
+
+        return new EntitlementIndex(ids, productIds, owned, subscriptions, purchaseTimes, expiryTimes);
+    }
+}
@@ -0,0 +1,222 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.json.JSONException;
+
+/**
+ * Minimum scanner of flat JSON objects which are received from GooglePlay.<br />
+ * It only records where the values of wanted keys are, without building JSONObject.
+ * The values are decoded later by decodeString() or decodeLong() when they are needed.
+ */
+final class JsonScanner {
+
+    private JsonScanner() {
+    }
+
+    /**
+     * Scan top level of the JSON object.
+     * @param json raw JSON object
+     * @param keys wanted keys
+     * @return value positions. [i * 2] is start and [i * 2 + 1] is end (exclusive) of keys[i].
+     * Start is -1 if the key is not found.
+     * @throws JSONException if json is not an object
+     */
+    static int[] index(String json, String[] keys) throws JSONException {
+        if (json == null) throw new JSONException("null");
+
+        int[] ret = new int[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) ret[i * 2] = -1;
+
+        int len = json.length();
+        int pos = skipSpace(json, 0);
+        if (pos >= len || json.charAt(pos) != '{') throw error(json, pos);
+        pos = skipSpace(json, pos + 1);
+        if (pos < len && json.charAt(pos) == '}') return ret;
+
+        while (true) {
+            // key
+            if (pos >= len || json.charAt(pos) != '"') throw error(json, pos);
+            int keyStart = pos + 1;
+            int keyEnd = skipString(json, pos) - 1;
+            pos = skipSpace(json, keyEnd + 1);
+            if (pos >= len || json.charAt(pos) != ':') throw error(json, pos);
+
+            // value
+            int valueStart = skipSpace(json, pos + 1);
+            int valueEnd = skipValue(json, valueStart);
+            for (int i = 0; i < keys.length; i++) {
+                String key = keys[i];
+                if (key.length() == keyEnd - keyStart && json.regionMatches(keyStart, key, 0, key.length())) {
+                    ret[i * 2] = valueStart;
+                    ret[i * 2 + 1] = valueEnd;
+                    break;
+                }
+            }
+
+            pos = skipSpace(json, valueEnd);
+            if (pos >= len) throw error(json, pos);
+            char c = json.charAt(pos);
+            if (c == '}') return ret;
+            if (c != ',') throw error(json, pos);
+            pos = skipSpace(json, pos + 1);
+        }
+    }
+
+    /**
+     * Decode value as String. Numbers and literals are returned as they are.
+     * The position must be returned by index(), which validated escapes.
+     * @return NULL if start is -1 or the value is null
+     */
+    static String decodeString(String json, int start, int end) {
+        if (start < 0) return null;
+        if (json.charAt(start) != '"') {
+            return json.regionMatches(start, "null", 0, 4) ? null : json.substring(start, end);
+        }
+
+        int first = json.indexOf('\\', start + 1);
+        if (first < 0 || first >= end - 1) {
+            // no escape
+            return json.substring(start + 1, end - 1);
+        }
+
+        StringBuilder buf = new StringBuilder(end - start);
+        buf.append(json, start + 1, first);
+        for (int i = first; i < end - 1; i++) {
+            char c = json.charAt(i);
+            if (c != '\\') {
+                buf.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch (c) {
+                case 'b': buf.append('\b'); break;
+                case 'f': buf.append('\f'); break;
+                case 'n': buf.append('\n'); break;
+                case 'r': buf.append('\r'); break;
+                case 't': buf.append('\t'); break;
+                case 'u':
+                    buf.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default: buf.append(c); break;
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Decode value as long without making String. Quoted numbers are accepted too.
+     * @return defaultValue if start is -1 or the value is not a number
+     */
+    static long decodeLong(String json, int start, int end, long defaultValue) {
+        if (start < 0) return defaultValue;
+        if (json.charAt(start) == '"') {
+            start++;
+            end--;
+        }
+        if (start >= end) return defaultValue;
+
+        boolean negative = json.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i >= end) return defaultValue;
+
+        long ret = 0;
+        for (; i < end; i++) {
+            char c = json.charAt(i);
+            if (c < '0' || c > '9') return defaultValue;
+            ret = ret * 10 + (c - '0');
+        }
+        return negative ? -ret : ret;
+    }
+
+    private static int skipSpace(String json, int pos) {
+        int len = json.length();
+        while (pos < len) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') break;
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Escapes are validated here, so decodeString() does not fail later.
+     * @return position next to the closing quote
+     */
+    private static int skipString(String json, int pos) throws JSONException {
+        int len = json.length();
+        for (int i = pos + 1; i < len; i++) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                if (++i >= len) break;
+                c = json.charAt(i);
+                if (c == 'u') {
+                    if (i + 4 >= len) break;
+                    for (int j = i + 1; j <= i + 4; j++) {
+                        if (Character.digit(json.charAt(j), 16) < 0) throw error(json, j);
+                    }
+                    i += 4;
+                } else if ("\"\\/bfnrt".indexOf(c) < 0) {
+                    throw error(json, i);
+                }
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        throw error(json, len);
+    }
+
+    /**
+     * @return position next to the value
+     */
+    private static int skipValue(String json, int pos) throws JSONException {
+        int len = json.length();
+        if (pos >= len) throw error(json, pos);
+
+        char c = json.charAt(pos);
+        if (c == '"') return skipString(json, pos);
+
+        if (c == '{' || c == '[') {
+            // nested value is not used, just skip it
+            int depth = 0;
+            for (int i = pos; i < len; i++) {
+                c = json.charAt(i);
+                if (c == '"') {
+                    i = skipString(json, i) - 1;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) return i + 1;
+                }
+            }
+            throw error(json, len);
+        }
+
+        // number or literal
+        int i = pos;
+        while (i < len) {
+            c = json.charAt(i);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') break;
+            i++;
+        }
+        if (i == pos) throw error(json, pos);
+        return i;
+    }
+
+    private static JSONException error(String json, int pos) {
+        return new JSONException("Unexpected character at " + pos + " of " + json);
+    }
+}
@@ -1,51 +1,208 @@
 package com.honkot.android.billingcontroller;
 
+import android.content.Intent;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.text.Editable;
 import android.view.View;
+import android.widget.ScrollView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends AppCompatActivity {
 
+    /** Max count of lines which are kept in the log */
+    private static final int LOG_CAPACITY = 500;
+
     private Textlog mLog;
+    private BillingController mController;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mLog = new Textlog((TextView)findViewById(R.id.log));
+        mLog = new Textlog((TextView)findViewById(R.id.log), (ScrollView)findViewById(R.id.scroll), LOG_CAPACITY);
+
+        mController = new BillingController(this, new BillingController.OnCapabilitiesListener() {
+            @Override
+            public void onServiceConnected() {
+                mLog.print("Service connected");
+            }
+
+            @Override
+            public void onServiceDisconnected() {
+                mLog.print("Service disconnected");
+            }
+
+            @Override
+            public void onCapabilitiesResolved(BillingCapabilities capabilities) {
+                mLog.print(capabilities.toString());
+            }
+        });
+        // events from billing thread are also printed
+        mController.setMetricsListener(new BillingMetrics.Listener() {
+            @Override
+            public void onCallMeasured(BillingMetrics.Operation operation, long callNanos, int responseCode,
+                                       int payloadSize, long parseNanos) {
+                mLog.print(operation + " " + TimeUnit.NANOSECONDS.toMicros(callNanos) + "us code=" + responseCode
+                        + " items=" + payloadSize);
+            }
+        });
+        mController.addOnPurchasesChangedListener(new PurchaseChanges.OnPurchasesChangedListener() {
+            @Override
+            public void onPurchasesChanged(PurchaseChanges changes) {
+                mLog.print(changes.getType() + " added=" + changes.getAdded().size()
+                        + " removed=" + changes.getRemoved().size()
+                        + " changed=" + changes.getStateChanged().size());
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        mController.release();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        BillingController.PurchaseResult result = mController.getPurchaseResult(requestCode, resultCode, data);
+        mLog.print(result == null ? "Purchase failed" : "Purchased " + result.getProductId());
     }
 
     public void onClick(View view) {
         switch (view.getId()) {
             case R.id.button1:
+                mController.getProductsInfoAsync(BillingController.TESTPRODUCT_PURCHASED, true,
+                        new BillingController.OnResultListener<ArrayList<BillingController.ProductInfo>>() {
+                            @Override
+                            public void onResult(ArrayList<BillingController.ProductInfo> result) {
+                                mLog.print("Products: " + (result == null ? "error" : result.size()));
+                            }
+                        });
                 break;
             case R.id.button2:
+                mController.buyAsync(BillingController.TESTPRODUCT_PURCHASED, true, this);
                 break;
             case R.id.button3:
+                mController.getPurchaseHistoryAsync(true,
+                        new BillingController.OnResultListener<ArrayList<BillingController.PurchaseResult>>() {
+                            @Override
+                            public void onResult(ArrayList<BillingController.PurchaseResult> result) {
+                                mLog.print("Purchases: " + (result == null ? "error" : result.size()));
+                            }
+                        });
                 break;
         }
     }
 
-    private class Textlog {
-        TextView mLogView;
-        Calendar mCal;
+    /**
+     * Log on TextView which keeps last lines in a ring buffer.
+     * print() can be called from any thread, and only new lines are appended to TextView at most once per frame.
+     */
+    private static class Textlog {
+        private final TextView mLogView;
+        private final ScrollView mScrollView;
+        private final Calendar mCal = Calendar.getInstance();
+        private final StringBuilder mBuilder = new StringBuilder();
+
+        private final String[] mLines;
+        private final long[] mTimes;
+        /** Count of lines which are printed */
+        private long mWritten = 0;
+        /** Count of lines which are rendered */
+        private long mRendered = 0;
+        /** Count of lines on TextView */
+        private int mShown = 0;
+        private boolean mScheduled = false;
 
-        Textlog(TextView tv) {
-            mCal = Calendar.getInstance();
+        private final Runnable mRender = new Runnable() {
+            @Override
+            public void run() {
+                render();
+            }
+        };
+
+        Textlog(TextView tv, ScrollView scroll, int capacity) {
             mLogView = tv;
+            mScrollView = scroll;
+            mLines = new String[capacity];
+            mTimes = new long[capacity];
+            mLogView.setText("", TextView.BufferType.EDITABLE);
         }
 
         public void print(String log) {
-            mCal.setTimeInMillis(System.currentTimeMillis());
-            StringBuffer buf = new StringBuffer();
-            buf.append(log);
-            buf.append(System.getProperty("line.separator"));
-            buf.append(mLogView.getText());
-            mLogView.setText(buf.toString());
+            synchronized (this) {
+                int index = (int) (mWritten % mLines.length);
+                mLines[index] = log;
+                mTimes[index] = System.currentTimeMillis();
+                mWritten++;
+                if (mScheduled) return;
+                mScheduled = true;
+            }
+            mLogView.postOnAnimation(mRender);
+        }
+
+        /**
+         * Append lines which are printed after last render. It is called on main thread.
+         */
+        private void render() {
+            mBuilder.setLength(0);
+            int count;
+            synchronized (this) {
+                mScheduled = false;
+                // lines which are overwritten in the ring are skipped
+                long from = Math.max(mRendered, mWritten - mLines.length);
+                count = (int) (mWritten - from);
+                for (long i = from; i < mWritten; i++) {
+                    int index = (int) (i % mLines.length);
+                    appendLine(mTimes[index], mLines[index]);
+                }
+                mRendered = mWritten;
+            }
+            if (count == 0) return;
+
+            Editable text = mLogView.getEditableText();
+            int remove = mShown + count - mLines.length;
+            if (remove >= mShown) {
+                text.clear();
+                mShown = 0;
+            } else if (remove > 0) {
+                int end = 0;
+                for (int i = 0; i < remove; i++) {
+                    end = indexOf(text, '\n', end) + 1;
+                }
+                text.delete(0, end);
+                mShown -= remove;
+            }
+            text.append(mBuilder);
+            mShown += count;
+            mScrollView.fullScroll(View.FOCUS_DOWN);
+        }
+
+        private void appendLine(long time, String line) {
+            mCal.setTimeInMillis(time);
+            appendTwoDigits(mCal.get(Calendar.HOUR_OF_DAY)).append(':');
+            appendTwoDigits(mCal.get(Calendar.MINUTE)).append(':');
+            appendTwoDigits(mCal.get(Calendar.SECOND)).append(' ');
+            mBuilder.append(line).append('\n');
+        }
+
+        private StringBuilder appendTwoDigits(int value) {
+            if (value < 10) mBuilder.append('0');
+            return mBuilder.append(value);
+        }
+
+        private static int indexOf(CharSequence text, char c, int from) {
+            for (int i = from; i < text.length(); i++) {
+                if (text.charAt(i) == c) return i;
+            }
+            return text.length() - 1;
         }
     }
 }
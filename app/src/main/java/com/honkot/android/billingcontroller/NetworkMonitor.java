@@ -0,0 +1,105 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import java.util.HashSet;
+
+/**
+ * Connectivity of the process which is kept in memory.<br />
+ * NetworkCallback is registered once from the application context,
+ * so isConnected() does not ask ConnectivityManager on every call.
+ * It is kept while the process is alive.
+ */
+final class NetworkMonitor {
+
+    private static final String TAG = "NetworkMonitor";
+    private static NetworkMonitor sInstance = null;
+
+    private final ConnectivityManager mManager;
+    private final HashSet<Network> mNetworks = new HashSet<>();
+    private volatile boolean mConnected;
+    /** false: callback cannot be registered, so ConnectivityManager is asked every time */
+    private volatile boolean mRegistered = false;
+
+    private final ConnectivityManager.NetworkCallback mCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            synchronized (mNetworks) {
+                mNetworks.add(network);
+                mConnected = true;
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            synchronized (mNetworks) {
+                mNetworks.remove(network);
+                mConnected = !mNetworks.isEmpty();
+            }
+        }
+    };
+
+    private NetworkMonitor(ConnectivityManager manager) {
+        mManager = manager;
+        // initial state until the callback is called
+        mConnected = queryConnected();
+        if (manager == null) return;
+
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        try {
+            manager.registerNetworkCallback(request, mCallback);
+            mRegistered = true;
+        } catch (SecurityException e) {
+            // ACCESS_NETWORK_STATE is not granted
+            Log.w(TAG, "SecurityException on registerNetworkCallback()");
+        }
+    }
+
+    /**
+     * @return the monitor of this process
+     */
+    static synchronized NetworkMonitor get(Context context) {
+        if (sInstance == null) {
+            Context application = context.getApplicationContext();
+            if (application == null) application = context;
+            sInstance = new NetworkMonitor(
+                    (ConnectivityManager) application.getSystemService(Context.CONNECTIVITY_SERVICE));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return true: any network with internet is available
+     */
+    boolean isConnected() {
+        return mRegistered ? mConnected : queryConnected();
+    }
+
+    private boolean queryConnected() {
+        if (mManager == null) return false;
+        NetworkInfo info = mManager.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+}
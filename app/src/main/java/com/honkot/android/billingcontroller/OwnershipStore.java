@@ -0,0 +1,298 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local store of owned products.<br />
+ * It keeps the last known owned products in a small file,
+ * so that ownership can be answered before the billing service is connected.
+ * One instance is shared per directory by get(), so controllers of several activities see the same ownership.
+ */
+public class OwnershipStore {
+
+    /** File name in the files directory of the app */
+    public static final String FILE_NAME = "billing_ownership.dat";
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String TAG = "OwnershipStore";
+    private static final HashMap<String, OwnershipStore> sInstances = new HashMap<>();
+
+    private final File mFile;
+    /** NULL until the file is loaded */
+    private volatile Snapshot mSnapshot = null;
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+    /**
+     * Listener for watching difference between the stored and the live ownership.
+     */
+    public interface OnOwnershipMismatchListener {
+        /**
+         * @param productId product id which ownership is different
+         * @param storedOwned ownership which was answered from the store
+         * @param liveOwned ownership which is received from the service
+         */
+        void onOwnershipMismatch(String productId, boolean storedOwned, boolean liveOwned);
+    }
+
+    /**
+     * Use get() except tests, because two instances of one file overwrite each other.
+     */
+    public OwnershipStore(File dir) {
+        mFile = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * @return the store of the directory. One instance is shared in the process.
+     */
+    static OwnershipStore get(File dir) {
+        File file = new File(dir, FILE_NAME);
+        synchronized (sInstances) {
+            OwnershipStore store = sInstances.get(file.getPath());
+            if (store == null) {
+                store = new OwnershipStore(dir);
+                sInstances.put(file.getPath(), store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Check the product is owned or not by the last known purchases.
+     * The file is not read here, so it can be called on main thread.
+     * @return true: owned. false until load() is finished.
+     */
+    public boolean isOwned(String productId) {
+        Snapshot snapshot = mSnapshot;
+        return productId != null && snapshot != null && snapshot.records.containsKey(productId);
+    }
+
+    /**
+     * @return true: the file is loaded, and isOwned() answers stored purchases
+     */
+    public boolean isLoaded() {
+        return mSnapshot != null;
+    }
+
+    /**
+     * Read the file if it is not read yet. It does disk I/O, so call it on background thread.
+     */
+    public void load() {
+        snapshot();
+    }
+
+    /**
+     * Wait until the file is read by load() on another thread.
+     * @return true: loaded. false: timeout or interrupted.
+     */
+    public boolean awaitLoaded(long timeout, TimeUnit unit) {
+        if (mSnapshot != null) return true;
+        try {
+            return mLoaded.await(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Replace stored purchases of the type with live purchases, and save them to the file.
+     * Nothing is reported for the type which is not stored yet, such as on first launch,
+     * because there is no stored ownership to compare with.
+     * @param type product type
+     * @param live all purchases of the type received from the service
+     * @return product ids which ownership is different from the stored one
+     */
+    synchronized List<String> replace(String type, List<BillingController.PurchaseResult> live) {
+        Snapshot current = snapshot();
+        HashMap<String, Record> next = new HashMap<>(current.records.size() + live.size());
+        for (Record record : current.records.values()) {
+            if (!record.type.equals(type)) next.put(record.productId, record);
+        }
+        for (BillingController.PurchaseResult purchase : live) {
+            if (purchase.getProductId() == null) continue;
+            if (purchase.getPurchaseState() != BillingController.PurchaseResult.PURCHASE_STATE_PURCHASED) continue;
+
+            next.put(purchase.getProductId(),
+                    new Record(purchase.getProductId(), type, purchase.getPurchaseToken()));
+        }
+
+        ArrayList<String> mismatches = new ArrayList<>();
+        boolean stored = current.types.contains(type);
+        if (stored) {
+            for (Record record : current.records.values()) {
+                if (record.type.equals(type) && !next.containsKey(record.productId)) {
+                    mismatches.add(record.productId);
+                }
+            }
+            for (Record record : next.values()) {
+                if (record.type.equals(type) && !current.records.containsKey(record.productId)) {
+                    mismatches.add(record.productId);
+                }
+            }
+        }
+
+        HashSet<String> types = new HashSet<>(current.types);
+        types.add(type);
+        Snapshot snapshot = new Snapshot(next, types);
+        mSnapshot = snapshot;
+        if (!mismatches.isEmpty() || !stored) {
+            save(snapshot);
+        }
+        return mismatches;
+    }
+
+    /**
+     * Remove all stored purchases.
+     */
+    public synchronized void clear() {
+        mSnapshot = new Snapshot(new HashMap<String, Record>(), new HashSet<String>());
+        mLoaded.countDown();
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Cannot delete " + mFile);
+        }
+    }
+
+    private Snapshot snapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null) return snapshot;
+
+        synchronized (this) {
+            if (mSnapshot == null) {
+                mSnapshot = read();
+                mLoaded.countDown();
+            }
+            return mSnapshot;
+        }
+    }
+
+    private Snapshot read() {
+        HashMap<String, Record> records = new HashMap<>();
+        HashSet<String> types = new HashSet<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            // other version is replaced on next refresh
+            if (in.readInt() == FORMAT_VERSION) {
+                int typeCount = in.readInt();
+                for (int i = 0; i < typeCount; i++) {
+                    types.add(in.readUTF());
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Record record = new Record(in.readUTF(), in.readUTF(), in.readUTF());
+                    records.put(record.productId, record);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // not saved yet
+        } catch (IOException e) {
+            Log.w(TAG, "IOException on read()");
+            records.clear();
+            types.clear();
+        } finally {
+            closeQuietly(in);
+        }
+        return new Snapshot(records, types);
+    }
+
+    private void save(Snapshot snapshot) {
+        // write to temporary file, then rename it not to break the file by process kill
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(snapshot.types.size());
+            for (String type : snapshot.types) {
+                out.writeUTF(type);
+            }
+            out.writeInt(snapshot.records.size());
+            for (Record record : snapshot.records.values()) {
+                out.writeUTF(record.productId);
+                out.writeUTF(record.type);
+                out.writeUTF(record.purchaseToken);
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Cannot rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "IOException on save()");
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Stored purchases. It is never modified, and replaced as a whole.
+     */
+    private static final class Snapshot {
+        final Map<String, Record> records;
+        /** Types which are stored at least once */
+        final Set<String> types;
+
+        Snapshot(HashMap<String, Record> records, HashSet<String> types) {
+            this.records = Collections.unmodifiableMap(records);
+            this.types = Collections.unmodifiableSet(types);
+        }
+    }
+
+    private static final class Record {
+        final String productId, type, purchaseToken;
+
+        Record(String productId, String type, String purchaseToken) {
+            this.productId = productId;
+            this.type = type;
+            this.purchaseToken = purchaseToken == null ? "" : purchaseToken;
+        }
+    }
+}
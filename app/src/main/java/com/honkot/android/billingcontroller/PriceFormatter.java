@@ -0,0 +1,65 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Formatter of prices in micros.<br />
+ * NumberFormat is expensive to make and not thread-safe, so one instance is kept per locale and thread.
+ */
+final class PriceFormatter {
+
+    private static final int MICROS_SCALE = 6;
+
+    private static final ThreadLocal<HashMap<Locale, NumberFormat>> sFormats =
+            new ThreadLocal<HashMap<Locale, NumberFormat>>() {
+                @Override
+                protected HashMap<Locale, NumberFormat> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    private PriceFormatter() {
+    }
+
+    /**
+     * @param micros price in micro-units (1,000,000 micro-units equal one unit of the currency)
+     * @return localized price with currency sign
+     */
+    static String format(long micros, Currency currency, Locale locale) {
+        HashMap<Locale, NumberFormat> formats = sFormats.get();
+        NumberFormat format = formats.get(locale);
+        if (format == null) {
+            format = NumberFormat.getCurrencyInstance(locale);
+            formats.put(locale, format);
+        }
+        if (!currency.equals(format.getCurrency())) {
+            format.setCurrency(currency);
+            // setCurrency() does not change fraction digits on some runtimes, such as JPY with "0.00"
+            int digits = currency.getDefaultFractionDigits();
+            if (digits >= 0) {
+                format.setMinimumFractionDigits(digits);
+                format.setMaximumFractionDigits(digits);
+            }
+        }
+        // BigDecimal keeps micros exact
+        return format.format(BigDecimal.valueOf(micros, MICROS_SCALE));
+    }
+}
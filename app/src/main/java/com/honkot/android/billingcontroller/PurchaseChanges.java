@@ -0,0 +1,130 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Difference of purchases between the last refresh and current refresh.<br />
+ * Purchases are matched by purchaseToken, so only added, removed and purchaseState-changed purchases are included.
+ */
+public final class PurchaseChanges {
+
+    /**
+     * Listener for receiving changes of purchases.
+     */
+    public interface OnPurchasesChangedListener {
+        /**
+         * Called only when something is changed.
+         * @param changes changes of one product type
+         */
+        void onPurchasesChanged(PurchaseChanges changes);
+    }
+
+    private final String mType;
+    private final List<BillingController.PurchaseResult> mAdded;
+    private final List<BillingController.PurchaseResult> mRemoved;
+    private final List<BillingController.PurchaseResult> mStateChanged;
+
+    private PurchaseChanges(String type, List<BillingController.PurchaseResult> added,
+                            List<BillingController.PurchaseResult> removed,
+                            List<BillingController.PurchaseResult> stateChanged) {
+        mType = type;
+        mAdded = Collections.unmodifiableList(added);
+        mRemoved = Collections.unmodifiableList(removed);
+        mStateChanged = Collections.unmodifiableList(stateChanged);
+    }
+
+    /**
+     * @return TYPE_INAPP or TYPE_SUBSCRIPTIONS
+     */
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * @return purchases which are received first time
+     */
+    public List<BillingController.PurchaseResult> getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * @return purchases which are not received any more, such as consumed ones. They are the last received ones.
+     */
+    public List<BillingController.PurchaseResult> getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * @return purchases which purchaseState is changed, such as canceled or refunded ones. They are the new ones.
+     */
+    public List<BillingController.PurchaseResult> getStateChanged() {
+        return mStateChanged;
+    }
+
+    /**
+     * @return true: nothing is changed
+     */
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mRemoved.isEmpty() && mStateChanged.isEmpty();
+    }
+
+    /**
+     * Last received purchases of each type, indexed by purchaseToken.
+     */
+    static final class Tracker {
+        private final HashMap<String, HashMap<String, BillingController.PurchaseResult>> mSnapshots = new HashMap<>();
+
+        /**
+         * Replace the snapshot of the type with live purchases.
+         * At the first time of the type, all live purchases are added.
+         * @return changes from the last snapshot
+         */
+        synchronized PurchaseChanges update(String type, List<BillingController.PurchaseResult> live) {
+            HashMap<String, BillingController.PurchaseResult> last = mSnapshots.get(type);
+            if (last == null) last = new HashMap<>();
+            HashMap<String, BillingController.PurchaseResult> next = new HashMap<>(live.size() * 2);
+
+            ArrayList<BillingController.PurchaseResult> added = new ArrayList<>();
+            ArrayList<BillingController.PurchaseResult> stateChanged = new ArrayList<>();
+            for (BillingController.PurchaseResult purchase : live) {
+                String token = purchase.getPurchaseToken();
+                // same token in one response is reported once
+                if (token == null || next.containsKey(token)) continue;
+                next.put(token, purchase);
+
+                BillingController.PurchaseResult old = last.remove(token);
+                if (old == null) {
+                    added.add(purchase);
+                } else if (old.getPurchaseState() != purchase.getPurchaseState()) {
+                    stateChanged.add(purchase);
+                }
+            }
+            // left ones are not received any more
+            ArrayList<BillingController.PurchaseResult> removed = new ArrayList<>(last.values());
+
+            mSnapshots.put(type, next);
+            return new PurchaseChanges(type, added, removed, stateChanged);
+        }
+
+        synchronized void clear() {
+            mSnapshots.clear();
+        }
+    }
+}
@@ -0,0 +1,496 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of purchase tokens: received, granted and consumed.<br />
+ * Each record is [length][crc32][payload], so a record which is torn by process kill is dropped on load.
+ * Only unfinished purchases are kept in memory, and the file is rewritten with them when it becomes large.
+ * Tokens of finished purchases are also kept up to MAX_FINISHED, so that a token which google play returns
+ * again is not received twice. They are written by rewrite as CONSUMED record without data.
+ * RECEIVED and GRANTED are synced to the disk before return. Threads which append at the same time
+ * share one fsync. CONSUMED is not synced at once, because lost one is only consumed again on recovery.
+ * Methods do disk I/O on the calling thread. Call open() and compact() on a background thread,
+ * then the mark methods only append one record and wait for fsync.
+ */
+final class PurchaseJournal {
+
+    /** File name in the files directory of the app */
+    static final String FILE_NAME = "billing_journal.log";
+
+    static final byte STATE_RECEIVED = 1;
+    static final byte STATE_GRANTED = 2;
+    static final byte STATE_CONSUMED = 3;
+
+    /** Records which are kept at least before compaction */
+    private static final int COMPACT_MIN_RECORDS = 256;
+    /** Compact when records are more than this times of records which are written by the last rewrite */
+    private static final int COMPACT_RATIO = 4;
+    /** Tokens of finished purchases which are kept. Older ones are dropped. */
+    static final int MAX_FINISHED = 1000;
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String TAG = "PurchaseJournal";
+    private static final HashMap<String, PurchaseJournal> sInstances = new HashMap<>();
+
+    /**
+     * Purchase which is not finished yet.
+     */
+    static final class Entry {
+        final String purchaseToken;
+        final String json;
+        final String signature;
+        byte state;
+        boolean consumable;
+
+        Entry(String purchaseToken, String json, String signature) {
+            this.purchaseToken = purchaseToken;
+            this.json = json;
+            this.signature = signature;
+        }
+    }
+
+    private final File mFile;
+    private final Object mLock = new Object();
+    private final Object mSyncLock = new Object();
+
+    // guarded by mLock
+    private LinkedHashMap<String, Entry> mEntries = null;
+    /** Tokens of finished purchases in finished order. Value is not used. */
+    private final LinkedHashMap<String, Boolean> mFinished = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_FINISHED;
+        }
+    };
+    private FileOutputStream mOut = null;
+    private int mRecords = 0;
+    /** Records which are written by the last rewrite */
+    private int mCompactedRecords = 0;
+    /** Sequence number of the last appended record */
+    private long mWritten = 0;
+    /** Sequence number of the last record which is synced to the disk */
+    private long mSynced = 0;
+
+    /**
+     * Use get() except tests, because two instances of one file break it.
+     */
+    PurchaseJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the journal of the directory. One instance is shared in the process not to break the file.
+     */
+    static PurchaseJournal get(File dir) {
+        File file = new File(dir, FILE_NAME);
+        synchronized (sInstances) {
+            PurchaseJournal journal = sInstances.get(file.getPath());
+            if (journal == null) {
+                journal = new PurchaseJournal(file);
+                sInstances.put(file.getPath(), journal);
+            }
+            return journal;
+        }
+    }
+
+    /**
+     * Record the purchase is received from the service. It is synced before return.
+     * Nothing is recorded if the token is known already, or it is finished already.
+     * @return false: it cannot be written or synced, so it is not recovered after process kill
+     */
+    boolean markReceived(BillingController.PurchaseResult purchase) {
+        String token = purchase.getPurchaseToken();
+        if (token == null) return false;
+
+        long seq;
+        synchronized (mLock) {
+            LinkedHashMap<String, Entry> entries = load();
+            if (entries.containsKey(token) || mFinished.containsKey(token)) return true;
+
+            Entry entry = new Entry(token, purchase.getOriginalJson(), purchase.getSignature());
+            entry.state = STATE_RECEIVED;
+            entries.put(token, entry);
+            seq = append(STATE_RECEIVED, entry, true);
+        }
+        return syncUpTo(seq);
+    }
+
+    /**
+     * Record the purchase is granted to the user. It is synced before return.
+     * Non-consumable purchase is finished here.
+     * @return false: it cannot be written or synced, so the purchase may be granted again on recovery
+     */
+    boolean markGranted(BillingController.PurchaseResult purchase, boolean consumable) {
+        String token = purchase.getPurchaseToken();
+        if (token == null) return false;
+
+        long seq;
+        synchronized (mLock) {
+            LinkedHashMap<String, Entry> entries = load();
+            if (mFinished.containsKey(token)) return true;
+            Entry entry = entries.get(token);
+            boolean known = entry != null;
+            // unknown non-consumable purchase is finished already
+            if (!known && !consumable) {
+                mFinished.put(token, Boolean.TRUE);
+                return true;
+            }
+            if (!known) entry = new Entry(token, purchase.getOriginalJson(), purchase.getSignature());
+
+            entry.state = STATE_GRANTED;
+            entry.consumable = consumable;
+            if (consumable) {
+                entries.put(token, entry);
+            } else {
+                entries.remove(token);
+                mFinished.put(token, Boolean.TRUE);
+            }
+            // data is written only when it is not written by RECEIVED
+            seq = append(STATE_GRANTED, entry, !known);
+        }
+        return syncUpTo(seq);
+    }
+
+    /**
+     * Record the purchase is consumed. It is not synced at once.
+     */
+    void markConsumed(String purchaseToken) {
+        if (purchaseToken == null) return;
+        synchronized (mLock) {
+            Entry entry = load().remove(purchaseToken);
+            if (entry == null) return;
+            mFinished.put(purchaseToken, Boolean.TRUE);
+            append(STATE_CONSUMED, entry, false);
+        }
+    }
+
+    /**
+     * @return copy of unfinished purchases in received order
+     */
+    ArrayList<Entry> getUnfinished() {
+        synchronized (mLock) {
+            return new ArrayList<>(load().values());
+        }
+    }
+
+    /**
+     * @return copy of the current record of the purchase. NULL if it is finished or unknown.
+     */
+    Entry getEntry(String purchaseToken) {
+        synchronized (mLock) {
+            Entry entry = load().get(purchaseToken);
+            if (entry == null) return null;
+            Entry copy = new Entry(entry.purchaseToken, entry.json, entry.signature);
+            copy.state = entry.state;
+            copy.consumable = entry.consumable;
+            return copy;
+        }
+    }
+
+    /**
+     * Load the journal and open it for append. The file is rewritten with valid records,
+     * so a torn tail is dropped here. Call it on a background thread before the first mark.
+     * @return false: cannot write. It is tried again on next append.
+     */
+    boolean open() {
+        synchronized (mLock) {
+            load();
+            return mOut != null || rewrite();
+        }
+    }
+
+    /**
+     * @return true: many finished records are left in the file, so compact() should be called
+     */
+    boolean needsCompaction() {
+        synchronized (mLock) {
+            return mRecords >= COMPACT_MIN_RECORDS && mRecords >= COMPACT_RATIO * mCompactedRecords;
+        }
+    }
+
+    /**
+     * Rewrite the file only with unfinished purchases and finished tokens. Call it on a background thread.
+     * @return false: cannot write
+     */
+    boolean compact() {
+        synchronized (mLock) {
+            load();
+            return rewrite();
+        }
+    }
+
+    /**
+     * Sync all records to the disk, such as before the process goes background.
+     * @return false: cannot sync
+     */
+    boolean sync() {
+        long seq;
+        synchronized (mLock) {
+            seq = mWritten;
+        }
+        return syncUpTo(seq);
+    }
+
+    /**
+     * Append one record. It must be called with mLock.
+     * The file is not compacted here, because it may be called on main thread. See compact().
+     * @return sequence number of the record. -1 if it cannot be written.
+     */
+    private long append(byte state, Entry entry, boolean withData) {
+        if (mOut == null) {
+            // not opened yet, or broken by the last append.
+            // rewrite includes this change, because the entry is updated already
+            return rewrite() ? mWritten : -1;
+        }
+
+        try {
+            mOut.write(encode(state, entry, withData));
+        } catch (IOException e) {
+            Log.w(TAG, "IOException on append()");
+            // the tail may be broken, so the file is rewritten from memory on next time
+            closeQuietly(mOut);
+            mOut = null;
+            return -1;
+        }
+        mRecords++;
+        return ++mWritten;
+    }
+
+    /**
+     * Wait until the record is synced. One fsync covers all records which are appended before it.
+     * @param seq return value of append()
+     * @return false: the record is not written, or cannot be synced
+     */
+    private boolean syncUpTo(long seq) {
+        if (seq < 0) return false;
+        synchronized (mSyncLock) {
+            long target;
+            FileOutputStream out;
+            synchronized (mLock) {
+                // synced by another thread, or by rewrite
+                if (mSynced >= seq) return true;
+                // the file is broken after the record is appended
+                if (mOut == null) return false;
+                target = mWritten;
+                out = mOut;
+            }
+            try {
+                out.getFD().sync();
+            } catch (IOException e) {
+                // the file may be closed by rewrite, which syncs everything
+                Log.w(TAG, "IOException on syncUpTo()");
+                synchronized (mLock) {
+                    return mSynced >= seq;
+                }
+            }
+            synchronized (mLock) {
+                if (target > mSynced) mSynced = target;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Write unfinished purchases and finished tokens to new file, and replace the journal with it.
+     * It must be called with mLock.
+     * @return false: cannot write
+     */
+    private boolean rewrite() {
+        closeQuietly(mOut);
+        mOut = null;
+
+        // write to temporary file, then rename it not to break the file by process kill
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        int records = 0;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            new DataOutputStream(buffer).writeInt(FORMAT_VERSION);
+            // finished tokens first, then they are dropped in the same order on next load
+            for (String token : mFinished.keySet()) {
+                buffer.write(encode(STATE_CONSUMED, new Entry(token, null, null), false));
+                records++;
+            }
+            for (Entry entry : mEntries.values()) {
+                buffer.write(encode(STATE_RECEIVED, entry, true));
+                records++;
+                if (entry.state == STATE_GRANTED) {
+                    buffer.write(encode(STATE_GRANTED, entry, false));
+                    records++;
+                }
+            }
+            fos = new FileOutputStream(tmp);
+            buffer.writeTo(fos);
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Cannot rename " + tmp);
+                return false;
+            }
+            mOut = new FileOutputStream(mFile, true);
+        } catch (IOException e) {
+            Log.w(TAG, "IOException on rewrite()");
+            return false;
+        } finally {
+            closeQuietly(fos);
+        }
+
+        mRecords = records;
+        mCompactedRecords = records;
+        mSynced = mWritten;
+        return true;
+    }
+
+    /**
+     * Load unfinished purchases at first time. It must be called with mLock.
+     */
+    private LinkedHashMap<String, Entry> load() {
+        if (mEntries != null) return mEntries;
+        mEntries = new LinkedHashMap<>();
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FORMAT_VERSION) return mEntries;
+
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) break;
+                replay(payload);
+            }
+        } catch (FileNotFoundException e) {
+            // not written yet
+        } catch (EOFException e) {
+            // end of the journal, or the last record is torn
+        } catch (IOException e) {
+            Log.w(TAG, "IOException on load()");
+        } finally {
+            closeQuietly(in);
+        }
+        // the journal is rewritten with valid records on first append
+        return mEntries;
+    }
+
+    private void replay(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte state = in.readByte();
+        String token = readString(in);
+        boolean consumable = in.readBoolean();
+        String json = readString(in);
+        String signature = readString(in);
+        if (token == null) return;
+
+        // CONSUMED without data is finished token which is written by rewrite
+        if (state != STATE_RECEIVED && state != STATE_GRANTED) {
+            mEntries.remove(token);
+            mFinished.put(token, Boolean.TRUE);
+            return;
+        }
+
+        Entry entry = mEntries.get(token);
+        if (entry == null && json != null) entry = new Entry(token, json, signature);
+        if (entry == null) return;
+
+        entry.state = state;
+        if (state == STATE_GRANTED) entry.consumable = consumable;
+        if (state == STATE_RECEIVED || consumable) {
+            mEntries.put(token, entry);
+        } else {
+            mEntries.remove(token);
+            mFinished.put(token, Boolean.TRUE);
+        }
+    }
+
+    private static byte[] encode(byte state, Entry entry, boolean withData) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(state);
+        writeString(out, entry.purchaseToken);
+        out.writeBoolean(entry.consumable);
+        writeString(out, withData ? entry.json : null);
+        writeString(out, withData ? entry.signature : null);
+        byte[] bytes = payload.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+        DataOutputStream header = new DataOutputStream(record);
+        header.writeInt(bytes.length);
+        header.writeInt((int) crc.getValue());
+        record.write(bytes);
+        return record.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        // writeUTF() cannot write more than 64KB
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Offline verifier of purchase data signed by GooglePlay.<br />
+ * The public key is decoded once, and Signature instance is reused per thread.
+ * Results are memoized by purchaseToken with the signed data and the signature, so the same purchase
+ * is not verified twice. Memoized results are kept up to MAX_MEMO_ENTRIES, and LRU one is dropped.
+ */
+public class PurchaseVerifier {
+
+    private static final String KEY_ALGORITHM = "RSA";
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** Min count of purchases which one thread verifies in verifyAll() */
+    private static final int MIN_BATCH_SIZE = 16;
+    /** Max count of memoized results */
+    static final int MAX_MEMO_ENTRIES = 1000;
+
+    private static final String TAG = "PurchaseVerifier";
+
+    private final PublicKey mPublicKey;
+    private final ThreadLocal<Signature> mSignature = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance(SIGNATURE_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    /** guarded by itself */
+    private final LinkedHashMap<String, Verified> mVerified = new LinkedHashMap<String, Verified>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+            return size() > MAX_MEMO_ENTRIES;
+        }
+    };
+
+    /**
+     * @param base64PublicKey Base64-encoded RSA public key of your app on Google Play Developer Console
+     * @throws IllegalArgumentException if the key is invalid
+     */
+    public PurchaseVerifier(String base64PublicKey) {
+        try {
+            byte[] decoded = Base64.decode(base64PublicKey, Base64.DEFAULT);
+            mPublicKey = KeyFactory.getInstance(KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(decoded));
+        } catch (GeneralSecurityException | IllegalArgumentException | NullPointerException e) {
+            throw new IllegalArgumentException("Invalid public key", e);
+        }
+    }
+
+    /**
+     * Verify signature of the purchase.
+     * @return true: the purchase data is signed by GooglePlay
+     */
+    public boolean verify(BillingController.PurchaseResult purchase) {
+        String token = purchase.getPurchaseToken();
+        String json = purchase.getOriginalJson();
+        String signature = purchase.getSignature();
+        if (json == null || signature == null || signature.isEmpty()) return false;
+
+        if (token != null) {
+            Verified verified;
+            synchronized (mVerified) {
+                verified = mVerified.get(token);
+            }
+            // result is reused only for the same signed data, not to accept tampered data with known signature
+            if (verified != null && verified.signature.equals(signature) && verified.json.equals(json)) {
+                return verified.valid;
+            }
+        }
+
+        boolean valid = verify(json, signature);
+        if (token != null) {
+            synchronized (mVerified) {
+                mVerified.put(token, new Verified(json, signature, valid));
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Verify signature of the data without memoizing.
+     * @return true: the data is signed by GooglePlay
+     */
+    public boolean verify(String signedData, String signature) {
+        if (signedData == null || signature == null) return false;
+
+        try {
+            byte[] decoded = Base64.decode(signature, Base64.DEFAULT);
+            Signature verifier = mSignature.get();
+            verifier.initVerify(mPublicKey);
+            verifier.update(signedData.getBytes(UTF_8));
+            return verifier.verify(decoded);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            Log.w(TAG, "Signature verification failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Verify signatures of the purchases. Large list is split into batches and verified in parallel.
+     * @param executor executor for parallel batches. NULL means verifying on current thread.
+     * @return purchases which signature is valid, in the same order.
+     * NULL means error state, such as interrupted or the executor is shut down.
+     */
+    public ArrayList<BillingController.PurchaseResult> verifyAll(
+            final List<BillingController.PurchaseResult> purchases, ExecutorService executor) {
+        int size = purchases.size();
+        final boolean[] valid = new boolean[size];
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = Math.max(MIN_BATCH_SIZE, (size + threads - 1) / threads);
+
+        if (executor == null || size <= batchSize) {
+            for (int i = 0; i < size; i++) {
+                valid[i] = verify(purchases.get(i));
+            }
+        } else {
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            try {
+                for (int start = batchSize; start < size; start += batchSize) {
+                    final int from = start;
+                    final int to = Math.min(size, start + batchSize);
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int i = from; i < to; i++) {
+                                valid[i] = verify(purchases.get(i));
+                            }
+                        }
+                    }));
+                }
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "RejectedExecutionException on verifyAll()");
+                cancelAll(futures);
+                return null;
+            }
+
+            // first batch on current thread
+            for (int i = 0; i < batchSize; i++) {
+                valid[i] = verify(purchases.get(i));
+            }
+            // failed verification must not look like "no valid purchase", so it is error state
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "InterruptedException on verifyAll()");
+                    Thread.currentThread().interrupt();
+                    cancelAll(futures);
+                    return null;
+                } catch (ExecutionException | CancellationException e) {
+                    Log.e(TAG, e.getClass().getSimpleName() + " on verifyAll()");
+                    cancelAll(futures);
+                    return null;
+                }
+            }
+        }
+
+        ArrayList<BillingController.PurchaseResult> ret = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            if (valid[i]) {
+                ret.add(purchases.get(i));
+            } else {
+                Log.w(TAG, "Invalid signature of " + purchases.get(i).getProductId());
+            }
+        }
+        return ret;
+    }
+
+    private static void cancelAll(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Forget memoized results.
+     */
+    public void clear() {
+        synchronized (mVerified) {
+            mVerified.clear();
+        }
+    }
+
+    private static final class Verified {
+        final String json;
+        final String signature;
+        final boolean valid;
+
+        Verified(String json, String signature, boolean valid) {
+            this.json = json;
+            this.signature = signature;
+            this.valid = valid;
+        }
+    }
+}
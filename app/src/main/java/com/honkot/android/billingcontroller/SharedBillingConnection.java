@@ -0,0 +1,301 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Connection to IInAppBillingService which is shared in the process.<br />
+ * It is bound once from the application context, and kept while any BillingController is attached.
+ * After the last one is detached, it is unbound when nobody attaches again within LINGER_MILLIS.
+ * Capabilities answered by isBillingSupported() are kept for the bound service, so attached controllers skip the probe.
+ * Stored ownership is also reconciled with live purchases once per binding, not by every attached controller.
+ * Reconnection after the service is disconnected is also done here once for all controllers,
+ * with the delay which grows exponentially with jitter. Controllers only receive the result by Listener.
+ */
+final class SharedBillingConnection {
+
+    /** Time to keep the connection after the last controller is detached */
+    static final long LINGER_MILLIS = 10 * 1000;
+
+    private static final String TAG = "SharedBillingConnection";
+    private static SharedBillingConnection sInstance = null;
+
+    /**
+     * Listener of the shared connection. It is called on main thread, or the thread which calls attach().
+     */
+    interface Listener {
+        void onConnected(IInAppBillingService service);
+        void onDisconnected();
+        /** Billing service cannot be bound, such as google play is not installed */
+        void onBindFailed();
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+    private IInAppBillingService mService = null;
+    private boolean mBound = false;
+    /** NULL means the service is not probed yet */
+    private BillingCapabilities mCapabilities = null;
+    /** Service which purchases are reconciled with, or being reconciled with */
+    private IInAppBillingService mReconciled = null;
+    private int mReconnectAttempts = 0;
+    private boolean mReconnectScheduled = false;
+    private final Random mRandom;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            Log.i(TAG, "Connected to service.");
+            IInAppBillingService service = IInAppBillingService.Stub.asInterface(binder);
+            ArrayList<Listener> listeners;
+            synchronized (SharedBillingConnection.this) {
+                mService = service;
+                mCapabilities = null;
+                mReconciled = null;
+                mReconnectAttempts = 0;
+                cancelReconnect();
+                listeners = new ArrayList<>(mListeners);
+            }
+            for (Listener listener : listeners) {
+                listener.onConnected(service);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            Log.e(TAG, "Service is disconnected. (Called onServiceDisconnected)");
+            ArrayList<Listener> listeners;
+            synchronized (SharedBillingConnection.this) {
+                mService = null;
+                mCapabilities = null;
+                mReconciled = null;
+                // BIND_AUTO_CREATE restarts the service, so rebind only when it is not restarted in time
+                scheduleReconnect();
+                listeners = new ArrayList<>(mListeners);
+            }
+            for (Listener listener : listeners) {
+                listener.onDisconnected();
+            }
+        }
+    };
+
+    private final Runnable mUnbindRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SharedBillingConnection.this) {
+                if (mListeners.isEmpty()) unbind();
+            }
+        }
+    };
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+
+    /**
+     * Use get() except tests, because each instance binds the service.
+     * @param random source of jitter of reconnection delay
+     */
+    SharedBillingConnection(Context context, Random random) {
+        mContext = context;
+        mRandom = random;
+        Looper mainLooper = context.getMainLooper();
+        mHandler = mainLooper == null ? null : new Handler(mainLooper);
+    }
+
+    /**
+     * @return the connection of this process
+     */
+    static synchronized SharedBillingConnection get(Context context) {
+        if (sInstance == null) {
+            Context application = context.getApplicationContext();
+            sInstance = new SharedBillingConnection(application == null ? context : application, new Random());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Start using the connection. It binds the service if it is not bound yet.
+     * If the service is already connected, listener.onConnected() is called before return.
+     */
+    void attach(Listener listener) {
+        IInAppBillingService service;
+        boolean failed = false;
+        synchronized (this) {
+            if (!mListeners.contains(listener)) mListeners.add(listener);
+            if (mHandler != null) mHandler.removeCallbacks(mUnbindRunnable);
+
+            service = mService;
+            if (!mBound) failed = !bind();
+        }
+
+        if (failed) {
+            listener.onBindFailed();
+        } else if (service != null) {
+            listener.onConnected(service);
+        }
+    }
+
+    /**
+     * Stop using the connection. The last one starts LINGER_MILLIS before unbinding.
+     */
+    synchronized void detach(Listener listener) {
+        mListeners.remove(listener);
+        if (!mListeners.isEmpty() || !mBound) return;
+
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mUnbindRunnable);
+            mHandler.postDelayed(mUnbindRunnable, LINGER_MILLIS);
+        } else {
+            unbind();
+        }
+    }
+
+    /**
+     * Called when a binder call to the service throws RemoteException.
+     * The service is dropped and reconnection is scheduled, unless it is connected again already.
+     */
+    synchronized void reportDead(IInAppBillingService service) {
+        if (service == null || service != mService) return;
+        mService = null;
+        mCapabilities = null;
+        mReconciled = null;
+        scheduleReconnect();
+    }
+
+    /**
+     * @return capabilities of the service. NULL if it is not probed yet, or it is another service.
+     */
+    synchronized BillingCapabilities getCapabilities(IInAppBillingService service) {
+        return service == mService ? mCapabilities : null;
+    }
+
+    /**
+     * Keep capabilities while the service is connected.
+     */
+    synchronized void setCapabilities(IInAppBillingService service, BillingCapabilities capabilities) {
+        if (service == mService) mCapabilities = capabilities;
+    }
+
+    /**
+     * Start reconciling stored ownership with live purchases of the service.
+     * @return true: the caller should reconcile. false: it is done or running already, or it is another service.
+     */
+    synchronized boolean beginReconcile(IInAppBillingService service) {
+        if (service == null || service != mService || mReconciled == service) return false;
+        mReconciled = service;
+        return true;
+    }
+
+    /**
+     * Called when reconciling is failed or cancelled, so that the next attached controller tries again.
+     */
+    synchronized void cancelReconcile(IInAppBillingService service) {
+        if (mReconciled == service) mReconciled = null;
+    }
+
+    /**
+     * Rebind after the delay which grows exponentially with jitter.
+     * Nothing is done if it is scheduled already, so a bind in flight is not cancelled by other callers.
+     * It must be called with the lock of this.
+     */
+    private void scheduleReconnect() {
+        if (mHandler == null || !mBound || mReconnectScheduled) return;
+
+        long delay = Math.min(BillingController.RECONNECT_MAX_DELAY_MILLIS,
+                BillingController.RECONNECT_BASE_DELAY_MILLIS << Math.min(mReconnectAttempts, 16));
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        mReconnectAttempts++;
+        mReconnectScheduled = true;
+        Log.i(TAG, "Reconnect after " + delay + "ms");
+        mHandler.postDelayed(mReconnectRunnable, delay);
+    }
+
+    private void cancelReconnect() {
+        mReconnectScheduled = false;
+        if (mHandler != null) mHandler.removeCallbacks(mReconnectRunnable);
+    }
+
+    private void reconnect() {
+        ArrayList<Listener> listeners;
+        synchronized (this) {
+            mReconnectScheduled = false;
+            // connected again by BIND_AUTO_CREATE, or nobody uses it any more
+            if (mService != null || !mBound || mListeners.isEmpty()) return;
+
+            // unbind() resets the backoff, but this is still the same outage
+            int attempts = mReconnectAttempts;
+            unbind();
+            mReconnectAttempts = attempts;
+            if (bind()) {
+                // try again if onServiceConnected() is not called
+                scheduleReconnect();
+                return;
+            }
+            listeners = new ArrayList<>(mListeners);
+        }
+        for (Listener listener : listeners) {
+            listener.onBindFailed();
+        }
+    }
+
+    private boolean bind() {
+        Intent intent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
+        intent.setPackage("com.android.vending");
+        try {
+            mBound = mContext.bindService(intent, mServiceConnection, Context.BIND_AUTO_CREATE);
+        } catch (SecurityException e) {
+            mBound = false;
+        }
+        if (!mBound) {
+            // google play is not installed
+            Log.w(TAG, "Cannot bind billing service.");
+        }
+        return mBound;
+    }
+
+    private void unbind() {
+        if (mBound) {
+            try {
+                mContext.unbindService(mServiceConnection);
+            } catch (IllegalArgumentException e) {
+                // not bound
+            }
+        }
+        mBound = false;
+        mService = null;
+        mCapabilities = null;
+        mReconciled = null;
+        mReconnectAttempts = 0;
+        cancelReconnect();
+    }
+}
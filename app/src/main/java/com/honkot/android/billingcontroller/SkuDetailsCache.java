@@ -0,0 +1,231 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory cache of ProductInfo keyed by (productId, type).<br />
+ * Entries expire after TTL, and the least recently used entry is evicted when the cache is full.
+ * Expired entries are kept until they are replaced or evicted, so they can be answered while the service fails.
+ * Products which the service answered as unavailable are also cached with the same TTL,
+ * so that they are not requested again until they expire.
+ */
+public class SkuDetailsCache {
+
+    /** Default time to live of an entry (10 minutes) */
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000L;
+    /** Default max count of entries */
+    public static final int DEFAULT_MAX_ENTRIES = 500;
+
+    private final long mTtlMillis;
+    private final int mMaxEntries;
+    private final Ticker mTicker;
+
+    private final LinkedHashMap<Key, CacheEntry> mEntries;
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+
+    public SkuDetailsCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param ttlMillis time to live of an entry in milliseconds
+     * @param maxEntries max count of entries. LRU entry is evicted when it is exceeded.
+     */
+    public SkuDetailsCache(long ttlMillis, int maxEntries) {
+        this(ttlMillis, maxEntries, Ticker.SYSTEM);
+    }
+
+    /**
+     * @param ticker clock of TTL
+     */
+    SkuDetailsCache(long ttlMillis, int maxEntries, Ticker ticker) {
+        if (ttlMillis < 0 || maxEntries <= 0 || ticker == null) throw new IllegalArgumentException();
+
+        mTtlMillis = ttlMillis;
+        mMaxEntries = maxEntries;
+        mTicker = ticker;
+        mEntries = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry> eldest) {
+                if (size() > mMaxEntries) {
+                    mEvictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get cached product info.
+     * @return cached product info. NULL means not cached, expired or unavailable.
+     */
+    public synchronized BillingController.ProductInfo get(String productId, String type) {
+        Key key = new Key(productId, type);
+        CacheEntry entry = mEntries.get(key);
+        if (entry != null && entry.expiresAt <= now()) {
+            // kept as stale one for peekStale()
+            if (!entry.expired) {
+                entry.expired = true;
+                mEvictionCount++;
+            }
+            entry = null;
+        }
+
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return entry.info;
+    }
+
+    /**
+     * Put product info.
+     */
+    public synchronized void put(BillingController.ProductInfo info) {
+        if (info == null || info.getProductId() == null) return;
+
+        mEntries.put(new Key(info.getProductId(), info.getType()),
+                new CacheEntry(info, now() + mTtlMillis));
+    }
+
+    /**
+     * Remember the product is answered as unavailable by the service.
+     * It does not replace cached product info, because the info may come from another response.
+     */
+    synchronized void putUnavailable(String productId, String type) {
+        if (productId == null) return;
+
+        Key key = new Key(productId, type);
+        CacheEntry entry = mEntries.get(key);
+        if (entry != null && entry.info != null && entry.expiresAt > now()) return;
+        mEntries.put(key, new CacheEntry(null, now() + mTtlMillis));
+    }
+
+    /**
+     * Check the product is answered as unavailable, and it is not expired. Counters are not touched.
+     */
+    synchronized boolean isUnavailable(String productId, String type) {
+        CacheEntry entry = mEntries.get(new Key(productId, type));
+        return entry != null && entry.info == null && entry.expiresAt > now();
+    }
+
+    /**
+     * Remove all entries. Counters are kept.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Get cached product info without touching counters.
+     */
+    synchronized BillingController.ProductInfo peek(String productId, String type) {
+        CacheEntry entry = mEntries.get(new Key(productId, type));
+        if (entry == null || entry.expiresAt <= now()) return null;
+        return entry.info;
+    }
+
+    /**
+     * Get cached product info even if it is expired. It is used when the service is failing.
+     */
+    synchronized BillingController.ProductInfo peekStale(String productId, String type) {
+        CacheEntry entry = mEntries.get(new Key(productId, type));
+        return entry == null ? null : entry.info;
+    }
+
+    /**
+     * @return count of entries which are held now, including expired ones
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return count of get() which is answered by the cache, including unavailable products
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return count of get() which is not answered by the cache
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return count of entries removed by expiration or size limit
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public long getTtlMillis() {
+        return mTtlMillis;
+    }
+
+    public int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(mTicker.nanoTime());
+    }
+
+    private static final class Key {
+        final String productId, type;
+
+        Key(String productId, String type) {
+            this.productId = productId;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return productId.equals(other.productId)
+                    && (type == null ? other.type == null : type.equals(other.type));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * productId.hashCode() + (type == null ? 0 : type.hashCode());
+        }
+    }
+
+    private static final class CacheEntry {
+        /** NULL means unavailable product */
+        final BillingController.ProductInfo info;
+        final long expiresAt;
+        boolean expired = false;
+
+        CacheEntry(BillingController.ProductInfo info, long expiresAt) {
+            this.info = info;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.util.Base64;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Many threads call BillingController while the connection is connected, disconnected and released.
+ * Calls which use the parallel pool (multi-chunk getProductsInfo(), consumeAll() and verified
+ * getPurchaseHistory()) are also racing with release().
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BillingControllerStressTest {
+
+    private static final int THREADS = 8;
+    private static final int CYCLES = 30;
+    private static final int RECONNECTS_PER_CYCLE = 20;
+    private static final int PRODUCTS = 50;
+    /** Enough purchases for verifying in parallel batches */
+    private static final int PURCHASES = 64;
+
+    private static final BillingController.OnServiceResponseListener LISTENER =
+            new BillingController.OnServiceResponseListener() {
+                @Override
+                public void onServiceConnected() {
+                }
+
+                @Override
+                public void onServiceDisconnected() {
+                }
+            };
+
+    @Test
+    public void connectDisconnectReleaseCycles() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair keys = generator.generateKeyPair();
+        String publicKey = Base64.encodeToString(keys.getPublic().getEncoded(), Base64.NO_WRAP);
+        FakeBillingService service = new FakeBillingService(1)
+                .generateCatalog(BillingController.TYPE_INAPP, "product.", PRODUCTS)
+                .generatePurchases(BillingController.TYPE_INAPP, "product.", PURCHASES)
+                .setSigningKey(keys.getPrivate())
+                .setLatency(FakeBillingService.uniformLatency(0, 200));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for (int cycle = 0; cycle < CYCLES; cycle++) {
+            final BillingController controller =
+                    new BillingController(RuntimeEnvironment.application, LISTENER, service);
+            controller.setDeliverOnMainThread(false);
+            controller.setPublicKey(publicKey);
+
+            final CountDownLatch stop = new CountDownLatch(1);
+            ArrayList<Thread> callers = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                final Random random = new Random(cycle * THREADS + i);
+                Thread caller = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (stop.getCount() > 0) {
+                                call(controller, random);
+                            }
+                            // calls after release
+                            call(controller, random);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+                caller.start();
+                callers.add(caller);
+            }
+
+            for (int i = 0; i < RECONNECTS_PER_CYCLE; i++) {
+                controller.onDisconnected();
+                Thread.sleep(1);
+                controller.onConnected(service);
+                Thread.sleep(1);
+            }
+            controller.release();
+            stop.countDown();
+            for (Thread caller : callers) {
+                caller.join(TimeUnit.SECONDS.toMillis(30));
+                assertFalse("caller is stuck", caller.isAlive());
+            }
+
+            assertNull(failure.get());
+            assertEquals(BillingController.ConnectionState.DISCONNECTED, controller.getConnectionState());
+            assertTrue(controller.isError());
+
+            // nothing happens after release
+            controller.onConnected(service);
+            assertEquals(BillingController.ConnectionState.DISCONNECTED, controller.getConnectionState());
+        }
+    }
+
+    private static void call(BillingController controller, Random random) throws Exception {
+        switch (random.nextInt(9)) {
+            case 0:
+                controller.getPurchaseHistory(true);
+                break;
+            case 1:
+                controller.getProductsInfo("product." + random.nextInt(50), true);
+                break;
+            case 2:
+                waitAsync(controller.getPurchaseHistoryAsync(true, null));
+                break;
+            case 3:
+                waitAsync(controller.getProductsInfoAsync("product." + random.nextInt(50), true, null));
+                break;
+            case 4:
+                controller.getEntitlements().isOwned("product." + random.nextInt(50));
+                controller.isOwned("product." + random.nextInt(50));
+                break;
+            case 5: {
+                // more than one chunk, so chunks are sent in parallel
+                ArrayList<String> ids = new ArrayList<>();
+                int count = FakeBillingService.MAX_SKU_DETAILS_ITEMS + 1 + random.nextInt(PRODUCTS - 20);
+                for (int i = 0; i < count; i++) {
+                    ids.add("product." + i);
+                }
+                HashMap<String, BillingController.ProductInfo> infos = controller.getProductsInfo(ids, true);
+                // partial result is not returned
+                if (infos != null) assertEquals(count, infos.size());
+                break;
+            }
+            case 6: {
+                // not owned tokens, so the history is kept for other calls
+                ArrayList<BillingController.PurchaseResult> targets = new ArrayList<>();
+                for (int i = 0; i < 2 + random.nextInt(4); i++) {
+                    targets.add(new BillingController.PurchaseResult("{\"productId\":\"product." + i
+                            + "\",\"purchaseToken\":\"missing." + random.nextInt() + "." + i + "\"}", null));
+                }
+                HashMap<String, Integer> results = controller.consumeAll(targets);
+                assertEquals(targets.size(), results.size());
+                for (Map.Entry<String, Integer> result : results.entrySet()) {
+                    int code = result.getValue();
+                    assertTrue("unexpected " + code, code == BillingController.BILLING_RESPONSE_RESULT_OK || code == -1);
+                }
+                break;
+            }
+            case 7: {
+                // verified in parallel batches. interrupted verification must not drop purchases.
+                ArrayList<BillingController.PurchaseResult> history = controller.getPurchaseHistory(true);
+                if (history != null) assertEquals(PURCHASES, history.size());
+                break;
+            }
+            default:
+                controller.isError();
+                controller.getConnectionState();
+                break;
+        }
+    }
+
+    private static void waitAsync(Future<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (CancellationException e) {
+            // released
+        } catch (TimeoutException e) {
+            throw new AssertionError("async call is never finished");
+        }
+    }
+}
@@ -0,0 +1,523 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Controllers are made by FakeBillingService, so they have no main looper, same as benchmarks.
+ * Tests of saved state use the application of Robolectric instead.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BillingControllerTest {
+
+    private static final String INAPP = BillingController.TYPE_INAPP;
+    private static final String SUBS = BillingController.TYPE_SUBSCRIPTIONS;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private static final BillingController.OnServiceResponseListener LISTENER =
+            new BillingController.OnServiceResponseListener() {
+                @Override
+                public void onServiceConnected() {
+                }
+
+                @Override
+                public void onServiceDisconnected() {
+                }
+            };
+
+    private final FakeBillingService mService = new FakeBillingService();
+
+    @After
+    public void tearDown() {
+        mService.deleteFiles();
+    }
+
+    @Test
+    public void syncCallWaitsForConnection() throws Exception {
+        mService.generateCatalog(INAPP, "product.", 1)
+                .setLatency(new FakeBillingService.LatencyModel() {
+                    @Override
+                    public long nextDelayMicros(BillingMetrics.Operation operation, Random random) {
+                        return operation == BillingMetrics.Operation.IS_BILLING_SUPPORTED
+                                ? TimeUnit.MILLISECONDS.toMicros(200) : 0;
+                    }
+                });
+        BillingController controller = mService.newConnectingController();
+        try {
+            assertEquals(BillingController.ConnectionState.CONNECTING, controller.getConnectionState());
+
+            HashMap<String, BillingController.ProductInfo> infos =
+                    controller.getProductsInfo(Collections.singletonList("product.0"), true);
+            assertEquals(Collections.singleton("product.0"), infos.keySet());
+            // it is not called before isBillingSupported() is finished
+            assertEquals(BillingController.ConnectionState.CONNECTED, controller.getConnectionState());
+        } finally {
+            controller.release();
+        }
+    }
+
+    @Test
+    public void syncCallRunsOnBillingThread() throws Exception {
+        mService.generatePurchases(INAPP, "product.", 3).setPageSize(1);
+        BillingController controller = mService.newController();
+        try {
+            final ArrayList<String> threads = new ArrayList<>();
+            assertTrue(controller.getPurchaseHistory(true, new BillingController.OnPurchaseHistoryPageListener() {
+                @Override
+                public boolean onPage(ArrayList<BillingController.PurchaseResult> page) {
+                    threads.add(Thread.currentThread().getName());
+                    return true;
+                }
+            }));
+            // serialized with queued requests
+            assertEquals(Collections.nCopies(3, "BillingController-Worker"), threads);
+        } finally {
+            controller.release();
+        }
+    }
+
+    @Test
+    public void warmStartSkipsProbeWithoutSubscriptions() throws Exception {
+        installPlayStore(80000000);
+        mService.setSupportedResponse(SUBS, BillingController.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE);
+
+        BillingController cold = connect();
+        assertEquals(2, mService.getCallCount(BillingMetrics.Operation.IS_BILLING_SUPPORTED));
+        assertTrue(cold.getCapabilities().isInAppSupported());
+        assertFalse(cold.getCapabilities().isSubscriptionsSupported());
+        cold.release();
+
+        mService.resetCallCounts();
+        BillingController warm = connect();
+        try {
+            assertEquals(0, mService.getCallCount(BillingMetrics.Operation.IS_BILLING_SUPPORTED));
+            assertTrue(warm.getCapabilities().isInAppSupported());
+            assertFalse(warm.getCapabilities().isSubscriptionsSupported());
+        } finally {
+            warm.release();
+        }
+    }
+
+    @Test
+    public void unavailableInAppIsProbedAgain() throws Exception {
+        installPlayStore(80000000);
+        // no account is signed in
+        mService.setSupportedResponse(BillingController.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE);
+        connect().release();
+
+        mService.resetCallCounts();
+        mService.setSupportedResponse(BillingController.BILLING_RESPONSE_RESULT_OK);
+        BillingController controller = connect();
+        try {
+            assertEquals(2, mService.getCallCount(BillingMetrics.Operation.IS_BILLING_SUPPORTED));
+            assertTrue(controller.getCapabilities().isSubscriptionsSupported());
+        } finally {
+            controller.release();
+        }
+    }
+
+    @Test
+    public void temporaryErrorOfSubscriptionsIsProbedAgain() throws Exception {
+        installPlayStore(80000000);
+        mService.setSupportedResponse(SUBS, BillingController.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
+        connect().release();
+
+        mService.resetCallCounts();
+        mService.setSupportedResponse(BillingController.BILLING_RESPONSE_RESULT_OK);
+        BillingController controller = connect();
+        try {
+            assertEquals(2, mService.getCallCount(BillingMetrics.Operation.IS_BILLING_SUPPORTED));
+            assertTrue(controller.getCapabilities().isSubscriptionsSupported());
+        } finally {
+            controller.release();
+        }
+    }
+
+    @Test
+    public void bindFailureIsNotifiedAsUnsupported() throws Exception {
+        // still CONNECTING when the bind fails
+        mService.setLatency(new FakeBillingService.LatencyModel() {
+            @Override
+            public long nextDelayMicros(BillingMetrics.Operation operation, Random random) {
+                return TimeUnit.MILLISECONDS.toMicros(200);
+            }
+        });
+        final ArrayList<Object> events = new ArrayList<>();
+        BillingController controller = new BillingController(RuntimeEnvironment.application,
+                new BillingController.OnCapabilitiesListener() {
+                    @Override
+                    public void onCapabilitiesResolved(BillingCapabilities capabilities) {
+                        events.add(capabilities);
+                    }
+
+                    @Override
+                    public void onServiceConnected() {
+                        events.add("connected");
+                    }
+
+                    @Override
+                    public void onServiceDisconnected() {
+                        events.add("disconnected");
+                    }
+                }, mService);
+        try {
+            controller.onBindFailed();
+            ShadowLooper.runUiThreadTasks();
+
+            assertEquals(BillingController.ConnectionState.UNSUPPORTED, controller.getConnectionState());
+            assertEquals(2, events.size());
+            assertEquals("disconnected", events.get(0));
+            BillingCapabilities capabilities = (BillingCapabilities) events.get(1);
+            assertFalse(capabilities.isInAppSupported());
+            assertFalse(capabilities.isSubscriptionsSupported());
+            assertSame(capabilities, controller.getCapabilities());
+        } finally {
+            controller.release();
+        }
+    }
+
+    @Test
+    public void recoveryGrantsReceivedPurchaseOnce() throws Exception {
+        String token = mService.addPurchase(INAPP, "coin", System.currentTimeMillis(), 0);
+        BillingController controller = mService.newController();
+        try {
+            assertNotNull(controller.getPurchaseResult(BillingController.ACTIVITY_RESULT_CODE,
+                    Activity.RESULT_OK, purchaseResult("coin", token)));
+            CountingRecovery recovery = new CountingRecovery();
+
+            assertEquals(0, controller.recoverPurchases(recovery));
+            assertEquals(1, recovery.grants.get());
+            assertEquals(1, mService.getCallCount(BillingMetrics.Operation.CONSUME_PURCHASE));
+
+            assertEquals(0, controller.recoverPurchases(recovery));
+            assertEquals(1, recovery.grants.get());
+        } finally {
+            controller.release();
+        }
+    }
+
+    @Test
+    public void recoveryConsumesGrantedPurchaseWithoutGrantAgain() throws Exception {
+        String token = mService.addPurchase(INAPP, "coin", System.currentTimeMillis(), 0);
+        BillingController controller = mService.newController();
+        try {
+            BillingController.PurchaseResult purchase = controller.getPurchaseResult(
+                    BillingController.ACTIVITY_RESULT_CODE, Activity.RESULT_OK, purchaseResult("coin", token));
+            // process is killed after the grant is saved and before consume
+            assertTrue(controller.markGranted(purchase, true));
+            CountingRecovery recovery = new CountingRecovery();
+
+            assertEquals(0, controller.recoverPurchases(recovery));
+            assertEquals(0, recovery.grants.get());
+            assertEquals(1, mService.getCallCount(BillingMetrics.Operation.CONSUME_PURCHASE));
+        } finally {
+            controller.release();
+        }
+    }
+
+    @Test
+    public void recoveryIgnoresTruncatedTail() throws Exception {
+        Context context = mService.newContext();
+        File file = writeJournal(context, "token.1", "token.2");
+        // the last record is cut by process kill
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 3);
+        raf.close();
+
+        assertEquals(1, recoverOnNewController(context));
+    }
+
+    @Test
+    public void recoveryIgnoresCorruptTail() throws Exception {
+        Context context = mService.newContext();
+        File file = writeJournal(context, "token.1", "token.2");
+        // payload of the last record does not match its crc32
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(file.length() - 1);
+        int last = raf.read();
+        raf.seek(file.length() - 1);
+        raf.write(last ^ 0xff);
+        raf.close();
+
+        assertEquals(1, recoverOnNewController(context));
+    }
+
+    @Test
+    public void journalIsCompactedOnBillingThread() throws Exception {
+        Context context = mService.newContext();
+        BillingController controller = new BillingController(context, LISTENER, mService);
+        try {
+            int purchases = 100;
+            for (int i = 0; i < purchases; i++) {
+                String token = mService.addPurchase(INAPP, "coin", System.currentTimeMillis(), 0);
+                BillingController.PurchaseResult purchase = controller.getPurchaseResult(
+                        BillingController.ACTIVITY_RESULT_CODE, Activity.RESULT_OK, purchaseResult("coin", token));
+                assertTrue(controller.markGranted(purchase, true));
+                assertEquals(BillingController.BILLING_RESPONSE_RESULT_OK.intValue(), controller.consumePurchase(purchase));
+            }
+
+            PurchaseJournal journal = PurchaseJournal.get(context.getFilesDir());
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (journal.needsCompaction()) {
+                assertTrue("not compacted", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            assertTrue(journal.getUnfinished().isEmpty());
+            // each RECEIVED record has the whole purchase data, but compacted ones are only tokens
+            File file = new File(context.getFilesDir(), PurchaseJournal.FILE_NAME);
+            String json = purchaseResult("coin", "token").getStringExtra(BillingController.INAPP_PURCHASE_DATA);
+            assertTrue(file.length() < (long) purchases * json.length());
+        } finally {
+            controller.release();
+        }
+    }
+
+    /**
+     * Write RECEIVED records before the controller reads the journal, same as before process kill.
+     */
+    private static File writeJournal(Context context, String... tokens) throws Exception {
+        File file = new File(context.getFilesDir(), PurchaseJournal.FILE_NAME);
+        PurchaseJournal journal = new PurchaseJournal(file);
+        for (String token : tokens) {
+            assertTrue(journal.markReceived(new BillingController.PurchaseResult(
+                    FakeBillingService.purchaseJson("coin", System.currentTimeMillis(), 0, 0, token), "")));
+        }
+        return file;
+    }
+
+    /**
+     * @return count of purchases which are passed to onGrant()
+     */
+    private int recoverOnNewController(Context context) throws Exception {
+        BillingController controller = new BillingController(context, LISTENER, mService);
+        try {
+            CountingRecovery recovery = new CountingRecovery();
+            assertEquals(0, controller.recoverPurchases(recovery));
+            return recovery.grants.get();
+        } finally {
+            controller.release();
+        }
+    }
+
+    @Test
+    public void transientConsumeErrorsAreRetriedThenReported() throws Exception {
+        int[] errors = {
+                BillingController.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE,
+                BillingController.BILLING_RESPONSE_RESULT_ERROR,
+                FakeBillingService.REMOTE_EXCEPTION};
+        BillingController controller = mService.newController();
+        try {
+            for (int error : errors) {
+                String token = mService.addPurchase(INAPP, "coin", System.currentTimeMillis(), 0);
+                BillingController.PurchaseResult purchase = purchase("coin", token);
+                mService.resetCallCounts();
+                mService.failNext(BillingMetrics.Operation.CONSUME_PURCHASE, error, Integer.MAX_VALUE);
+
+                // RemoteException is reported as -1
+                assertEquals(error, controller.consumePurchase(purchase));
+                assertEquals(BillingController.CONSUME_MAX_RETRIES + 1,
+                        mService.getCallCount(BillingMetrics.Operation.CONSUME_PURCHASE));
+                mService.clearErrors();
+            }
+        } finally {
+            controller.release();
+        }
+    }
+
+    @Test
+    public void transientConsumeErrorRecoversByRetry() throws Exception {
+        String token = mService.addPurchase(INAPP, "coin", System.currentTimeMillis(), 0);
+        BillingController controller = mService.newController();
+        try {
+            mService.resetCallCounts();
+            mService.failNext(BillingMetrics.Operation.CONSUME_PURCHASE,
+                    BillingController.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE, BillingController.CONSUME_MAX_RETRIES);
+
+            assertEquals(BillingController.BILLING_RESPONSE_RESULT_OK.intValue(),
+                    controller.consumePurchase(purchase("coin", token)));
+            assertEquals(BillingController.CONSUME_MAX_RETRIES + 1,
+                    mService.getCallCount(BillingMetrics.Operation.CONSUME_PURCHASE));
+        } finally {
+            controller.release();
+        }
+    }
+
+    @Test
+    public void consumeAllReportsFailuresPerToken() throws Exception {
+        String first = mService.addPurchase(INAPP, "coin", System.currentTimeMillis(), 0);
+        String second = mService.addPurchase(INAPP, "coin", System.currentTimeMillis(), 0);
+        BillingController controller = mService.newController();
+        try {
+            mService.resetCallCounts();
+            mService.failNext(BillingMetrics.Operation.CONSUME_PURCHASE,
+                    BillingController.BILLING_RESPONSE_RESULT_ERROR, Integer.MAX_VALUE);
+
+            HashMap<String, Integer> results = controller.consumeAll(
+                    Arrays.asList(purchase("coin", first), purchase("coin", second)));
+            assertEquals(BillingController.BILLING_RESPONSE_RESULT_ERROR, results.get(first));
+            assertEquals(BillingController.BILLING_RESPONSE_RESULT_ERROR, results.get(second));
+            assertEquals(2 * (BillingController.CONSUME_MAX_RETRIES + 1),
+                    mService.getCallCount(BillingMetrics.Operation.CONSUME_PURCHASE));
+
+            // other errors are not retried
+            mService.resetCallCounts();
+            mService.failNext(BillingMetrics.Operation.CONSUME_PURCHASE,
+                    BillingController.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR, Integer.MAX_VALUE);
+            results = controller.consumeAll(Collections.singletonList(purchase("coin", first)));
+            assertEquals(BillingController.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR, results.get(first));
+            assertEquals(1, mService.getCallCount(BillingMetrics.Operation.CONSUME_PURCHASE));
+        } finally {
+            controller.release();
+        }
+    }
+
+    private static BillingController.PurchaseResult purchase(String productId, String token) throws Exception {
+        return new BillingController.PurchaseResult(
+                FakeBillingService.purchaseJson(productId, System.currentTimeMillis(), 0, 0, token), "");
+    }
+
+    @Test
+    public void renewalIsEstimatedMonthlyFromPurchaseTime() throws Exception {
+        long purchaseTime = utc(2016, Calendar.JANUARY, 15, 10, 0);
+
+        assertEquals(utc(2016, Calendar.MARCH, 15, 10, 0),
+                BillingController.estimateNextRenewal(purchaseTime, utc(2016, Calendar.MARCH, 10, 0, 0)));
+        assertEquals(utc(2016, Calendar.APRIL, 15, 10, 0),
+                BillingController.estimateNextRenewal(purchaseTime, utc(2016, Calendar.MARCH, 20, 0, 0)));
+        // renewal at now is in the past
+        assertEquals(utc(2016, Calendar.APRIL, 15, 10, 0),
+                BillingController.estimateNextRenewal(purchaseTime, utc(2016, Calendar.MARCH, 15, 10, 0)));
+        // end of month is moved to the last day of shorter month
+        assertEquals(utc(2016, Calendar.FEBRUARY, 29, 0, 0), BillingController.estimateNextRenewal(
+                utc(2016, Calendar.JANUARY, 31, 0, 0), utc(2016, Calendar.FEBRUARY, 10, 0, 0)));
+        // not in the past
+        assertEquals(purchaseTime, BillingController.estimateNextRenewal(purchaseTime, purchaseTime - 1));
+    }
+
+    @Test
+    public void syncDelayFollowsNearestRenewal() throws Exception {
+        long hour = TimeUnit.HOURS.toMillis(1);
+        long now = utc(2016, Calendar.MARCH, 15, 0, 0);
+        long renewal = utc(2016, Calendar.JANUARY, 15, 0, 0);
+
+        assertEquals(BillingController.SYNC_MIN_INTERVAL_MILLIS, BillingController.nextSyncDelay(now, null));
+        assertEquals(BillingController.SYNC_MAX_INTERVAL_MILLIS,
+                BillingController.nextSyncDelay(now, new ArrayList<BillingController.PurchaseResult>()));
+        // far from renewal
+        assertEquals(BillingController.SYNC_MAX_INTERVAL_MILLIS,
+                BillingController.nextSyncDelay(now, subs(renewal + 10 * 24 * hour)));
+        // until the window before renewal
+        assertEquals(3 * hour - BillingController.SYNC_RENEWAL_WINDOW_MILLIS,
+                BillingController.nextSyncDelay(now, subs(renewal + 3 * hour)));
+        // nearest one wins
+        assertEquals(hour,
+                BillingController.nextSyncDelay(now, subs(renewal + 10 * 24 * hour, renewal + 2 * hour)));
+        // in the window before or after renewal
+        assertEquals(BillingController.SYNC_MIN_INTERVAL_MILLIS,
+                BillingController.nextSyncDelay(now, subs(renewal + hour / 2)));
+        assertEquals(BillingController.SYNC_MIN_INTERVAL_MILLIS,
+                BillingController.nextSyncDelay(now, subs(renewal - hour / 2)));
+        // purchase in the future is ignored
+        assertEquals(BillingController.SYNC_MAX_INTERVAL_MILLIS,
+                BillingController.nextSyncDelay(now, subs(now + hour)));
+    }
+
+    private static ArrayList<BillingController.PurchaseResult> subs(long... purchaseTimes) throws Exception {
+        ArrayList<BillingController.PurchaseResult> ret = new ArrayList<>();
+        for (int i = 0; i < purchaseTimes.length; i++) {
+            ret.add(new BillingController.PurchaseResult(
+                    FakeBillingService.purchaseJson("sub." + i, purchaseTimes[i], 0, i, "token." + i), ""));
+        }
+        return ret;
+    }
+
+    private static long utc(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    private static Intent purchaseResult(String productId, String token) {
+        Intent data = new Intent();
+        data.putExtra(BillingController.RESPONSE_CODE, BillingController.BILLING_RESPONSE_RESULT_OK);
+        data.putExtra(BillingController.INAPP_PURCHASE_DATA,
+                FakeBillingService.purchaseJson(productId, System.currentTimeMillis(), 0, 0, token));
+        data.putExtra(BillingController.INAPP_DATA_SIGNATURE, "");
+        return data;
+    }
+
+    private static final class CountingRecovery implements BillingController.OnRecoveryListener {
+        final AtomicInteger grants = new AtomicInteger();
+
+        @Override
+        public boolean onGrant(BillingController.PurchaseResult purchase) {
+            grants.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean isConsumable(String productId) {
+            return true;
+        }
+    }
+
+    private static void installPlayStore(int versionCode) {
+        PackageInfo info = new PackageInfo();
+        info.packageName = "com.android.vending";
+        info.versionCode = versionCode;
+        RuntimeEnvironment.getRobolectricPackageManager().addPackage(info);
+    }
+
+    /**
+     * Make controller on the application of Robolectric, and wait until capabilities are resolved.
+     */
+    private BillingController connect() throws Exception {
+        BillingController controller = new BillingController(RuntimeEnvironment.application, LISTENER, mService);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (controller.getCapabilities() == null) {
+            assertTrue("not connected", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return controller;
+    }
+}
@@ -0,0 +1,106 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Histogram buckets are checked through percentiles of Aggregator.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BillingMetricsTest {
+
+    private static final BillingMetrics.Operation OP = BillingMetrics.Operation.GET_SKU_DETAILS;
+    private static final int OK = BillingController.BILLING_RESPONSE_RESULT_OK;
+
+    @Test
+    public void smallLatencyIsExact() throws Exception {
+        for (long micros = 0; micros < 32; micros++) {
+            BillingMetrics.Aggregator aggregator = new BillingMetrics.Aggregator();
+            record(aggregator, micros, OK);
+            assertEquals(micros, aggregator.getPercentileMicros(OP, 50));
+        }
+    }
+
+    @Test
+    public void bucketErrorIsSmall() throws Exception {
+        // both sides of each power of two
+        for (int bit = 5; bit < 36; bit++) {
+            long[] values = {(1L << bit) - 1, 1L << bit, (1L << bit) + 1, (3L << bit) / 2};
+            for (long micros : values) {
+                BillingMetrics.Aggregator aggregator = new BillingMetrics.Aggregator();
+                record(aggregator, micros, OK);
+                long recorded = aggregator.getPercentileMicros(OP, 50);
+                assertTrue(micros + " -> " + recorded, Math.abs(recorded - micros) <= micros / 32 + 1);
+            }
+        }
+    }
+
+    @Test
+    public void percentilesOfUniformLatency() throws Exception {
+        BillingMetrics.Aggregator aggregator = new BillingMetrics.Aggregator();
+        for (long micros = 1; micros <= 1000; micros++) {
+            record(aggregator, micros, OK);
+        }
+
+        assertEquals(1000, aggregator.getCount(OP));
+        assertEquals(1, aggregator.getPercentileMicros(OP, 0));
+        assertEquals(500, aggregator.getPercentileMicros(OP, 50), 500 / 32);
+        assertEquals(990, aggregator.getPercentileMicros(OP, 99), 990 / 32);
+        assertEquals(1000, aggregator.getPercentileMicros(OP, 100), 1000 / 32);
+    }
+
+    @Test
+    public void outOfRangeLatencyIsClamped() throws Exception {
+        BillingMetrics.Aggregator aggregator = new BillingMetrics.Aggregator();
+        aggregator.onCallMeasured(OP, -1, OK, 0, 0);
+        assertEquals(0, aggregator.getPercentileMicros(OP, 100));
+
+        aggregator.onCallMeasured(OP, Long.MAX_VALUE, OK, 0, 0);
+        long max = aggregator.getPercentileMicros(OP, 100);
+        assertEquals(1L << 36, max, (1L << 36) / 32);
+    }
+
+    @Test
+    public void operationsAndErrorsAreCountedSeparately() throws Exception {
+        BillingMetrics.Aggregator aggregator = new BillingMetrics.Aggregator();
+        record(aggregator, 100, OK);
+        record(aggregator, 100, BillingController.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
+        aggregator.onCallMeasured(BillingMetrics.Operation.GET_PURCHASES, 0, -1, 0, 0);
+
+        assertEquals(2, aggregator.getCount(OP));
+        assertEquals(1, aggregator.getErrorCount(OP));
+        assertEquals(1, aggregator.getCount(BillingMetrics.Operation.GET_PURCHASES));
+        assertEquals(1, aggregator.getErrorCount(BillingMetrics.Operation.GET_PURCHASES));
+        assertEquals(0, aggregator.getPercentileMicros(BillingMetrics.Operation.GET_BUY_INTENT, 50));
+
+        aggregator.reset();
+        assertEquals(0, aggregator.getCount(OP));
+        assertEquals(0, aggregator.getErrorCount(OP));
+        assertEquals(0, aggregator.getPercentileMicros(OP, 50));
+    }
+
+    private static void record(BillingMetrics.Aggregator aggregator, long micros, int responseCode) {
+        aggregator.onCallMeasured(OP, TimeUnit.MICROSECONDS.toNanos(micros), responseCode, 1, 0);
+    }
+}
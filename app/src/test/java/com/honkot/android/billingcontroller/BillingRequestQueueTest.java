@@ -0,0 +1,167 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The worker thread is blocked by a gate task, so requests are queued before any of them runs.
+ */
+public class BillingRequestQueueTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private BillingRequestQueue mQueue;
+    private CountDownLatch mGate;
+    /** Names of tasks in run order */
+    private final List<String> mRuns = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        mQueue = new BillingRequestQueue(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "BillingRequestQueueTest");
+            }
+        });
+
+        mGate = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        mQueue.execute(new BillingRequestQueue.Task<>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                started.countDown();
+                mGate.await();
+                return null;
+            }
+        }, BillingRequestQueue.PRIORITY_USER));
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        mGate.countDown();
+        mQueue.shutdownNow();
+    }
+
+    @Test
+    public void foregroundOvertakesBackground() throws Exception {
+        BillingRequestQueue.Task<String> background1 = task("background.1", BillingRequestQueue.PRIORITY_BACKGROUND);
+        BillingRequestQueue.Task<String> background2 = task("background.2", BillingRequestQueue.PRIORITY_BACKGROUND);
+        BillingRequestQueue.Task<String> normal = task("normal", BillingRequestQueue.PRIORITY_NORMAL);
+        BillingRequestQueue.Task<String> user = task("user", BillingRequestQueue.PRIORITY_USER);
+        mQueue.execute(background1);
+        mQueue.execute(background2);
+        mQueue.execute(normal);
+        mQueue.execute(user);
+
+        mGate.countDown();
+        assertEquals("background.2", background2.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // same priority is FIFO
+        assertEquals(Arrays.asList("user", "normal", "background.1", "background.2"), mRuns);
+    }
+
+    @Test
+    public void mergedRequestsAreOneCall() throws Exception {
+        final List<Set<String>> loads = Collections.synchronizedList(new ArrayList<Set<String>>());
+        BillingRequestQueue.Loader<HashMap<String, String>> loader =
+                new BillingRequestQueue.Loader<HashMap<String, String>>() {
+                    @Override
+                    public HashMap<String, String> load(Set<String> items) throws Exception {
+                        mRuns.add("getSkuDetails");
+                        loads.add(items);
+                        HashMap<String, String> ret = new HashMap<>();
+                        for (String item : items) {
+                            ret.put(item, "details of " + item);
+                        }
+                        return ret;
+                    }
+                };
+        BillingRequestQueue.Extractor<HashMap<String, String>, List<String>> extractor =
+                new BillingRequestQueue.Extractor<HashMap<String, String>, List<String>>() {
+                    @Override
+                    public List<String> extract(HashMap<String, String> merged, Set<String> items) {
+                        ArrayList<String> ret = new ArrayList<>();
+                        for (String item : items) {
+                            ret.add(merged.get(item));
+                        }
+                        return ret;
+                    }
+                };
+
+        BillingRequestQueue.Task<String> normal = task("normal", BillingRequestQueue.PRIORITY_NORMAL);
+        mQueue.execute(normal);
+
+        BillingRequestQueue.Task<List<String>> first = new BillingRequestQueue.Task<>(
+                BillingRequestQueue.PRIORITY_BACKGROUND);
+        BillingRequestQueue.Task<?> batch = mQueue.merge("inapp", BillingRequestQueue.PRIORITY_BACKGROUND,
+                Arrays.asList("product.a", "product.b"), loader, extractor, first);
+        assertNotNull(batch);
+        mQueue.execute(batch);
+
+        // merged into the waiting batch, and the batch is moved before normal one
+        BillingRequestQueue.Task<List<String>> second = new BillingRequestQueue.Task<>(
+                BillingRequestQueue.PRIORITY_USER);
+        assertNull(mQueue.merge("inapp", BillingRequestQueue.PRIORITY_USER,
+                Arrays.asList("product.b", "product.c"), loader, extractor, second));
+
+        // another key is not merged
+        BillingRequestQueue.Task<List<String>> other = new BillingRequestQueue.Task<>(
+                BillingRequestQueue.PRIORITY_BACKGROUND);
+        BillingRequestQueue.Task<?> otherBatch = mQueue.merge("subs", BillingRequestQueue.PRIORITY_BACKGROUND,
+                Collections.singletonList("subscription.a"), loader, extractor, other);
+        assertNotNull(otherBatch);
+        mQueue.execute(otherBatch);
+
+        mGate.countDown();
+        assertEquals(Arrays.asList("details of product.a", "details of product.b"),
+                first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("details of product.b", "details of product.c"),
+                second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("details of subscription.a"),
+                other.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        normal.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("getSkuDetails", "normal", "getSkuDetails"), mRuns);
+        assertEquals(2, loads.size());
+        assertEquals(Arrays.asList("product.a", "product.b", "product.c"), new ArrayList<>(loads.get(0)));
+        assertEquals(Collections.singletonList("subscription.a"), new ArrayList<>(loads.get(1)));
+    }
+
+    private BillingRequestQueue.Task<String> task(final String name, int priority) {
+        return new BillingRequestQueue.Task<>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                mRuns.add(name);
+                return name;
+            }
+        }, priority);
+    }
+}
@@ -0,0 +1,123 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Spans are read back by exportTo().
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BillingTraceTest {
+
+    private static final BillingTrace.Operation OP = BillingTrace.Operation.GET_PURCHASE_HISTORY;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void zeroRateRecordsNothing() throws Exception {
+        BillingTrace trace = new BillingTrace(4, 0.0);
+        for (int i = 0; i < 100; i++) {
+            long span = trace.begin();
+            assertEquals(0, span);
+            trace.end(span, OP, 0, 1, 1);
+        }
+        assertEquals(0, trace.getRecordedCount());
+        assertTrue(export(trace).isEmpty());
+    }
+
+    @Test
+    public void fullRateRecordsAll() throws Exception {
+        BillingTrace trace = new BillingTrace(128, 1.0);
+        for (int i = 0; i < 100; i++) {
+            trace.end(trace.begin(), OP, 0, i, 1);
+        }
+        assertEquals(100, trace.getRecordedCount());
+        assertEquals(100, export(trace).size());
+    }
+
+    @Test
+    public void partialRateSamplesAboutTheRate() throws Exception {
+        BillingTrace trace = new BillingTrace(16, 0.25);
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (trace.begin() != 0) sampled++;
+        }
+        assertTrue(String.valueOf(sampled), sampled > 2000 && sampled < 3000);
+
+        trace.setSampleRate(1.0);
+        assertNotEquals(0, trace.begin());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateOverOneIsRejected() throws Exception {
+        new BillingTrace(4, 1.0).setSampleRate(1.5);
+    }
+
+    @Test
+    public void oldestSpansAreOverwritten() throws Exception {
+        BillingTrace trace = new BillingTrace(4, 1.0);
+        for (int i = 0; i < 10; i++) {
+            trace.end(trace.begin(), OP, i == 9 ? -1 : 0, i, 1);
+        }
+
+        ArrayList<JSONObject> spans = export(trace);
+        assertEquals(10, trace.getRecordedCount());
+        assertEquals(4, spans.size());
+        // recorded order from the oldest kept one
+        for (int i = 0; i < 4; i++) {
+            assertEquals(6 + i, spans.get(i).getInt("items"));
+            assertEquals(OP.name(), spans.get(i).getString("operation"));
+        }
+        assertEquals(-1, spans.get(3).getInt("responseCode"));
+
+        trace.clear();
+        assertEquals(0, trace.getRecordedCount());
+        assertTrue(export(trace).isEmpty());
+    }
+
+    private ArrayList<JSONObject> export(BillingTrace trace) throws Exception {
+        File file = mFolder.newFile();
+        assertTrue(trace.exportTo(file));
+
+        ArrayList<JSONObject> ret = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                ret.add(new JSONObject(line));
+            }
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,104 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validity window is passed by FakeTicker instead of sleep.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BuyIntentCacheTest {
+
+    private static final long VALIDITY_MILLIS = 1000;
+    private static final String INAPP = BillingController.TYPE_INAPP;
+    private static final String SUBS = BillingController.TYPE_SUBSCRIPTIONS;
+
+    private final FakeTicker mTicker = new FakeTicker();
+    private final BuyIntentCache mCache = new BuyIntentCache(VALIDITY_MILLIS, mTicker);
+
+    @Test
+    public void intentExpiresAfterValidity() throws Exception {
+        PendingIntent intent = newIntent(1);
+        mCache.put("product.1", INAPP, "payload", intent);
+
+        mTicker.advance(VALIDITY_MILLIS - 1);
+        assertSame(intent, mCache.peek("product.1", INAPP, "payload").intent);
+
+        mTicker.advance(1);
+        assertNull(mCache.peek("product.1", INAPP, "payload"));
+        assertNull(mCache.take("product.1", INAPP, "payload"));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void intentIsTakenOnlyOnce() throws Exception {
+        PendingIntent intent = newIntent(1);
+        mCache.put("product.1", INAPP, "payload", intent);
+
+        // peek does not use it up
+        assertSame(intent, mCache.peek("product.1", INAPP, "payload").intent);
+        assertSame(intent, mCache.take("product.1", INAPP, "payload").intent);
+        assertNull(mCache.take("product.1", INAPP, "payload"));
+        assertNull(mCache.peek("product.1", INAPP, "payload"));
+    }
+
+    @Test
+    public void intentIsKeyedByTypeAndPayload() throws Exception {
+        PendingIntent inapp = newIntent(1);
+        PendingIntent subs = newIntent(2);
+        mCache.put("product.1", INAPP, "payload", inapp);
+        mCache.put("product.1", SUBS, "payload", subs);
+
+        assertNull(mCache.take("product.1", INAPP, "other"));
+        assertSame(subs, mCache.take("product.1", SUBS, "payload").intent);
+        assertSame(inapp, mCache.take("product.1", INAPP, "payload").intent);
+    }
+
+    @Test
+    public void nullPayloadIsNotHeld() throws Exception {
+        mCache.put("product.1", INAPP, null, newIntent(1));
+
+        assertEquals(0, mCache.size());
+        assertNull(mCache.take("product.1", INAPP, null));
+    }
+
+    @Test
+    public void expiredIntentsAreRemovedOnMiss() throws Exception {
+        mCache.put("product.1", INAPP, "payload", newIntent(1));
+        mCache.put("product.2", INAPP, "payload", newIntent(2));
+        mTicker.advance(VALIDITY_MILLIS);
+        mCache.put("product.3", INAPP, "payload", newIntent(3));
+        assertEquals(3, mCache.size());
+
+        assertNull(mCache.take("product.4", INAPP, "payload"));
+        assertEquals(1, mCache.size());
+        assertNotNull(mCache.take("product.3", INAPP, "payload"));
+    }
+
+    private static PendingIntent newIntent(int requestCode) {
+        return PendingIntent.getActivity(RuntimeEnvironment.application, requestCode, new Intent(), 0);
+    }
+}
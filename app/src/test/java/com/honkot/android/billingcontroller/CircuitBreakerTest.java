@@ -0,0 +1,151 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Open time is passed by FakeTicker instead of sleep.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CircuitBreakerTest {
+
+    private static final int OK = BillingController.BILLING_RESPONSE_RESULT_OK;
+    private static final int REMOTE_EXCEPTION = -1;
+
+    private final FakeTicker mTicker = new FakeTicker();
+    private final CircuitBreaker mBreaker = new CircuitBreaker(mTicker);
+
+    @Test
+    public void opensAfterFailuresInARow() {
+        for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertTrue(mBreaker.allowRequest());
+            mBreaker.onResult(REMOTE_EXCEPTION);
+            assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+        }
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.onResult(REMOTE_EXCEPTION);
+        assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState());
+        assertFalse(mBreaker.allowRequest());
+
+        mTicker.advance(CircuitBreaker.MIN_OPEN_MILLIS - 1);
+        assertFalse(mBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState());
+    }
+
+    @Test
+    public void successBetweenFailuresKeepsClosed() {
+        mBreaker.onResult(REMOTE_EXCEPTION);
+        mBreaker.onResult(BillingController.BILLING_RESPONSE_RESULT_ERROR);
+        mBreaker.onResult(OK);
+        mBreaker.onResult(BillingController.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
+        mBreaker.onResult(REMOTE_EXCEPTION);
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+    }
+
+    @Test
+    public void halfOpenLetsOneProbe() {
+        open();
+        mTicker.advance(CircuitBreaker.MIN_OPEN_MILLIS);
+
+        assertTrue(mBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, mBreaker.getState());
+        // other callers fail fast while the probe is running
+        assertFalse(mBreaker.allowRequest());
+        assertFalse(mBreaker.allowRequest());
+
+        mBreaker.onResult(OK);
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+        assertTrue(mBreaker.allowRequest());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeOpensTwiceAsLong() {
+        open();
+        long openMillis = CircuitBreaker.MIN_OPEN_MILLIS;
+        while (openMillis < CircuitBreaker.MAX_OPEN_MILLIS) {
+            mTicker.advance(openMillis);
+            assertTrue(mBreaker.allowRequest());
+            mBreaker.onResult(BillingController.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
+            assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState());
+
+            openMillis = Math.min(openMillis * 2, CircuitBreaker.MAX_OPEN_MILLIS);
+            mTicker.advance(openMillis - 1);
+            assertFalse(mBreaker.allowRequest());
+            mTicker.advance(-(openMillis - 1));
+        }
+
+        // it is not longer than MAX_OPEN_MILLIS
+        mTicker.advance(CircuitBreaker.MAX_OPEN_MILLIS);
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.onResult(REMOTE_EXCEPTION);
+        mTicker.advance(CircuitBreaker.MAX_OPEN_MILLIS);
+        assertTrue(mBreaker.allowRequest());
+
+        // success resets the open time
+        mBreaker.onResult(OK);
+        open();
+        mTicker.advance(CircuitBreaker.MIN_OPEN_MILLIS);
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void resetCloses() {
+        open();
+        mBreaker.reset();
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void failureCodes() {
+        assertTrue(CircuitBreaker.isFailure(REMOTE_EXCEPTION));
+        assertTrue(CircuitBreaker.isFailure(BillingController.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE));
+        assertTrue(CircuitBreaker.isFailure(BillingController.BILLING_RESPONSE_RESULT_ERROR));
+
+        // errors of the request mean the service is working
+        int[] notFailures = {
+                OK,
+                BillingController.BILLING_RESPONSE_RESULT_USER_CANCELED,
+                BillingController.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+                BillingController.BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE,
+                BillingController.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR,
+                BillingController.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED,
+                BillingController.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED,
+        };
+        for (int code : notFailures) {
+            assertFalse("code " + code, CircuitBreaker.isFailure(code));
+        }
+
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD * 2; i++) {
+            mBreaker.onResult(BillingController.BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState());
+    }
+
+    private void open() {
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            mBreaker.onResult(REMOTE_EXCEPTION);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState());
+    }
+}
@@ -0,0 +1,152 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EntitlementIndexTest {
+
+    private static final String INAPP = BillingController.TYPE_INAPP;
+    private static final String SUBS = BillingController.TYPE_SUBSCRIPTIONS;
+    private static final int PURCHASED = BillingController.PurchaseResult.PURCHASE_STATE_PURCHASED;
+    private static final int CANCELED = 1;
+    private static final long NOW = 1470000000000L;
+
+    private int mOrder = 0;
+
+    @Test
+    public void ownedAndNotOwned() throws Exception {
+        EntitlementIndex index = EntitlementIndex.EMPTY.rebuild(INAPP, Arrays.asList(
+                purchase("product.owned", NOW - 1000, PURCHASED),
+                purchase("product.canceled", NOW - 2000, CANCELED)), NOW);
+
+        assertEquals(2, index.size());
+        int owned = index.getId("product.owned");
+        assertTrue(index.isOwned(owned));
+        assertTrue(index.isOwned("product.owned"));
+        assertFalse(index.isSubscription(owned));
+        assertEquals("product.owned", index.getProductId(owned));
+        assertEquals(NOW - 1000, index.getPurchaseTime(owned));
+        assertEquals(EntitlementIndex.NO_EXPIRY, index.getExpiryTime(owned));
+
+        // it has id, but it is not owned
+        int canceled = index.getId("product.canceled");
+        assertTrue(canceled != EntitlementIndex.NO_ID);
+        assertFalse(index.isOwned(canceled));
+        assertEquals(0, index.getPurchaseTime(canceled));
+        assertEquals(0, index.getExpiryTime(canceled));
+    }
+
+    @Test
+    public void unknownProducts() throws Exception {
+        assertEquals(0, EntitlementIndex.EMPTY.size());
+        assertFalse(EntitlementIndex.EMPTY.isOwned("product.1"));
+
+        EntitlementIndex index = EntitlementIndex.EMPTY.rebuild(INAPP,
+                Collections.singletonList(purchase("product.1", NOW, PURCHASED)), NOW);
+        assertEquals(EntitlementIndex.NO_ID, index.getId("product.unknown"));
+        assertFalse(index.isOwned("product.unknown"));
+        assertFalse(index.isOwned(EntitlementIndex.NO_ID));
+        assertFalse(index.isOwned(index.size()));
+        assertFalse(index.isOwned(64));
+        assertNull(index.getProductId(EntitlementIndex.NO_ID));
+        assertNull(index.getProductId(index.size()));
+        assertEquals(0, index.getPurchaseTime(EntitlementIndex.NO_ID));
+    }
+
+    @Test
+    public void rebuildAfterPurchasesChanged() throws Exception {
+        EntitlementIndex first = EntitlementIndex.EMPTY.rebuild(INAPP, Arrays.asList(
+                purchase("product.1", NOW, PURCHASED),
+                purchase("product.2", NOW, PURCHASED)), NOW);
+        int id1 = first.getId("product.1");
+        int id2 = first.getId("product.2");
+
+        // product.1 is consumed, and product.3 is bought
+        EntitlementIndex second = first.rebuild(INAPP, Arrays.asList(
+                purchase("product.2", NOW, PURCHASED),
+                purchase("product.3", NOW + 1000, PURCHASED)), NOW + 1000);
+        assertEquals(id1, second.getId("product.1"));
+        assertEquals(id2, second.getId("product.2"));
+        assertFalse(second.isOwned(id1));
+        assertTrue(second.isOwned(id2));
+        assertTrue(second.isOwned("product.3"));
+        assertEquals(3, second.size());
+
+        // old index is not modified
+        assertTrue(first.isOwned(id1));
+        assertFalse(first.isOwned("product.3"));
+
+        // the latest purchase of the product is used
+        EntitlementIndex third = second.rebuild(INAPP, Arrays.asList(
+                purchase("product.2", NOW + 5000, PURCHASED),
+                purchase("product.2", NOW + 3000, PURCHASED)), NOW + 5000);
+        assertEquals(NOW + 5000, third.getPurchaseTime(id2));
+    }
+
+    @Test
+    public void typesAreRebuiltSeparately() throws Exception {
+        EntitlementIndex index = EntitlementIndex.EMPTY
+                .rebuild(INAPP, Collections.singletonList(purchase("product.1", NOW, PURCHASED)), NOW)
+                .rebuild(SUBS, Collections.singletonList(purchase("subscription.1", NOW - 1000, PURCHASED)), NOW);
+        int subscription = index.getId("subscription.1");
+        assertTrue(index.isOwned("product.1"));
+        assertTrue(index.isSubscription(subscription));
+        assertEquals(BillingController.estimateNextRenewal(NOW - 1000, NOW), index.getExpiryTime(subscription));
+
+        // empty inapp keeps subscriptions
+        index = index.rebuild(INAPP, Collections.<BillingController.PurchaseResult>emptyList(), NOW);
+        assertFalse(index.isOwned("product.1"));
+        assertTrue(index.isSubscription(subscription));
+
+        // empty subscriptions keeps inapp
+        index = index.rebuild(INAPP, Collections.singletonList(purchase("product.1", NOW, PURCHASED)), NOW)
+                .rebuild(SUBS, Collections.<BillingController.PurchaseResult>emptyList(), NOW);
+        assertTrue(index.isOwned("product.1"));
+        assertFalse(index.isOwned(subscription));
+    }
+
+    @Test
+    public void manyProducts() throws Exception {
+        List<BillingController.PurchaseResult> live = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            live.add(purchase("product." + i, NOW, i % 3 == 0 ? PURCHASED : CANCELED));
+        }
+        EntitlementIndex index = EntitlementIndex.EMPTY.rebuild(INAPP, live, NOW);
+        assertEquals(150, index.size());
+        for (int i = 0; i < 150; i++) {
+            assertEquals("product." + i, i % 3 == 0, index.isOwned("product." + i));
+        }
+    }
+
+    private BillingController.PurchaseResult purchase(String productId, long purchaseTime, int purchaseState)
+            throws Exception {
+        mOrder++;
+        return new BillingController.PurchaseResult(FakeBillingService.purchaseJson(productId, purchaseTime,
+                purchaseState, mOrder, "token." + mOrder), "signature");
+    }
+}
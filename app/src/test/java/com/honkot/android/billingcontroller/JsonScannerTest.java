@@ -0,0 +1,115 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * JsonScanner is used instead of org.json for every response, so it must answer the same values.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class JsonScannerTest {
+
+    @Test
+    public void escapes() throws Exception {
+        String json = "{\"a\":\"q\\\"b\\\\s\\/n\\nt\\tu\\u0041\\u00e9\"}";
+        assertEquals("q\"b\\s/n\nt\tuA\u00e9", string(json, "a"));
+        assertEquals("plain", string("{\"a\":\"plain\"}", "a"));
+    }
+
+    @Test
+    public void invalidEscapesFailOnIndex() {
+        String[] invalid = {
+                "{\"a\":\"\\u00G1\"}",
+                "{\"a\":\"\\u00\"}",
+                "{\"a\":\"\\u",
+                "{\"a\":\"\\q\"}",
+                "{\"a\":\"\\",
+        };
+        for (String json : invalid) {
+            try {
+                JsonScanner.index(json, new String[] {"a"});
+                fail("no error for " + json);
+            } catch (JSONException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void nestedValuesAreSkipped() throws Exception {
+        String json = "{\"o\":{\"a\":\"inner\",\"b\":[1,{\"c\":\"}]\"}]},\"l\":[\"a\",[]],\"a\":\"top\"}";
+        assertEquals("top", string(json, "a"));
+        int[] index = JsonScanner.index(json, new String[] {"o"});
+        assertEquals("{\"a\":\"inner\",\"b\":[1,{\"c\":\"}]\"}]}", JsonScanner.decodeString(json, index[0], index[1]));
+    }
+
+    @Test
+    public void nullValue() throws Exception {
+        String json = "{\"a\":null,\"n\":null}";
+        assertNull(string(json, "a"));
+        assertEquals(-1, number(json, "n"));
+    }
+
+    @Test
+    public void quotedAndBareNumbers() throws Exception {
+        String json = "{\"bare\":1470000000000,\"quoted\":\"990000\",\"negative\":-7,\"bad\":\"1x\",\"empty\":\"\"}";
+        assertEquals(1470000000000L, number(json, "bare"));
+        assertEquals(990000, number(json, "quoted"));
+        assertEquals(-7, number(json, "negative"));
+        assertEquals(-1, number(json, "bad"));
+        assertEquals(-1, number(json, "empty"));
+        assertEquals("1470000000000", string(json, "bare"));
+    }
+
+    @Test
+    public void missingKeys() throws Exception {
+        String json = " { \"a\" : \"x\" } ";
+        assertEquals("x", string(json, "a"));
+        assertNull(string(json, "b"));
+        assertEquals(-1, number(json, "b"));
+        assertNull(string("{}", "a"));
+    }
+
+    @Test
+    public void notObjectFails() {
+        String[] invalid = {null, "", "[]", "{\"a\"}", "{\"a\":1", "{\"a\":1,}", "{\"a\":\"x}"};
+        for (String json : invalid) {
+            try {
+                JsonScanner.index(json, new String[] {"a"});
+                fail("no error for " + json);
+            } catch (JSONException e) {
+                // expected
+            }
+        }
+    }
+
+    private static String string(String json, String key) throws JSONException {
+        int[] index = JsonScanner.index(json, new String[] {key});
+        return JsonScanner.decodeString(json, index[0], index[1]);
+    }
+
+    private static long number(String json, String key) throws JSONException {
+        int[] index = JsonScanner.index(json, new String[] {key});
+        return JsonScanner.decodeLong(json, index[0], index[1], -1);
+    }
+}
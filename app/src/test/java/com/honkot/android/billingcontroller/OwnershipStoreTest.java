@@ -0,0 +1,209 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.content.Context;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stored ownership is read by new instance, same as after process kill.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class OwnershipStoreTest {
+
+    private static final String INAPP = BillingController.TYPE_INAPP;
+    private static final String SUBS = BillingController.TYPE_SUBSCRIPTIONS;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private int mOrder = 0;
+
+    @Test
+    public void firstRefreshHasNoMismatch() throws Exception {
+        OwnershipStore store = new OwnershipStore(mFolder.getRoot());
+        assertFalse(store.isLoaded());
+        assertFalse(store.isOwned("product.1"));
+
+        // nothing is stored yet, so it is not a mismatch
+        assertTrue(store.replace(INAPP, purchases("product.1")).isEmpty());
+        assertTrue(store.isLoaded());
+        assertTrue(store.isOwned("product.1"));
+        // same for the first refresh of another type
+        assertTrue(store.replace(SUBS, purchases("subscription.1")).isEmpty());
+
+        assertEquals(Collections.singletonList("product.1"), store.replace(INAPP, purchases()));
+        assertEquals(Collections.singletonList("product.2"), store.replace(INAPP, purchases("product.2")));
+        assertTrue(store.isOwned("subscription.1"));
+    }
+
+    @Test
+    public void reloadFromDisk() throws Exception {
+        OwnershipStore store = new OwnershipStore(mFolder.getRoot());
+        store.replace(INAPP, purchases("product.1", "product.2"));
+        store.replace(SUBS, purchases("subscription.1"));
+
+        OwnershipStore reloaded = new OwnershipStore(mFolder.getRoot());
+        // not read until load()
+        assertFalse(reloaded.isOwned("product.1"));
+        reloaded.load();
+        assertTrue(reloaded.isOwned("product.1"));
+        assertTrue(reloaded.isOwned("product.2"));
+        assertTrue(reloaded.isOwned("subscription.1"));
+        // types are stored, so changes after reload are reported
+        assertEquals(Collections.singletonList("product.2"), reloaded.replace(INAPP, purchases("product.1")));
+
+        reloaded.clear();
+        OwnershipStore cleared = new OwnershipStore(mFolder.getRoot());
+        cleared.load();
+        assertFalse(cleared.isOwned("product.1"));
+        assertTrue(cleared.replace(INAPP, purchases("product.1")).isEmpty());
+    }
+
+    @Test
+    public void replaceIsAtomic() throws Exception {
+        OwnershipStore store = new OwnershipStore(mFolder.getRoot());
+        store.replace(INAPP, purchases("product.1"));
+        File file = new File(mFolder.getRoot(), OwnershipStore.FILE_NAME);
+        File tmp = new File(file.getPath() + ".tmp");
+        assertTrue(file.exists());
+        assertFalse(tmp.exists());
+
+        // killed while writing the temporary file
+        FileOutputStream out = new FileOutputStream(tmp);
+        out.write(new byte[] {0, 0, 0, 2, 0, 0});
+        out.close();
+        OwnershipStore killed = new OwnershipStore(mFolder.getRoot());
+        killed.load();
+        assertTrue(killed.isOwned("product.1"));
+
+        // the broken temporary file is overwritten by next save
+        assertEquals(Collections.singletonList("product.2"),
+                killed.replace(INAPP, purchases("product.1", "product.2")));
+        assertFalse(tmp.exists());
+        OwnershipStore reloaded = new OwnershipStore(mFolder.getRoot());
+        reloaded.load();
+        assertTrue(reloaded.isOwned("product.2"));
+    }
+
+    @Test
+    public void awaitLoadedWaitsForLoad() throws Exception {
+        new OwnershipStore(mFolder.getRoot()).replace(INAPP, purchases("product.1"));
+
+        final OwnershipStore store = new OwnershipStore(mFolder.getRoot());
+        assertFalse(store.awaitLoaded(10, TimeUnit.MILLISECONDS));
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                store.load();
+            }
+        });
+        loader.start();
+        assertTrue(store.awaitLoaded(5, TimeUnit.SECONDS));
+        assertTrue(store.isOwned("product.1"));
+        loader.join();
+    }
+
+    @Test
+    public void coldStartAnswersStoredOwnership() throws Exception {
+        FakeBillingService service = new FakeBillingService();
+        service.addPurchase(INAPP, "product.1", System.currentTimeMillis(),
+                BillingController.PurchaseResult.PURCHASE_STATE_PURCHASED);
+        Context context = service.newContext();
+        // saved by last launch
+        new OwnershipStore(context.getFilesDir()).replace(INAPP, purchases("product.1"));
+
+        BillingController controller = new BillingController(context, newListener(), service);
+        try {
+            assertTrue(controller.awaitOwnershipLoaded(5, TimeUnit.SECONDS));
+            assertTrue(controller.isOwned("product.1"));
+        } finally {
+            controller.release();
+            service.deleteFiles();
+        }
+    }
+
+    @Test
+    public void controllersShareOneStore() throws Exception {
+        assertSame(OwnershipStore.get(mFolder.getRoot()), OwnershipStore.get(mFolder.getRoot()));
+
+        FakeBillingService service = new FakeBillingService();
+        service.addPurchase(INAPP, "product.1", System.currentTimeMillis(),
+                BillingController.PurchaseResult.PURCHASE_STATE_PURCHASED);
+        Context context = service.newContext();
+        BillingController first = new BillingController(context, newListener(), service);
+        BillingController second = new BillingController(context, newListener(), service);
+        try {
+            // refreshed by one controller, and answered by another
+            ArrayList<BillingController.PurchaseResult> owned = first.getPurchaseHistory(true);
+            assertEquals(1, owned.size());
+            assertTrue(second.isOwnershipLoaded());
+            assertTrue(second.isOwned("product.1"));
+
+            assertEquals(BillingController.BILLING_RESPONSE_RESULT_OK.intValue(),
+                    second.consumePurchase(owned.get(0)));
+            assertTrue(second.getPurchaseHistory(true).isEmpty());
+            assertFalse(first.isOwned("product.1"));
+
+            OwnershipStore reloaded = new OwnershipStore(context.getFilesDir());
+            reloaded.load();
+            assertFalse(reloaded.isOwned("product.1"));
+        } finally {
+            first.release();
+            second.release();
+            service.deleteFiles();
+        }
+    }
+
+    private List<BillingController.PurchaseResult> purchases(String... productIds) throws Exception {
+        ArrayList<BillingController.PurchaseResult> ret = new ArrayList<>();
+        for (String productId : Arrays.asList(productIds)) {
+            mOrder++;
+            ret.add(new BillingController.PurchaseResult(FakeBillingService.purchaseJson(productId,
+                    System.currentTimeMillis(), BillingController.PurchaseResult.PURCHASE_STATE_PURCHASED,
+                    mOrder, "token." + mOrder), "signature"));
+        }
+        return ret;
+    }
+
+    private static BillingController.OnServiceResponseListener newListener() {
+        return new BillingController.OnServiceResponseListener() {
+            @Override
+            public void onServiceConnected() {
+            }
+
+            @Override
+            public void onServiceDisconnected() {
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Currency;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PriceFormatterTest {
+
+    private static final Currency USD = Currency.getInstance("USD");
+    private static final Currency JPY = Currency.getInstance("JPY");
+
+    @Test
+    public void microsAreFormattedExactly() throws Exception {
+        assertEquals("$1.99", PriceFormatter.format(1990000, USD, Locale.US));
+        assertEquals("$0.00", PriceFormatter.format(0, USD, Locale.US));
+        assertTrue(PriceFormatter.format(1990000, USD, Locale.GERMANY).contains("1,99"));
+    }
+
+    @Test
+    public void fractionDigitsFollowCurrency() throws Exception {
+        // one NumberFormat of the locale is reused for both currencies
+        assertEquals("$1.99", PriceFormatter.format(1990000, USD, Locale.US));
+        String yen = PriceFormatter.format(120000000, JPY, Locale.US);
+        assertTrue(yen, yen.endsWith("120"));
+        assertEquals("$1.99", PriceFormatter.format(1990000, USD, Locale.US));
+    }
+
+    @Test
+    public void formattedPriceIsCachedPerLocale() throws Exception {
+        BillingController.ProductInfo info = product("USD", 1990000);
+
+        String us = info.getFormattedPrice(Locale.US);
+        assertEquals("$1.99", us);
+        assertSame(us, info.getFormattedPrice(Locale.US));
+
+        String germany = info.getFormattedPrice(Locale.GERMANY);
+        assertNotEquals(us, germany);
+        assertSame(germany, info.getFormattedPrice(Locale.GERMANY));
+        assertSame(us, info.getFormattedPrice(Locale.US));
+    }
+
+    @Test
+    public void unknownCurrencyFallsBackToPrice() throws Exception {
+        BillingController.ProductInfo info = product("XYZ", 1990000);
+
+        assertEquals(info.getPrice(), info.getFormattedPrice(Locale.US));
+        assertEquals(info.getPrice(), product("USD", 1990000).getFormattedPrice(null));
+    }
+
+    private static BillingController.ProductInfo product(String currency, long micros) throws Exception {
+        return new BillingController.ProductInfo(
+                FakeBillingService.productJson(BillingController.TYPE_INAPP, "product.1", micros, currency));
+    }
+}
@@ -0,0 +1,102 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PurchaseChangesTest {
+
+    private static final String INAPP = BillingController.TYPE_INAPP;
+    private static final String SUBS = BillingController.TYPE_SUBSCRIPTIONS;
+
+    private final PurchaseChanges.Tracker mTracker = new PurchaseChanges.Tracker();
+
+    @Test
+    public void firstUpdateAddsAll() throws Exception {
+        PurchaseChanges changes = mTracker.update(INAPP,
+                Arrays.asList(purchase("product.1", "token.1", 0), purchase("product.2", "token.2", 0)));
+
+        assertEquals(INAPP, changes.getType());
+        assertEquals(2, changes.getAdded().size());
+        assertTrue(changes.getRemoved().isEmpty());
+        assertTrue(changes.getStateChanged().isEmpty());
+    }
+
+    @Test
+    public void sameTokensAreNotChanged() throws Exception {
+        mTracker.update(INAPP, Collections.singletonList(purchase("product.1", "token.1", 0)));
+
+        assertTrue(mTracker.update(INAPP, Collections.singletonList(purchase("product.1", "token.1", 0))).isEmpty());
+    }
+
+    @Test
+    public void addedRemovedAndChangedAreMatchedByToken() throws Exception {
+        mTracker.update(INAPP, Arrays.asList(
+                purchase("product.1", "token.1", 0),
+                purchase("product.2", "token.2", 0),
+                purchase("product.3", "token.3", 0)));
+
+        // token.1 is consumed, token.2 is refunded and token.4 is bought
+        PurchaseChanges changes = mTracker.update(INAPP, Arrays.asList(
+                purchase("product.2", "token.2", 2),
+                purchase("product.3", "token.3", 0),
+                purchase("product.1", "token.4", 0)));
+
+        assertEquals(1, changes.getAdded().size());
+        assertEquals("token.4", changes.getAdded().get(0).getPurchaseToken());
+        assertEquals(1, changes.getRemoved().size());
+        assertEquals("token.1", changes.getRemoved().get(0).getPurchaseToken());
+        assertEquals(1, changes.getStateChanged().size());
+        // new one is reported
+        assertEquals(2, changes.getStateChanged().get(0).getPurchaseState());
+    }
+
+    @Test
+    public void duplicatedTokenIsReportedOnce() throws Exception {
+        PurchaseChanges changes = mTracker.update(INAPP,
+                Arrays.asList(purchase("product.1", "token.1", 0), purchase("product.1", "token.1", 0)));
+
+        assertEquals(1, changes.getAdded().size());
+    }
+
+    @Test
+    public void typesAreTrackedSeparately() throws Exception {
+        mTracker.update(INAPP, Collections.singletonList(purchase("product.1", "token.1", 0)));
+
+        PurchaseChanges subs = mTracker.update(SUBS, Collections.singletonList(purchase("sub.1", "token.2", 0)));
+        assertEquals(1, subs.getAdded().size());
+        assertTrue(subs.getRemoved().isEmpty());
+
+        mTracker.clear();
+        assertEquals(1, mTracker.update(INAPP,
+                Collections.singletonList(purchase("product.1", "token.1", 0))).getAdded().size());
+    }
+
+    private static BillingController.PurchaseResult purchase(String productId, String token, int state)
+            throws Exception {
+        return new BillingController.PurchaseResult(
+                FakeBillingService.purchaseJson(productId, 1451606400000L, state, 0, token), "");
+    }
+}
@@ -0,0 +1,215 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Journal is read by new instance, same as after process kill.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PurchaseJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void replayReceivedGrantedConsumed() throws Exception {
+        File file = journalFile();
+        PurchaseJournal journal = new PurchaseJournal(file);
+        assertTrue(journal.markReceived(purchase("token.1")));
+        assertTrue(journal.markReceived(purchase("token.2")));
+        assertTrue(journal.markReceived(purchase("token.3")));
+        assertTrue(journal.markGranted(purchase("token.2"), true));
+        assertTrue(journal.markGranted(purchase("token.3"), false));
+
+        ArrayList<PurchaseJournal.Entry> entries = new PurchaseJournal(file).getUnfinished();
+        assertEquals(2, entries.size());
+        assertEquals("token.1", entries.get(0).purchaseToken);
+        assertEquals(PurchaseJournal.STATE_RECEIVED, entries.get(0).state);
+        assertEquals("token.2", entries.get(1).purchaseToken);
+        assertEquals(PurchaseJournal.STATE_GRANTED, entries.get(1).state);
+        assertTrue(entries.get(1).consumable);
+        assertEquals(purchase("token.2").getOriginalJson(), entries.get(1).json);
+
+        journal.markConsumed("token.2");
+        assertTrue(journal.sync());
+
+        entries = new PurchaseJournal(file).getUnfinished();
+        assertEquals(1, entries.size());
+        assertEquals("token.1", entries.get(0).purchaseToken);
+    }
+
+    @Test
+    public void tornTailIsDropped() throws Exception {
+        File file = journalFile();
+        PurchaseJournal journal = new PurchaseJournal(file);
+        assertTrue(journal.markReceived(purchase("token.1")));
+        long firstLength = file.length();
+        assertTrue(journal.markReceived(purchase("token.2")));
+
+        // the last record is cut by process kill
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 3);
+        raf.close();
+
+        PurchaseJournal recovered = new PurchaseJournal(file);
+        ArrayList<PurchaseJournal.Entry> entries = recovered.getUnfinished();
+        assertEquals(1, entries.size());
+        assertEquals("token.1", entries.get(0).purchaseToken);
+
+        // next append rewrites the file without the torn record
+        assertTrue(recovered.markReceived(purchase("token.3")));
+        assertTrue(file.length() > firstLength);
+        entries = new PurchaseJournal(file).getUnfinished();
+        assertEquals(2, entries.size());
+        assertEquals("token.1", entries.get(0).purchaseToken);
+        assertEquals("token.3", entries.get(1).purchaseToken);
+    }
+
+    @Test
+    public void brokenChecksumStopsReplay() throws Exception {
+        File file = journalFile();
+        assertTrue(new PurchaseJournal(file).markReceived(purchase("token.1")));
+
+        // length and crc32 of garbage do not match
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] {0, 0, 0, 4, 1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+
+        ArrayList<PurchaseJournal.Entry> entries = new PurchaseJournal(file).getUnfinished();
+        assertEquals(1, entries.size());
+        assertEquals("token.1", entries.get(0).purchaseToken);
+    }
+
+    @Test
+    public void openDropsTornTailBeforeAppend() throws Exception {
+        File file = journalFile();
+        PurchaseJournal journal = new PurchaseJournal(file);
+        assertTrue(journal.markReceived(purchase("token.1")));
+        assertTrue(journal.markReceived(purchase("token.2")));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 3);
+        raf.close();
+
+        PurchaseJournal recovered = new PurchaseJournal(file);
+        assertTrue(recovered.open());
+        assertTrue(recovered.markReceived(purchase("token.3")));
+
+        ArrayList<PurchaseJournal.Entry> entries = new PurchaseJournal(file).getUnfinished();
+        assertEquals(2, entries.size());
+        assertEquals("token.1", entries.get(0).purchaseToken);
+        assertEquals("token.3", entries.get(1).purchaseToken);
+    }
+
+    @Test
+    public void finishedPurchasesAreCompacted() throws Exception {
+        File file = journalFile();
+        PurchaseJournal journal = new PurchaseJournal(file);
+        assertTrue(journal.open());
+        assertTrue(journal.markReceived(purchase("token.unfinished")));
+        for (int i = 0; i < 300; i++) {
+            String token = "token." + i;
+            assertTrue(journal.markReceived(purchase(token)));
+            assertTrue(journal.markGranted(purchase(token), true));
+            journal.markConsumed(token);
+            // append does not compact by itself
+            if (i < 80) assertFalse(journal.needsCompaction());
+        }
+        assertTrue(journal.sync());
+        assertTrue(journal.needsCompaction());
+        long appended = file.length();
+
+        // 900 records are written, but finished ones are kept only as tokens
+        assertTrue(journal.compact());
+        assertFalse(journal.needsCompaction());
+        assertTrue(file.length() < appended / 2);
+        ArrayList<PurchaseJournal.Entry> entries = new PurchaseJournal(file).getUnfinished();
+        assertEquals(1, entries.size());
+        assertEquals("token.unfinished", entries.get(0).purchaseToken);
+        assertEquals(PurchaseJournal.STATE_RECEIVED, entries.get(0).state);
+    }
+
+    @Test
+    public void finishedTokensAreNotReceivedAgain() throws Exception {
+        File file = journalFile();
+        PurchaseJournal journal = new PurchaseJournal(file);
+        assertTrue(journal.markReceived(purchase("token.owned")));
+        assertTrue(journal.markGranted(purchase("token.owned"), false));
+        assertTrue(journal.markReceived(purchase("token.consumed")));
+        assertTrue(journal.markGranted(purchase("token.consumed"), true));
+        journal.markConsumed("token.consumed");
+
+        // google play returns owned one again
+        assertTrue(journal.markReceived(purchase("token.owned")));
+        assertTrue(journal.markReceived(purchase("token.consumed")));
+        assertEquals(0, journal.getUnfinished().size());
+
+        // first append of new instance rewrites the file with finished tokens
+        PurchaseJournal recovered = new PurchaseJournal(file);
+        assertTrue(recovered.markReceived(purchase("token.new")));
+        recovered = new PurchaseJournal(file);
+        assertTrue(recovered.markReceived(purchase("token.owned")));
+        assertTrue(recovered.markGranted(purchase("token.consumed"), true));
+        ArrayList<PurchaseJournal.Entry> entries = new PurchaseJournal(file).getUnfinished();
+        assertEquals(1, entries.size());
+        assertEquals("token.new", entries.get(0).purchaseToken);
+    }
+
+    @Test
+    public void oldestFinishedTokensAreDropped() throws Exception {
+        File file = journalFile();
+        PurchaseJournal journal = new PurchaseJournal(file);
+        assertTrue(journal.open());
+        for (int i = 0; i <= PurchaseJournal.MAX_FINISHED; i++) {
+            assertTrue(journal.markGranted(purchase("token." + i), false));
+        }
+        assertTrue(journal.compact());
+
+        PurchaseJournal recovered = new PurchaseJournal(file);
+        // newer ones are still known
+        assertTrue(recovered.markReceived(purchase("token.1")));
+        assertTrue(recovered.markReceived(purchase("token." + PurchaseJournal.MAX_FINISHED)));
+        assertEquals(0, recovered.getUnfinished().size());
+        // the oldest one is forgotten, so it is received again
+        assertTrue(recovered.markReceived(purchase("token.0")));
+        ArrayList<PurchaseJournal.Entry> entries = recovered.getUnfinished();
+        assertEquals(1, entries.size());
+        assertEquals("token.0", entries.get(0).purchaseToken);
+    }
+
+    private File journalFile() {
+        return new File(mFolder.getRoot(), PurchaseJournal.FILE_NAME);
+    }
+
+    private static BillingController.PurchaseResult purchase(String token) throws Exception {
+        return new BillingController.PurchaseResult(
+                "{\"orderId\":\"order." + token + "\",\"productId\":\"product.1\",\"purchaseState\":0,"
+                        + "\"purchaseToken\":\"" + token + "\"}", "signature");
+    }
+}
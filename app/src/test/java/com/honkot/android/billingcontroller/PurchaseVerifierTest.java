@@ -0,0 +1,189 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.util.Base64;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Purchases are signed by a key pair which is made for the tests.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PurchaseVerifierTest {
+
+    private static KeyPair sKeys;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        sKeys = generator.generateKeyPair();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void sameSignedDataIsVerifiedOnce() throws Exception {
+        CountingVerifier verifier = newVerifier();
+        BillingController.PurchaseResult purchase = signed(purchaseJson("product.1", "token.1"));
+
+        assertTrue(verifier.verify(purchase));
+        assertTrue(verifier.verify(signed(purchaseJson("product.1", "token.1"))));
+        assertEquals(1, verifier.calls.get());
+
+        verifier.clear();
+        assertTrue(verifier.verify(purchase));
+        assertEquals(2, verifier.calls.get());
+    }
+
+    @Test
+    public void tamperedDataWithSameTokenIsVerifiedAgain() throws Exception {
+        CountingVerifier verifier = newVerifier();
+        String json = purchaseJson("product.1", "token.1");
+        BillingController.PurchaseResult purchase = signed(json);
+        assertTrue(verifier.verify(purchase));
+
+        // known signature and token with other product
+        BillingController.PurchaseResult tampered = new BillingController.PurchaseResult(
+                purchaseJson("product.2", "token.1"), purchase.getSignature());
+        assertFalse(verifier.verify(tampered));
+        assertEquals(2, verifier.calls.get());
+
+        // memo of tampered one does not hide the valid one
+        assertTrue(verifier.verify(purchase));
+    }
+
+    @Test
+    public void invalidSignatureIsRejected() throws Exception {
+        CountingVerifier verifier = newVerifier();
+        String json = purchaseJson("product.1", "token.1");
+
+        assertFalse(verifier.verify(new BillingController.PurchaseResult(json, "")));
+        assertFalse(verifier.verify(new BillingController.PurchaseResult(json, "not signature")));
+        assertFalse(verifier.verify(new BillingController.PurchaseResult(json,
+                signed(purchaseJson("product.2", "token.2")).getSignature())));
+    }
+
+    @Test
+    public void verifyAllKeepsValidOnesInOrder() throws Exception {
+        ArrayList<BillingController.PurchaseResult> purchases = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            BillingController.PurchaseResult purchase = signed(purchaseJson("product." + i, "token." + i));
+            purchases.add(i % 10 == 0
+                    ? new BillingController.PurchaseResult(purchase.getOriginalJson(), "") : purchase);
+        }
+
+        ArrayList<BillingController.PurchaseResult> valid = newVerifier().verifyAll(purchases, mExecutor);
+        assertEquals(90, valid.size());
+        assertEquals("product.1", valid.get(0).getProductId());
+        assertEquals("product.99", valid.get(89).getProductId());
+    }
+
+    @Test
+    public void interruptedVerifyAllIsErrorState() throws Exception {
+        // one thread verifies everything, so there is no parallel batch
+        assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+
+        ArrayList<BillingController.PurchaseResult> purchases = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            purchases.add(signed(purchaseJson("product." + i, "token." + i)));
+        }
+        // batches wait behind this task
+        final CountDownLatch release = new CountDownLatch(1);
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        try {
+            Thread.currentThread().interrupt();
+            assertNull(newVerifier().verifyAll(purchases, mExecutor));
+            assertTrue(Thread.interrupted());
+        } finally {
+            Thread.interrupted();
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void verifyAllOnCurrentThread() throws Exception {
+        assertEquals(1, newVerifier().verifyAll(
+                Collections.singletonList(signed(purchaseJson("product.1", "token.1"))), null).size());
+    }
+
+    private static CountingVerifier newVerifier() {
+        return new CountingVerifier(Base64.encodeToString(sKeys.getPublic().getEncoded(), Base64.NO_WRAP));
+    }
+
+    private static String purchaseJson(String productId, String token) {
+        return FakeBillingService.purchaseJson(productId, 1451606400000L, 0, 0, token);
+    }
+
+    private static BillingController.PurchaseResult signed(String json) throws Exception {
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(sKeys.getPrivate());
+        signer.update(json.getBytes(Charset.forName("UTF-8")));
+        return new BillingController.PurchaseResult(json, Base64.encodeToString(signer.sign(), Base64.NO_WRAP));
+    }
+
+    /**
+     * Count signatures which are really verified.
+     */
+    private static final class CountingVerifier extends PurchaseVerifier {
+        final AtomicInteger calls = new AtomicInteger();
+
+        CountingVerifier(String base64PublicKey) {
+            super(base64PublicKey);
+        }
+
+        @Override
+        public boolean verify(String signedData, String signature) {
+            calls.incrementAndGet();
+            return super.verify(signedData, signature);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.content.ComponentName;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Binder;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time of the main looper is advanced by the scheduler of Robolectric instead of sleep.
+ * Bind and unbind are counted by BindingContext, and the service is connected by the test.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SharedBillingConnectionTest {
+
+    private static final long LINGER_MILLIS = SharedBillingConnection.LINGER_MILLIS;
+    private static final long BASE_DELAY_MILLIS = BillingController.RECONNECT_BASE_DELAY_MILLIS;
+    private static final long MAX_DELAY_MILLIS = BillingController.RECONNECT_MAX_DELAY_MILLIS;
+
+    private final BindingContext mContext = new BindingContext();
+    private final FixedRandom mRandom = new FixedRandom();
+    private final SharedBillingConnection mConnection = new SharedBillingConnection(mContext, mRandom);
+
+    @Test
+    public void oneBindingIsSharedByListeners() throws Exception {
+        CountingListener first = new CountingListener();
+        CountingListener second = new CountingListener();
+        mConnection.attach(first);
+        mConnection.attach(second);
+        assertEquals(1, mContext.binds);
+
+        IInAppBillingService service = mContext.connect();
+        assertSame(service, first.service);
+        assertSame(service, second.service);
+
+        // connected one is called back at once
+        CountingListener third = new CountingListener();
+        mConnection.attach(third);
+        assertSame(service, third.service);
+        assertEquals(1, mContext.binds);
+    }
+
+    @Test
+    public void detachKeepsBindingWhileOthersAreAttached() throws Exception {
+        CountingListener first = new CountingListener();
+        CountingListener second = new CountingListener();
+        mConnection.attach(first);
+        mConnection.attach(second);
+        mContext.connect();
+
+        mConnection.detach(first);
+        advance(LINGER_MILLIS * 2);
+        assertEquals(0, mContext.unbinds);
+
+        mContext.connect();
+        assertEquals(1, first.connected);
+        assertEquals(2, second.connected);
+    }
+
+    @Test
+    public void lastDetachUnbindsAfterLinger() throws Exception {
+        CountingListener listener = new CountingListener();
+        mConnection.attach(listener);
+        mContext.connect();
+
+        mConnection.detach(listener);
+        advance(LINGER_MILLIS - 1);
+        assertEquals(0, mContext.unbinds);
+        advance(1);
+        assertEquals(1, mContext.unbinds);
+
+        // next attach binds again
+        mConnection.attach(listener);
+        assertEquals(2, mContext.binds);
+    }
+
+    @Test
+    public void attachInLingerCancelsUnbind() throws Exception {
+        CountingListener listener = new CountingListener();
+        mConnection.attach(listener);
+        IInAppBillingService service = mContext.connect();
+
+        mConnection.detach(listener);
+        advance(LINGER_MILLIS / 2);
+        CountingListener next = new CountingListener();
+        mConnection.attach(next);
+        // still connected, so no bind is needed
+        assertSame(service, next.service);
+
+        advance(LINGER_MILLIS * 2);
+        assertEquals(1, mContext.binds);
+        assertEquals(0, mContext.unbinds);
+    }
+
+    @Test
+    public void bindFailureIsReported() throws Exception {
+        mContext.bindResult = false;
+        CountingListener listener = new CountingListener();
+        mConnection.attach(listener);
+
+        assertEquals(1, listener.bindFailed);
+        assertNull(listener.service);
+    }
+
+    @Test
+    public void reconnectDelayGrowsUpToCap() throws Exception {
+        CountingListener listener = new CountingListener();
+        mConnection.attach(listener);
+        mContext.connect();
+        mContext.disconnect();
+        assertEquals(1, listener.disconnected);
+
+        // no jitter makes half of the delay
+        long delay = BASE_DELAY_MILLIS;
+        for (int attempt = 0; attempt < 10; attempt++) {
+            assertRebindAfter(Math.min(delay, MAX_DELAY_MILLIS) / 2);
+            delay *= 2;
+        }
+        // capped
+        assertTrue(delay > MAX_DELAY_MILLIS);
+        assertRebindAfter(MAX_DELAY_MILLIS / 2);
+        // each rebind replaces the binding which is not connected
+        assertEquals(11, mContext.unbinds);
+    }
+
+    @Test
+    public void reconnectDelayHasJitter() throws Exception {
+        mRandom.value = 0.999;
+        mConnection.attach(new CountingListener());
+        mContext.connect();
+        mContext.disconnect();
+
+        long delay = BASE_DELAY_MILLIS / 2 + (long) (0.999 * (BASE_DELAY_MILLIS / 2));
+        assertTrue(delay > BASE_DELAY_MILLIS / 2 && delay < BASE_DELAY_MILLIS);
+        assertRebindAfter(delay);
+    }
+
+    @Test
+    public void connectionResetsReconnectDelay() throws Exception {
+        CountingListener listener = new CountingListener();
+        mConnection.attach(listener);
+        mContext.connect();
+        mContext.disconnect();
+        assertRebindAfter(BASE_DELAY_MILLIS / 2);
+        assertRebindAfter(BASE_DELAY_MILLIS);
+        assertRebindAfter(BASE_DELAY_MILLIS * 2);
+
+        mContext.connect();
+        assertEquals(2, listener.connected);
+        // next outage starts from the base delay
+        mContext.disconnect();
+        assertRebindAfter(BASE_DELAY_MILLIS / 2);
+    }
+
+    @Test
+    public void deadServiceIsReconnectedOnce() throws Exception {
+        mConnection.attach(new CountingListener());
+        IInAppBillingService service = mContext.connect();
+
+        mConnection.reportDead(service);
+        // reported again by another controller
+        mConnection.reportDead(service);
+        assertRebindAfter(BASE_DELAY_MILLIS / 2);
+        assertEquals(1, mContext.unbinds);
+
+        // old service does not affect new one
+        IInAppBillingService next = mContext.connect();
+        mConnection.reportDead(service);
+        advance(MAX_DELAY_MILLIS);
+        assertEquals(2, mContext.binds);
+        assertNotSame(service, next);
+    }
+
+    @Test
+    public void reconnectStopsAfterLastDetach() throws Exception {
+        CountingListener listener = new CountingListener();
+        mConnection.attach(listener);
+        mContext.connect();
+        mContext.disconnect();
+
+        mConnection.detach(listener);
+        advance(MAX_DELAY_MILLIS);
+        assertEquals(1, mContext.binds);
+        assertEquals(1, mContext.unbinds);
+    }
+
+    /**
+     * Check the next rebind happens just after the delay.
+     */
+    private void assertRebindAfter(long delay) {
+        int binds = mContext.binds;
+        advance(delay - 1);
+        assertEquals("rebind before " + delay + "ms", binds, mContext.binds);
+        advance(1);
+        assertEquals("no rebind after " + delay + "ms", binds + 1, mContext.binds);
+    }
+
+    /**
+     * Advance time of the main looper, and run posted tasks.
+     */
+    static void advance(long millis) {
+        Robolectric.getForegroundThreadScheduler().advanceBy(millis);
+    }
+
+    /**
+     * Context which counts bind and unbind instead of binding google play.
+     */
+    static final class BindingContext extends ContextWrapper {
+        int binds = 0;
+        int unbinds = 0;
+        boolean bindResult = true;
+        private ServiceConnection mConnection = null;
+
+        BindingContext() {
+            super(RuntimeEnvironment.application);
+        }
+
+        @Override
+        public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+            binds++;
+            mConnection = conn;
+            return bindResult;
+        }
+
+        @Override
+        public void unbindService(ServiceConnection conn) {
+            unbinds++;
+        }
+
+        /**
+         * Call onServiceConnected() of the last bound connection with new fake service.
+         */
+        IInAppBillingService connect() {
+            FakeBillingService service = new FakeBillingService();
+            Binder binder = new Binder();
+            binder.attachInterface(service, "com.android.vending.billing.IInAppBillingService");
+            mConnection.onServiceConnected(new ComponentName("com.android.vending", "Billing"), binder);
+            return service;
+        }
+
+        void disconnect() {
+            mConnection.onServiceDisconnected(new ComponentName("com.android.vending", "Billing"));
+        }
+    }
+
+    /**
+     * Random which returns the same jitter always.
+     */
+    static final class FixedRandom extends Random {
+        double value = 0;
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    static final class CountingListener implements SharedBillingConnection.Listener {
+        IInAppBillingService service = null;
+        int connected = 0;
+        int disconnected = 0;
+        int bindFailed = 0;
+
+        @Override
+        public void onConnected(IInAppBillingService service) {
+            this.service = service;
+            connected++;
+        }
+
+        @Override
+        public void onDisconnected() {
+            service = null;
+            disconnected++;
+        }
+
+        @Override
+        public void onBindFailed() {
+            bindFailed++;
+        }
+    }
+}
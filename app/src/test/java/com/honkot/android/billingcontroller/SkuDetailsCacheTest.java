@@ -0,0 +1,143 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * TTL is passed by FakeTicker instead of sleep.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SkuDetailsCacheTest {
+
+    private static final long TTL_MILLIS = 1000;
+    private static final String INAPP = BillingController.TYPE_INAPP;
+
+    private final FakeTicker mTicker = new FakeTicker();
+
+    @Test
+    public void entriesExpireAfterTtl() throws Exception {
+        SkuDetailsCache cache = new SkuDetailsCache(TTL_MILLIS, 10, mTicker);
+        cache.put(product("product.1"));
+
+        mTicker.advance(TTL_MILLIS - 1);
+        assertEquals("product.1", cache.get("product.1", INAPP).getProductId());
+        assertEquals(1, cache.getHitCount());
+
+        mTicker.advance(1);
+        assertNull(cache.get("product.1", INAPP));
+        assertNull(cache.peek("product.1", INAPP));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+        // expired one is kept for the failing service
+        assertEquals("product.1", cache.peekStale("product.1", INAPP).getProductId());
+        assertEquals(1, cache.size());
+
+        // replaced one lives again
+        cache.put(product("product.1"));
+        assertNotNull(cache.get("product.1", INAPP));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        SkuDetailsCache cache = new SkuDetailsCache(TTL_MILLIS, 2, mTicker);
+        cache.put(product("product.1"));
+        cache.put(product("product.2"));
+        assertNotNull(cache.get("product.1", INAPP));
+
+        cache.put(product("product.3"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("product.2", INAPP));
+        assertNotNull(cache.get("product.1", INAPP));
+        assertNotNull(cache.get("product.3", INAPP));
+        // type is a part of the key
+        assertNull(cache.get("product.1", BillingController.TYPE_SUBSCRIPTIONS));
+    }
+
+    @Test
+    public void unavailableIsCachedWithTtl() throws Exception {
+        SkuDetailsCache cache = new SkuDetailsCache(TTL_MILLIS, 10, mTicker);
+        cache.putUnavailable("product.missing", INAPP);
+        assertTrue(cache.isUnavailable("product.missing", INAPP));
+        assertNull(cache.get("product.missing", INAPP));
+        assertEquals(1, cache.getHitCount());
+
+        mTicker.advance(TTL_MILLIS);
+        assertFalse(cache.isUnavailable("product.missing", INAPP));
+
+        // product info is not replaced by unavailable one from another response
+        cache.put(product("product.1"));
+        cache.putUnavailable("product.1", INAPP);
+        assertFalse(cache.isUnavailable("product.1", INAPP));
+        assertNotNull(cache.get("product.1", INAPP));
+    }
+
+    @Test
+    public void unavailableIsNotRequestedAgain() throws Exception {
+        FakeBillingService service = new FakeBillingService()
+                .generateCatalog(INAPP, "product.", 1)
+                .setLatency(FakeBillingService.fixedLatency(TimeUnit.MILLISECONDS.toMicros(300)));
+        final BillingController controller = service.newController();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            service.resetCallCounts();
+            Future<HashMap<String, BillingController.ProductInfo>> first = executor.submit(
+                    new Callable<HashMap<String, BillingController.ProductInfo>>() {
+                        @Override
+                        public HashMap<String, BillingController.ProductInfo> call() throws Exception {
+                            return controller.getProductsInfo(Arrays.asList("product.0", "product.missing"), true);
+                        }
+                    });
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (service.getCallCount(BillingMetrics.Operation.GET_SKU_DETAILS) == 0) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+
+            // waits for the first loader, and it does not request the missing one again
+            HashMap<String, BillingController.ProductInfo> second =
+                    controller.getProductsInfo(Collections.singletonList("product.missing"), true);
+            assertTrue(second.isEmpty());
+            assertEquals(Collections.singleton("product.0"), first.get(5, TimeUnit.SECONDS).keySet());
+
+            assertTrue(controller.getProductsInfo(Collections.singletonList("product.missing"), true).isEmpty());
+            assertEquals(1, service.getCallCount(BillingMetrics.Operation.GET_SKU_DETAILS));
+        } finally {
+            executor.shutdownNow();
+            controller.release();
+            service.deleteFiles();
+        }
+    }
+
+    private static BillingController.ProductInfo product(String productId) throws Exception {
+        return new BillingController.ProductInfo(FakeBillingService.productJson(INAPP, productId, 990000, "JPY"));
+    }
+}
@@ -0,0 +1,595 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Base64;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process fake of IInAppBillingService for tests and benchmarks on JVM.<br />
+ * It has a synthetic catalog and purchase histories of any size with continuation paging,
+ * and it can inject latency and error codes per operation. Pass it to
+ * BillingController(Context, OnServiceResponseListener, IInAppBillingService) instead of binding google play,
+ * or make the controller by newController().
+ * It implements the interface directly because Binder cannot be created on plain JVM.
+ * It is shared by unit tests of :app and benchmarks of :benchmark.
+ */
+public class FakeBillingService implements IInAppBillingService {
+
+    /** Max count of product IDs which real service accepts in one getSkuDetails() */
+    public static final int MAX_SKU_DETAILS_ITEMS = 20;
+    /** Response code which makes the fake throw RemoteException */
+    public static final int REMOTE_EXCEPTION = -1;
+
+    /**
+     * Latency of each call.
+     */
+    public interface LatencyModel {
+        /**
+         * @return delay in microseconds
+         */
+        long nextDelayMicros(BillingMetrics.Operation operation, Random random);
+    }
+
+    private final Random mRandom;
+    private final Map<String, LinkedHashMap<String, String>> mCatalog = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> mPurchases = new ConcurrentHashMap<>();
+    private final EnumMap<BillingMetrics.Operation, AtomicInteger> mCallCounts =
+            new EnumMap<>(BillingMetrics.Operation.class);
+    private final EnumMap<BillingMetrics.Operation, ErrorRule> mErrors = new EnumMap<>(BillingMetrics.Operation.class);
+    private volatile LatencyModel mLatency = fixedLatency(0);
+    private volatile int mPageSize = 100;
+    /** Response of isBillingSupported() keyed by type */
+    private final Map<String, Integer> mSupportedResponses = new ConcurrentHashMap<>();
+    private volatile PendingIntent mBuyIntent = null;
+    private volatile PrivateKey mSigningKey = null;
+    /** Signature keyed by purchase data, for signing each row once */
+    private final Map<String, String> mSignatures = new ConcurrentHashMap<>();
+    private int mOrderSequence = 0;
+    private final ArrayList<File> mFilesDirs = new ArrayList<>();
+
+    public FakeBillingService() {
+        this(0);
+    }
+
+    /**
+     * @param seed seed of random for latency and errors. Same seed makes same sequence.
+     */
+    public FakeBillingService(long seed) {
+        mRandom = new Random(seed);
+        for (BillingMetrics.Operation operation : BillingMetrics.Operation.values()) {
+            mCallCounts.put(operation, new AtomicInteger());
+        }
+        mCatalog.put(BillingController.TYPE_INAPP, new LinkedHashMap<String, String>());
+        mCatalog.put(BillingController.TYPE_SUBSCRIPTIONS, new LinkedHashMap<String, String>());
+        mPurchases.put(BillingController.TYPE_INAPP, Collections.synchronizedList(new ArrayList<String>()));
+        mPurchases.put(BillingController.TYPE_SUBSCRIPTIONS, Collections.synchronizedList(new ArrayList<String>()));
+        setSupportedResponse(BillingController.BILLING_RESPONSE_RESULT_OK);
+    }
+
+    // ---- configuration ----
+
+    /**
+     * Add a product to the catalog.
+     */
+    public FakeBillingService addProduct(String type, String productId, long priceMicros, String currency) {
+        String json = productJson(type, productId, priceMicros, currency);
+        LinkedHashMap<String, String> catalog = mCatalog.get(type);
+        synchronized (catalog) {
+            catalog.put(productId, json);
+        }
+        return this;
+    }
+
+    /**
+     * Add synthetic products named prefix + index.
+     */
+    public FakeBillingService generateCatalog(String type, String prefix, int count) {
+        for (int i = 0; i < count; i++) {
+            addProduct(type, prefix + i, 990000L + i * 10000L, "USD");
+        }
+        return this;
+    }
+
+    /**
+     * Add a purchase to the history.
+     * @return purchase token
+     */
+    public String addPurchase(String type, String productId, long purchaseTime, int purchaseState) {
+        String token;
+        int order;
+        synchronized (this) {
+            order = mOrderSequence++;
+        }
+        token = "token." + type + "." + order;
+        mPurchases.get(type).add(purchaseJson(productId, purchaseTime, purchaseState, order, token));
+        return token;
+    }
+
+    /**
+     * @return row of DETAILS_LIST which addProduct() adds
+     */
+    public static String productJson(String type, String productId, long priceMicros, String currency) {
+        return "{\"productId\":" + quote(productId)
+                + ",\"type\":" + quote(type)
+                + ",\"price\":" + quote(currency + " " + (priceMicros / 1000000.0))
+                + ",\"price_amount_micros\":" + priceMicros
+                + ",\"price_currency_code\":" + quote(currency)
+                + ",\"title\":" + quote("Title of " + productId)
+                + ",\"description\":" + quote("Description of " + productId) + "}";
+    }
+
+    /**
+     * @return row of INAPP_PURCHASE_DATA_LIST which addPurchase() adds
+     */
+    public static String purchaseJson(String productId, long purchaseTime, int purchaseState, int order,
+                                      String purchaseToken) {
+        return "{\"orderId\":" + quote("GPA.0000-" + order)
+                + ",\"packageName\":\"com.honkot.android.billingcontroller\""
+                + ",\"productId\":" + quote(productId)
+                + ",\"purchaseTime\":" + purchaseTime
+                + ",\"purchaseState\":" + purchaseState
+                + ",\"developerPayload\":\"developerPayload\""
+                + ",\"purchaseToken\":" + quote(purchaseToken) + "}";
+    }
+
+    /**
+     * Add synthetic purchases of products named prefix + index.
+     */
+    public FakeBillingService generatePurchases(String type, String prefix, int count) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            addPurchase(type, prefix + i, now - i * 60000L, 0);
+        }
+        return this;
+    }
+
+    /**
+     * Set count of purchases in one page of getPurchases().
+     */
+    public FakeBillingService setPageSize(int pageSize) {
+        mPageSize = pageSize;
+        return this;
+    }
+
+    public FakeBillingService setLatency(LatencyModel latency) {
+        mLatency = latency;
+        return this;
+    }
+
+    /**
+     * Set response of isBillingSupported() for all types.
+     */
+    public FakeBillingService setSupportedResponse(int responseCode) {
+        setSupportedResponse(BillingController.TYPE_INAPP, responseCode);
+        return setSupportedResponse(BillingController.TYPE_SUBSCRIPTIONS, responseCode);
+    }
+
+    /**
+     * Set response of isBillingSupported() for the type.
+     */
+    public FakeBillingService setSupportedResponse(String type, int responseCode) {
+        mSupportedResponses.put(type, responseCode);
+        return this;
+    }
+
+    /**
+     * Set BUY_INTENT which is returned by getBuyIntent().
+     */
+    public FakeBillingService setBuyIntent(PendingIntent buyIntent) {
+        mBuyIntent = buyIntent;
+        return this;
+    }
+
+    /**
+     * Sign purchases of getPurchases() by SHA1withRSA, so that they pass BillingController.setPublicKey()
+     * with Base64 of the public key of the pair. NULL returns no signature.
+     */
+    public FakeBillingService setSigningKey(PrivateKey signingKey) {
+        mSigningKey = signingKey;
+        mSignatures.clear();
+        return this;
+    }
+
+    /**
+     * Return the response code with the probability.
+     * @param responseCode response code, or REMOTE_EXCEPTION
+     * @param probability 0.0 - 1.0
+     */
+    public FakeBillingService injectError(BillingMetrics.Operation operation, int responseCode, double probability) {
+        synchronized (mErrors) {
+            mErrors.put(operation, new ErrorRule(responseCode, probability, -1));
+        }
+        return this;
+    }
+
+    /**
+     * Return the response code for the next count calls.
+     * @param responseCode response code, or REMOTE_EXCEPTION
+     */
+    public FakeBillingService failNext(BillingMetrics.Operation operation, int responseCode, int count) {
+        synchronized (mErrors) {
+            mErrors.put(operation, new ErrorRule(responseCode, 1.0, count));
+        }
+        return this;
+    }
+
+    public FakeBillingService clearErrors() {
+        synchronized (mErrors) {
+            mErrors.clear();
+        }
+        return this;
+    }
+
+    /**
+     * @return count of calls of the operation, including failed ones
+     */
+    public int getCallCount(BillingMetrics.Operation operation) {
+        return mCallCounts.get(operation).get();
+    }
+
+    public void resetCallCounts() {
+        for (AtomicInteger count : mCallCounts.values()) {
+            count.set(0);
+        }
+    }
+
+    // ---- controller on plain JVM ----
+
+    /**
+     * Make controller which uses this service, and wait until it is connected.
+     * Its context has no main looper, so results are delivered on billing thread.
+     * Background refresh which is started on connection is finished before return.
+     */
+    public BillingController newController() throws Exception {
+        BillingController controller = newConnectingController();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (controller.getConnectionState() != BillingController.ConnectionState.CONNECTED) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("not connected");
+            Thread.sleep(1);
+        }
+        controller.getPurchaseHistoryAsync(true, null).get();
+        controller.getPurchaseHistoryAsync(false, null).get();
+        return controller;
+    }
+
+    /**
+     * Make controller which uses this service without waiting.
+     * It is still CONNECTING while isBillingSupported() is running on billing thread.
+     */
+    public BillingController newConnectingController() {
+        return new BillingController(newContext(),
+                new BillingController.OnServiceResponseListener() {
+                    @Override
+                    public void onServiceConnected() {
+                    }
+
+                    @Override
+                    public void onServiceDisconnected() {
+                    }
+                }, this);
+    }
+
+    /**
+     * Make context which has temporary files directory and no main looper.
+     * Its files directory is deleted by deleteFiles().
+     */
+    public Context newContext() {
+        JvmContext context = new JvmContext();
+        synchronized (mFilesDirs) {
+            mFilesDirs.add(context.getFilesDir());
+        }
+        return context;
+    }
+
+    /**
+     * Delete files directories of controllers and contexts which are made by this.
+     * Call it after the controllers are released.
+     */
+    public void deleteFiles() {
+        synchronized (mFilesDirs) {
+            for (File dir : mFilesDirs) {
+                delete(dir);
+            }
+            mFilesDirs.clear();
+        }
+    }
+
+    // ---- latency models ----
+
+    public static LatencyModel fixedLatency(final long micros) {
+        return new LatencyModel() {
+            @Override
+            public long nextDelayMicros(BillingMetrics.Operation operation, Random random) {
+                return micros;
+            }
+        };
+    }
+
+    public static LatencyModel uniformLatency(final long minMicros, final long maxMicros) {
+        return new LatencyModel() {
+            @Override
+            public long nextDelayMicros(BillingMetrics.Operation operation, Random random) {
+                return minMicros + (long) (random.nextDouble() * (maxMicros - minMicros));
+            }
+        };
+    }
+
+    /**
+     * Log-normal latency which has long tail like real binder calls.
+     * @param medianMicros median of latency
+     * @param sigma standard deviation of log(latency)
+     */
+    public static LatencyModel logNormalLatency(final long medianMicros, final double sigma) {
+        return new LatencyModel() {
+            @Override
+            public long nextDelayMicros(BillingMetrics.Operation operation, Random random) {
+                return (long) (medianMicros * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    // ---- IInAppBillingService ----
+
+    @Override
+    public int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException {
+        int error = begin(BillingMetrics.Operation.IS_BILLING_SUPPORTED);
+        if (error != 0) return error;
+        Integer response = mSupportedResponses.get(type);
+        return response == null ? BillingController.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE : response;
+    }
+
+    @Override
+    public Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle)
+            throws RemoteException {
+        Bundle ret = new Bundle();
+        int error = begin(BillingMetrics.Operation.GET_SKU_DETAILS);
+        ArrayList<String> ids = skusBundle.getStringArrayList("ITEM_ID_LIST");
+        if (error == 0 && (ids == null || ids.size() > MAX_SKU_DETAILS_ITEMS || !mCatalog.containsKey(type))) {
+            error = BillingController.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR;
+        }
+        ret.putInt(BillingController.RESPONSE_CODE, error);
+        if (error != 0) return ret;
+
+        ArrayList<String> details = new ArrayList<>();
+        LinkedHashMap<String, String> catalog = mCatalog.get(type);
+        synchronized (catalog) {
+            for (String id : ids) {
+                String json = catalog.get(id);
+                if (json != null) details.add(json);
+            }
+        }
+        ret.putStringArrayList("DETAILS_LIST", details);
+        return ret;
+    }
+
+    @Override
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type, String developerPayload)
+            throws RemoteException {
+        Bundle ret = new Bundle();
+        int error = begin(BillingMetrics.Operation.GET_BUY_INTENT);
+        ret.putInt(BillingController.RESPONSE_CODE, error);
+        if (error == 0) {
+            ret.putParcelable("BUY_INTENT", mBuyIntent);
+        }
+        return ret;
+    }
+
+    @Override
+    public Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken)
+            throws RemoteException {
+        Bundle ret = new Bundle();
+        int error = begin(BillingMetrics.Operation.GET_PURCHASES);
+        List<String> purchases = mPurchases.get(type);
+        if (error == 0 && purchases == null) {
+            error = BillingController.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR;
+        }
+        ret.putInt(BillingController.RESPONSE_CODE, error);
+        if (error != 0) return ret;
+
+        int from = continuationToken == null ? 0 : Integer.parseInt(continuationToken);
+        ArrayList<String> page = new ArrayList<>();
+        int size;
+        synchronized (purchases) {
+            size = purchases.size();
+            int to = Math.min(size, from + mPageSize);
+            page.addAll(purchases.subList(Math.min(from, to), to));
+        }
+        ret.putStringArrayList("INAPP_PURCHASE_DATA_LIST", page);
+        PrivateKey signingKey = mSigningKey;
+        if (signingKey != null) {
+            ArrayList<String> signatures = new ArrayList<>(page.size());
+            for (String json : page) {
+                signatures.add(sign(signingKey, json));
+            }
+            ret.putStringArrayList(BillingController.INAPP_DATA_SIGNATURE_LIST, signatures);
+        }
+        if (from + page.size() < size) {
+            ret.putString(BillingController.INAPP_CONTINUATION_TOKEN, String.valueOf(from + page.size()));
+        }
+        return ret;
+    }
+
+    @Override
+    public int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException {
+        int error = begin(BillingMetrics.Operation.CONSUME_PURCHASE);
+        if (error != 0) return error;
+
+        List<String> purchases = mPurchases.get(BillingController.TYPE_INAPP);
+        String key = "\"purchaseToken\":" + quote(purchaseToken);
+        synchronized (purchases) {
+            for (Iterator<String> it = purchases.iterator(); it.hasNext(); ) {
+                if (it.next().contains(key)) {
+                    it.remove();
+                    return BillingController.BILLING_RESPONSE_RESULT_OK;
+                }
+            }
+        }
+        return BillingController.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+    }
+
+    @Override
+    public IBinder asBinder() {
+        // not a Binder, so the controller must be made with this instance directly
+        return null;
+    }
+
+    // ---- internal ----
+
+    /**
+     * Count the call, sleep for latency and decide injected error.
+     * @return injected response code, or 0
+     */
+    private int begin(BillingMetrics.Operation operation) throws RemoteException {
+        mCallCounts.get(operation).incrementAndGet();
+
+        long delay;
+        int error = 0;
+        synchronized (mRandom) {
+            delay = mLatency.nextDelayMicros(operation, mRandom);
+            synchronized (mErrors) {
+                ErrorRule rule = mErrors.get(operation);
+                if (rule != null && rule.remaining != 0 && mRandom.nextDouble() < rule.probability) {
+                    error = rule.responseCode;
+                    if (rule.remaining > 0) rule.remaining--;
+                }
+            }
+        }
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (error == REMOTE_EXCEPTION) throw new RemoteException();
+        return error;
+    }
+
+    private static String quote(String value) {
+        StringBuilder buf = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') buf.append('\\');
+            buf.append(c);
+        }
+        return buf.append('"').toString();
+    }
+
+    private String sign(PrivateKey signingKey, String json) {
+        String signature = mSignatures.get(json);
+        if (signature != null) return signature;
+        try {
+            Signature signer = Signature.getInstance("SHA1withRSA");
+            signer.initSign(signingKey);
+            signer.update(json.getBytes(Charset.forName("UTF-8")));
+            signature = Base64.encodeToString(signer.sign(), Base64.NO_WRAP);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        mSignatures.put(json, signature);
+        return signature;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Context on plain JVM. It has temporary files directory and no main looper.
+     */
+    private static class JvmContext extends ContextWrapper {
+        private final File mFilesDir;
+
+        JvmContext() {
+            super(null);
+            mFilesDir = new File(System.getProperty("java.io.tmpdir"), "billing-fake-" + System.nanoTime());
+            if (!mFilesDir.mkdirs()) throw new IllegalStateException("Cannot make " + mFilesDir);
+        }
+
+        @Override
+        public String getPackageName() {
+            return "com.honkot.android.billingcontroller";
+        }
+
+        @Override
+        public File getFilesDir() {
+            return mFilesDir;
+        }
+
+        @Override
+        public Looper getMainLooper() {
+            return null;
+        }
+
+        @Override
+        public PackageManager getPackageManager() {
+            // google play is not installed
+            return null;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+    }
+
+    private static final class ErrorRule {
+        final int responseCode;
+        final double probability;
+        int remaining;
+
+        ErrorRule(int responseCode, double probability, int remaining) {
+            this.responseCode = responseCode;
+            this.probability = probability;
+            this.remaining = remaining;
+        }
+    }
+}
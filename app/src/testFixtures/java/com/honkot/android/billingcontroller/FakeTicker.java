@@ -0,0 +1,33 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ticker which is advanced by tests instead of sleep.
+ */
+final class FakeTicker implements Ticker {
+    private volatile long mNanos = 0;
+
+    @Override
+    public long nanoTime() {
+        return mNanos;
+    }
+
+    void advance(long millis) {
+        mNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,92 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time which the calling thread is blocked, as if it is main thread.<br />
+ * Sync call waits for the binder call. Async call returns after the request is queued to the billing thread,
+ * and the result is waited outside of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MainThreadBlockingBenchmark {
+
+    /** Median latency of one binder call */
+    private static final long LATENCY_MICROS = 2000;
+
+    /** fixed: every call takes the median. logNormal: long tail like real binder calls. */
+    @Param({"fixed", "logNormal"})
+    public String latency;
+
+    private FakeBillingService mService;
+    private BillingController mController;
+    private Future<ArrayList<BillingController.ProductInfo>> mPending;
+
+    @Setup
+    public void setUp() throws Exception {
+        mService = new FakeBillingService().generateCatalog(BillingController.TYPE_INAPP, "product.", 1);
+        mController = mService.newController();
+        // every call goes to the service
+        mController.setSkuDetailsCache(null);
+        mService.setLatency("fixed".equals(latency) ? FakeBillingService.fixedLatency(LATENCY_MICROS)
+                : FakeBillingService.logNormalLatency(LATENCY_MICROS, 0.5));
+    }
+
+    /**
+     * Finish the async call, so that requests are not piled up on the billing thread.
+     */
+    @TearDown(Level.Invocation)
+    public void waitPending() throws Exception {
+        if (mPending != null) {
+            mPending.get();
+            mPending = null;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mController.release();
+        mService.deleteFiles();
+    }
+
+    /** Blocked until getSkuDetails() returns */
+    @Benchmark
+    public ArrayList<BillingController.ProductInfo> sync() {
+        return mController.getProductsInfo("product.0", true);
+    }
+
+    /** Blocked only while the request is queued */
+    @Benchmark
+    public Future<ArrayList<BillingController.ProductInfo>> async() {
+        mPending = mController.getProductsInfoAsync("product.0", true, null);
+        return mPending;
+    }
+}
@@ -0,0 +1,123 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getProductsInfo() one product per call against batched calls, with latency of binder calls.<br />
+ * Time is dominated by round trips, so getSkuDetails() calls are counted by RoundTrips.
+ * getSkuDetailsCalls / operations in the results is calls per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProductsInfoBatchingBenchmark {
+
+    /** Median latency of one getSkuDetails() */
+    private static final long LATENCY_MICROS = 2000;
+
+    @Param({"20", "100"})
+    public int products;
+
+    /** fixed: every call takes the median. logNormal: long tail like real binder calls. */
+    @Param({"fixed", "logNormal"})
+    public String latency;
+
+    private FakeBillingService mService;
+    private BillingController mController;
+    private ArrayList<String> mIds;
+
+    /**
+     * Counters which are reported in the results next to the time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RoundTrips {
+        public long getSkuDetailsCalls;
+        public long operations;
+
+        // JMH does not reset counters
+        @Setup(Level.Iteration)
+        public void reset() {
+            getSkuDetailsCalls = 0;
+            operations = 0;
+        }
+
+        void add(int calls) {
+            getSkuDetailsCalls += calls;
+            operations++;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        mService = new FakeBillingService().generateCatalog(BillingController.TYPE_INAPP, "product.", products);
+        mController = mService.newController();
+        // every operation goes to the service
+        mController.setSkuDetailsCache(null);
+        mService.setLatency("fixed".equals(latency) ? FakeBillingService.fixedLatency(LATENCY_MICROS)
+                : FakeBillingService.logNormalLatency(LATENCY_MICROS, 0.5));
+
+        mIds = new ArrayList<>(products);
+        for (int i = 0; i < products; i++) {
+            mIds.add("product." + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mController.release();
+        mService.deleteFiles();
+    }
+
+    /** One getSkuDetails() per product */
+    @Benchmark
+    public void perProduct(Blackhole blackhole, RoundTrips roundTrips) {
+        int before = skuDetailsCalls();
+        for (String id : mIds) {
+            blackhole.consume(mController.getProductsInfo(id, true));
+        }
+        roundTrips.add(skuDetailsCalls() - before);
+    }
+
+    /** Chunks of MAX_SKU_DETAILS_ITEMS which are sent in parallel */
+    @Benchmark
+    public HashMap<String, BillingController.ProductInfo> batched(RoundTrips roundTrips) {
+        int before = skuDetailsCalls();
+        HashMap<String, BillingController.ProductInfo> ret = mController.getProductsInfo(mIds, true);
+        roundTrips.add(skuDetailsCalls() - before);
+        return ret;
+    }
+
+    private int skuDetailsCalls() {
+        return mService.getCallCount(BillingMetrics.Operation.GET_SKU_DETAILS);
+    }
+}
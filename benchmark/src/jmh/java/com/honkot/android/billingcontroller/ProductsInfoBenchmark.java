@@ -0,0 +1,144 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getProductsInfo() with and without the cache, and parsing of product rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProductsInfoBenchmark {
+
+    @Param({"1", "20", "300"})
+    public int products;
+
+    private FakeBillingService mService;
+    private BillingController mUncached;
+    private BillingController mCached;
+    private ArrayList<String> mIds;
+    private ArrayList<String> mRows;
+    private ArrayList<BillingController.ProductInfo> mInfos;
+    private SkuDetailsCache mCache;
+
+    @Setup
+    public void setUp() throws Exception {
+        mService = new FakeBillingService().generateCatalog(BillingController.TYPE_INAPP, "product.", products);
+        mUncached = mService.newController();
+        mUncached.setSkuDetailsCache(null);
+        mCached = mService.newController();
+
+        mIds = new ArrayList<>(products);
+        mRows = new ArrayList<>(products);
+        mInfos = new ArrayList<>(products);
+        mCache = new SkuDetailsCache(TimeUnit.HOURS.toMillis(1), products);
+        for (int i = 0; i < products; i++) {
+            String row = FakeBillingService.productJson(BillingController.TYPE_INAPP, "product." + i,
+                    i * 1000000L + 990000L, "USD");
+            mIds.add("product." + i);
+            mRows.add(row);
+            // reversed, so that sorting moves every element
+            mInfos.add(0, new BillingController.ProductInfo(row));
+            mCache.put(new BillingController.ProductInfo(row));
+        }
+        // warm the cache of the controller
+        mCached.getProductsInfo(mIds, true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mUncached.release();
+        mCached.release();
+        mService.deleteFiles();
+    }
+
+    /** Request and parse every time */
+    @Benchmark
+    public HashMap<String, BillingController.ProductInfo> getProductsInfo() {
+        return mUncached.getProductsInfo(mIds, true);
+    }
+
+    /** Everything is served by the cache */
+    @Benchmark
+    public HashMap<String, BillingController.ProductInfo> getProductsInfoCached() {
+        return mCached.getProductsInfo(mIds, true);
+    }
+
+    /** Lookup of the cache itself */
+    @Benchmark
+    public void cacheLookup(Blackhole blackhole) {
+        for (String id : mIds) {
+            blackhole.consume(mCache.get(id, BillingController.TYPE_INAPP));
+        }
+    }
+
+    /** Lazy parsing with typical access (title and price) */
+    @Benchmark
+    public void parseLazy(Blackhole blackhole) throws JSONException {
+        for (String row : mRows) {
+            BillingController.ProductInfo info = new BillingController.ProductInfo(row);
+            blackhole.consume(info.getTitle());
+            blackhole.consume(info.getPrice());
+        }
+    }
+
+    /** Sort by typed price which is decoded at parse time */
+    @Benchmark
+    public ArrayList<BillingController.ProductInfo> sortByPrice() {
+        ArrayList<BillingController.ProductInfo> sorted = new ArrayList<>(mInfos);
+        Collections.sort(sorted, BillingController.ProductInfo.PRICE_ORDER);
+        return sorted;
+    }
+
+    /** Formatted price which is cached per locale */
+    @Benchmark
+    public void formattedPrice(Blackhole blackhole) {
+        for (BillingController.ProductInfo info : mInfos) {
+            blackhole.consume(info.getFormattedPrice(Locale.US));
+        }
+    }
+
+    /** Baseline of the former parsing: JSONObject and all fields copied into Strings */
+    @Benchmark
+    public void parseJsonObject(Blackhole blackhole) throws JSONException {
+        for (String row : mRows) {
+            JSONObject object = new JSONObject(row);
+            blackhole.consume(object.getString("productId"));
+            blackhole.consume(object.getString("type"));
+            blackhole.consume(object.getString("price"));
+            blackhole.consume(object.getString("title"));
+            blackhole.consume(object.getString("description"));
+        }
+    }
+}
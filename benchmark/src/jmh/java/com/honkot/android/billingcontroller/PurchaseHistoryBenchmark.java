@@ -0,0 +1,106 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getPurchaseHistory() on histories of several sizes, and parsing of purchase rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PurchaseHistoryBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int rows;
+
+    private FakeBillingService mService;
+    private BillingController mController;
+    private ArrayList<String> mRows;
+
+    @Setup
+    public void setUp() throws Exception {
+        mService = new FakeBillingService().generatePurchases(BillingController.TYPE_INAPP, "product.", rows);
+        mController = mService.newController();
+        mRows = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            mRows.add(FakeBillingService.purchaseJson("product." + i, 1470000000000L + i, 0, i, "token." + i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mController.release();
+        mService.deleteFiles();
+    }
+
+    /** Whole history through the controller, following continuation tokens */
+    @Benchmark
+    public ArrayList<BillingController.PurchaseResult> getPurchaseHistory() {
+        return mController.getPurchaseHistory(true);
+    }
+
+    /** Page by page without keeping the history */
+    @Benchmark
+    public boolean getPurchaseHistoryPages(final Blackhole blackhole) {
+        return mController.getPurchaseHistory(true, new BillingController.OnPurchaseHistoryPageListener() {
+            @Override
+            public boolean onPage(ArrayList<BillingController.PurchaseResult> page) {
+                blackhole.consume(page);
+                return true;
+            }
+        });
+    }
+
+    /** Lazy parsing with typical access (product id and state) */
+    @Benchmark
+    public void parseLazy(Blackhole blackhole) throws JSONException {
+        for (String row : mRows) {
+            BillingController.PurchaseResult purchase = new BillingController.PurchaseResult(row, null);
+            blackhole.consume(purchase.getProductId());
+            blackhole.consume(purchase.getPurchaseState());
+        }
+    }
+
+    /** Baseline of the former parsing: JSONObject and all fields copied into Strings */
+    @Benchmark
+    public void parseJsonObject(Blackhole blackhole) throws JSONException {
+        for (String row : mRows) {
+            JSONObject object = new JSONObject(row);
+            blackhole.consume(object.getString("orderId"));
+            blackhole.consume(object.getString("packageName"));
+            blackhole.consume(object.getString("productId"));
+            blackhole.consume(object.getString("purchaseTime"));
+            blackhole.consume(object.getString("purchaseState"));
+            blackhole.consume(object.getString("developerPayload"));
+            blackhole.consume(object.getString("purchaseToken"));
+        }
+    }
+}
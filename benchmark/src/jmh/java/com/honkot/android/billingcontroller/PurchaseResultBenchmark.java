@@ -0,0 +1,77 @@
+/* Copyright (c) 2016 HoNKoT.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.honkot.android.billingcontroller;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the purchase result which is received on onActivityResult().<br />
+ * Each invocation receives new purchaseToken, so that append and fsync of the journal are also measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PurchaseResultBenchmark {
+
+    private FakeBillingService mService;
+    private BillingController mController;
+    private Intent mData;
+    private int mOrder = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        mService = new FakeBillingService();
+        mController = mService.newController();
+    }
+
+    /**
+     * Known token returns before the journal is written.
+     */
+    @Setup(Level.Invocation)
+    public void newPurchase() {
+        mOrder++;
+        mData = new Intent();
+        mData.putExtra(BillingController.RESPONSE_CODE, BillingController.BILLING_RESPONSE_RESULT_OK.intValue());
+        mData.putExtra(BillingController.INAPP_PURCHASE_DATA,
+                FakeBillingService.purchaseJson("product.1", 1470000000000L, 0, mOrder, "token." + mOrder));
+        mData.putExtra(BillingController.INAPP_DATA_SIGNATURE, "signature");
+    }
+
+    @TearDown
+    public void tearDown() {
+        mController.release();
+        mService.deleteFiles();
+    }
+
+    @Benchmark
+    public long getPurchaseResult() {
+        BillingController.PurchaseResult result = mController.getPurchaseResult(
+                BillingController.ACTIVITY_RESULT_CODE, Activity.RESULT_OK, mData);
+        return result.getPurchaseTime();
+    }
+}